@@ -0,0 +1,317 @@
+package net.vonbrandis.gdrivesync;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.ParentReference;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Benchmarks for the sync hot paths, run against a SimulatedDrive without latency:
+ * <ul>
+ * <li>diff: diffing one folder of n in-sync files against its drive listing</li>
+ * <li>enumerate: enumerating and statting a local tree of n files</li>
+ * <li>sync: synchronizing a tree of n files into an empty drive</li>
+ * <li>retained: the heap a folder synchronizer retains for a folder of n files, once it is ready to be diffed</li>
+ * <li>index: building the remote index from a listing of n files in a deep and wide tree</li>
+ * </ul>
+ * Times are per operation, that is per folder or tree of n entries. Run with {@code -prof gc} for the bytes
+ * allocated per operation. The retained benchmark prints the bytes retained per entry, measured after a full
+ * garbage collection. The index benchmark prints the peak heap while the index was built and the heap it retains.
+ * Local fixtures are generated once below java.io.tmpdir and reused by later runs.
+ * <p>
+ * Usage: java -jar target/benchmarks.jar [SyncBenchmark.diff ...] [-p size=1000000]
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class SyncBenchmark {
+    private static final int FILES_PER_FOLDER = 100;
+    private static final int LISTING_PAGE_SIZE = 1000;
+    //folder ids start above all file ids
+    private static final long OTHER_IDS = 1L << 40;
+    private static final Path FIXTURES = Paths.get(System.getProperty("java.io.tmpdir"), "gdrivesync-bench");
+
+    /**
+     * A folder whose files are all in sync with the drive, so only listing and diffing is measured.
+     */
+    @State(Scope.Benchmark)
+    public static class InSyncFolder {
+        @Param({"1000", "100000"})
+        public int size;
+        java.io.File folder;
+        File driveFolder;
+        SyncContext context;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            folder = flatFolder(size);
+            SimulatedDrive drive = new SimulatedDrive();
+            driveFolder = drive.createRootFolder("bench");
+            long modified = System.currentTimeMillis() + 3600000;
+            LocalScanner.scan(folder, f -> drive.addFile(driveFolder, f.getName(), f.getSize(), modified));
+            context = context(drive);
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class LocalTree {
+        @Param({"1000", "100000"})
+        public int size;
+        java.io.File root;
+
+        @Setup(Level.Trial)
+        public void setup() throws IOException {
+            root = tree(size);
+        }
+    }
+
+    /**
+     * A local tree and an empty drive, emptied again before every operation.
+     */
+    @State(Scope.Benchmark)
+    public static class EmptyDrive {
+        @Param({"1000", "100000"})
+        public int size;
+        java.io.File root;
+        File driveFolder;
+        SyncContext context;
+
+        @Setup(Level.Trial)
+        public void createTree() throws IOException {
+            root = tree(size);
+        }
+
+        @Setup(Level.Invocation)
+        public void emptyDrive() {
+            SimulatedDrive drive = new SimulatedDrive();
+            driveFolder = drive.createRootFolder("bench");
+            context = context(drive);
+        }
+    }
+
+    /**
+     * The bytes a folder synchronizer retains per entry, printed as the mean over the operations of the fork.
+     * JMH sums auxiliary counters over iterations, so the mean is reported from the fork instead.
+     */
+    @State(Scope.Thread)
+    public static class Retained {
+        double bytesPerEntry;
+        int operations;
+
+        void add(double bytes) {
+            bytesPerEntry += bytes;
+            operations++;
+        }
+
+        @TearDown(Level.Trial)
+        public void report() {
+            System.out.println(String.format("%nRetained %.1f bytes per entry", bytesPerEntry / operations));
+        }
+    }
+
+    /**
+     * The peak and retained heap of the remote index, printed as the mean over the operations of the fork.
+     */
+    @State(Scope.Thread)
+    public static class IndexHeap {
+        @Param({"1000000"})
+        public int size;
+        long peak;
+        long retained;
+        int operations;
+
+        void add(long peakBytes, long retainedBytes) {
+            peak += peakBytes;
+            retained += retainedBytes;
+            operations++;
+        }
+
+        @TearDown(Level.Trial)
+        public void report() {
+            System.out.println(String.format("%nRemote index of %d files: peak heap %.1f MB, retained %.1f bytes per file",
+                    size, peak / operations / 1048576.0, (double) retained / operations / size));
+        }
+    }
+
+    @Benchmark
+    public List<FolderSynchronizer> diff(InSyncFolder state) throws IOException {
+        return new FolderSynchronizer(state.context, state.folder, state.driveFolder).sync();
+    }
+
+    @Benchmark
+    public void enumerate(LocalTree state, Blackhole blackhole) throws IOException {
+        LocalScanner.walk(state.root, blackhole::consume);
+    }
+
+    /**
+     * Synchronizes a tree into an empty drive, folder by folder on the calling thread.
+     */
+    @Benchmark
+    public void sync(EmptyDrive state) throws IOException {
+        List<FolderSynchronizer> pending = new ArrayList<>();
+        pending.add(new FolderSynchronizer(state.context, state.root, state.driveFolder));
+        while (!pending.isEmpty()) {
+            pending.addAll(pending.remove(pending.size() - 1).sync());
+        }
+    }
+
+    /**
+     * Measures the heap held by a folder synchronizer between its pipeline stages, with the drive folder listed,
+     * which is what a wide folder costs while it waits to be diffed. Without a sync state the local folder is
+     * streamed into the diff, so it adds nothing here. The timing includes a full diff as well.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public List<FolderSynchronizer> retained(InSyncFolder state, Retained retained) throws IOException {
+        long before = usedHeap();
+        FolderSynchronizer synchronizer = new FolderSynchronizer(state.context, state.folder, state.driveFolder);
+        synchronizer.scanLocalFolder();
+        synchronizer.fetchDriveFolder();
+        long after = usedHeap();
+        retained.add((double) (after - before) / state.size);
+        //keeps the synchronizer reachable until after the measurement
+        return synchronizer.synchronize();
+    }
+
+    /**
+     * Builds the remote index from a synthetic listing, in pages as drive returns them, and measures the peak heap
+     * the listing and the index took together, above the heap in use before.
+     */
+    @Benchmark
+    @BenchmarkMode(Mode.SingleShotTime)
+    @Warmup(iterations = 1)
+    @Measurement(iterations = 3)
+    public RemoteIndex index(IndexHeap state) {
+        long before = usedHeap();
+        resetPeakHeap();
+        RemoteIndex index = new RemoteIndex();
+        syntheticListing(state.size, index::add);
+        long peak = peakHeap();
+        state.add(peak - before, usedHeap() - before);
+        return index;
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    private static void resetPeakHeap() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) pool.resetPeakUsage();
+        }
+    }
+
+    /**
+     * @return the sum of the peaks of the heap pools, an upper bound as the pools may peak at different times
+     */
+    private static long peakHeap() {
+        long peak = 0;
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getType() == MemoryType.HEAP) peak += pool.getPeakUsage().getUsed();
+        }
+        return peak;
+    }
+
+    /**
+     * Lists a tree of n files, FILES_PER_FOLDER in every folder and ten subfolders below every folder, which
+     * makes it five levels deep for a million files. Ids and parent ids are new strings for every file, as
+     * they are when parsed from a listing, and the files of a page are only reachable until the next page.
+     */
+    private static void syntheticListing(int size, Consumer<File> consumer) {
+        int folders = Math.max(1, size / FILES_PER_FOLDER);
+        long modified = System.currentTimeMillis();
+        List<File> page = new ArrayList<>(LISTING_PAGE_SIZE);
+        for (int folder = 0; folder < folders; folder++) {
+            String parent = folder == 0 ? "root" : driveId(OTHER_IDS + (folder - 1) / 10);
+            page.add(new File().setId(driveId(OTHER_IDS + folder)).setTitle("folder" + folder)
+                    .setMimeType(GDrive.APPLICATION_VND_GOOGLE_APPS_FOLDER)
+                    .setParents(Collections.singletonList(new ParentReference().setId(parent))));
+            for (int i = folder * FILES_PER_FOLDER; i < Math.min(size, (folder + 1) * FILES_PER_FOLDER); i++) {
+                page.add(new File().setId(driveId(i)).setTitle("file" + i).setMimeType(GDrive.APPLICATION_OCTET_STREAM)
+                        .setFileSize((long) i % 64).setModifiedDate(new DateTime(modified - i))
+                        .setMd5Checksum(String.format("%032x", i))
+                        .setParents(Collections.singletonList(new ParentReference().setId(driveId(OTHER_IDS + folder)))));
+                if (page.size() >= LISTING_PAGE_SIZE) {
+                    page.forEach(consumer);
+                    page.clear();
+                }
+            }
+        }
+        page.forEach(consumer);
+    }
+
+    /**
+     * @return an id as long as a drive id
+     */
+    private static String driveId(long n) {
+        return String.format("0B%026d", n);
+    }
+
+    private static SyncContext context(DriveBackend drive) {
+        Progress progress = new Progress();
+        progress.setTotalSummary(false);
+        return new SyncContext(drive, progress, new TransferExecutor(progress, 1));
+    }
+
+    private static java.io.File flatFolder(int size) throws IOException {
+        Path folder = FIXTURES.resolve("flat-" + size);
+        if (!Files.isDirectory(folder)) {
+            Path tmp = FIXTURES.resolve("flat-" + size + ".tmp");
+            Files.createDirectories(tmp);
+            for (int i = 0; i < size; i++) {
+                Files.write(tmp.resolve("file" + i), new byte[i % 64]);
+            }
+            Files.move(tmp, folder);
+        }
+        return folder.toFile();
+    }
+
+    private static java.io.File tree(int size) throws IOException {
+        Path root = FIXTURES.resolve("tree-" + size);
+        if (!Files.isDirectory(root)) {
+            Path tmp = FIXTURES.resolve("tree-" + size + ".tmp");
+            for (int i = 0; i < size; i++) {
+                int folder = i / FILES_PER_FOLDER;
+                Path dir = tmp.resolve("d" + folder / FILES_PER_FOLDER).resolve("d" + folder);
+                if (i % FILES_PER_FOLDER == 0) Files.createDirectories(dir);
+                Files.write(dir.resolve("file" + i), new byte[i % 64]);
+            }
+            Files.move(tmp, root);
+        }
+        return root.toFile();
+    }
+}
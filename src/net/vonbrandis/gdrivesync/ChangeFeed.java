@@ -0,0 +1,48 @@
+package net.vonbrandis.gdrivesync;
+
+import com.google.api.services.drive.model.Change;
+
+import java.io.IOException;
+import java.util.List;
+
+/**
+ * Source of remote changes, used to bring a cached RemoteIndex up to date without listing drive.
+ */
+public interface ChangeFeed {
+
+    /**
+     * @return the id of the most recent change, changes after it are fetched on the next run
+     */
+    long currentChangeId() throws IOException;
+
+    /**
+     * Fetches one page of changes, starting at the given change id.
+     *
+     * @param pageToken the token of the next page, or null for the first page
+     */
+    Page fetchChanges(long startChangeId, String pageToken) throws IOException;
+
+    class Page {
+        private final List<Change> changes;
+        private final String nextPageToken;
+        private final long largestChangeId;
+
+        public Page(List<Change> changes, String nextPageToken, long largestChangeId) {
+            this.changes = changes;
+            this.nextPageToken = nextPageToken;
+            this.largestChangeId = largestChangeId;
+        }
+
+        public List<Change> getChanges() {
+            return changes;
+        }
+
+        public String getNextPageToken() {
+            return nextPageToken;
+        }
+
+        public long getLargestChangeId() {
+            return largestChangeId;
+        }
+    }
+}
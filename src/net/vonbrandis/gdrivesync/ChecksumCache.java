@@ -0,0 +1,227 @@
+package net.vonbrandis.gdrivesync;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * MD5 checksums of local files, cached by (file key, size, mtime) so every file version is hashed only once.
+ * The file key is the inode on unix file systems, so renaming a file keeps its cached checksum.
+ * Files are hashed on a pool of one thread per core, reading through large direct buffers.
+ * New checksums are appended to a cache file, which is loaded on startup, and rewritten with only the current
+ * checksum of every file once most of its records are for versions that have since changed.
+ * Files missed by several threads at once are hashed by one of them, the others wait for its checksum.
+ */
+public class ChecksumCache {
+    private static final int BUFFER_SIZE = 1 << 20;
+    private static final byte RECORD = 1;
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    //the cache file is compacted on load when it holds at least this many records of older file versions
+    private static final int MIN_DEAD_RECORDS = 1000;
+
+    //the size, mtime and checksum of the last version of every file, by file key
+    private final Map<String, Checksum> checksums = new ConcurrentHashMap<>();
+    private final Map<String, CompletableFuture<String>> hashing = new ConcurrentHashMap<>();
+    private final DataOutputStream log;
+    private final ExecutorService pool;
+    private final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocateDirect(BUFFER_SIZE));
+
+    public ChecksumCache(java.io.File cacheFile) throws IOException {
+        boolean truncated = false;
+        int records = 0;
+        if (cacheFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile), 1 << 16))) {
+                while (in.read() == RECORD) {
+                    String key = in.readUTF();
+                    String md5 = in.readUTF();
+                    //file key, then size and mtime
+                    int mtime = key.lastIndexOf(':');
+                    int size = key.lastIndexOf(':', mtime - 1);
+                    if (size < 0) continue;
+                    checksums.put(key.substring(0, size), new Checksum(key.substring(size + 1), md5));
+                    records++;
+                }
+            } catch (EOFException e) {
+                truncated = true;
+            }
+        }
+        int dead = records - checksums.size();
+        //a partially written last record is dropped as well
+        if (truncated || dead >= MIN_DEAD_RECORDS && dead > checksums.size()) {
+            rewrite(cacheFile);
+        }
+        this.log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(cacheFile, true), 1 << 16));
+        int threads = Runtime.getRuntime().availableProcessors();
+        this.pool = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "checksum");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    /**
+     * Returns the MD5 checksum of a local file as a lowercase hex string, hashing it if needed.
+     */
+    public String md5(java.io.File localFile) throws IOException {
+        Path path = localFile.toPath();
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        Object fileKey = attrs.fileKey() != null ? attrs.fileKey() : path.toAbsolutePath();
+        String id = fileKey.toString();
+        String version = attrs.size() + ":" + attrs.lastModifiedTime().toMillis();
+        String md5 = cached(id, version);
+        if (md5 != null) return md5;
+
+        String key = id + ":" + version;
+        CompletableFuture<String> result = new CompletableFuture<>();
+        CompletableFuture<String> running = hashing.putIfAbsent(key, result);
+        if (running != null) return await(running);
+        try {
+            //another thread may have finished hashing between the lookup and here
+            md5 = cached(id, version);
+            if (md5 == null) {
+                md5 = hash(path);
+                checksums.put(id, new Checksum(version, md5));
+                append(key, md5);
+            }
+            result.complete(md5);
+            return md5;
+        } catch (IOException | RuntimeException | Error e) {
+            result.completeExceptionally(e);
+            throw e;
+        } finally {
+            hashing.remove(key);
+        }
+    }
+
+    private String cached(String id, String version) {
+        Checksum checksum = checksums.get(id);
+        return checksum != null && checksum.version.equals(version) ? checksum.md5 : null;
+    }
+
+    private static String await(CompletableFuture<String> running) throws IOException {
+        try {
+            return running.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a file to be hashed", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+            if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+            throw new IOException(e.getCause());
+        }
+    }
+
+    /**
+     * Returns the checksums of several files, hashing the uncached ones in parallel.
+     */
+    public Map<java.io.File, String> md5(List<java.io.File> localFiles) throws IOException {
+        List<Future<String>> futures = new ArrayList<>();
+        for (java.io.File f : localFiles) {
+            futures.add(pool.submit(() -> md5(f)));
+        }
+        Map<java.io.File, String> result = new HashMap<>();
+        for (int i = 0; i < localFiles.size(); i++) {
+            try {
+                result.put(localFiles.get(i), futures.get(i).get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while hashing files", e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof IOException) throw (IOException) e.getCause();
+                if (e.getCause() instanceof RuntimeException) throw (RuntimeException) e.getCause();
+                throw new IOException(e.getCause());
+            }
+        }
+        return result;
+    }
+
+    public synchronized void close() throws IOException {
+        pool.shutdownNow();
+        log.close();
+    }
+
+    private synchronized void append(String key, String md5) throws IOException {
+        write(log, key, md5);
+    }
+
+    private static void write(DataOutputStream out, String key, String md5) throws IOException {
+        out.writeByte(RECORD);
+        out.writeUTF(key);
+        out.writeUTF(md5);
+    }
+
+    /**
+     * Replaces the cache file with one record per file, written to a temporary file first so a crash keeps the old one.
+     */
+    private void rewrite(java.io.File cacheFile) throws IOException {
+        java.io.File tmpFile = new java.io.File(cacheFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), 1 << 16))) {
+            for (Map.Entry<String, Checksum> e : checksums.entrySet()) {
+                write(out, e.getKey() + ":" + e.getValue().version, e.getValue().md5);
+            }
+        }
+        Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private String hash(Path path) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        ByteBuffer buffer = buffers.get();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            buffer.clear();
+            while (channel.read(buffer) != -1) {
+                buffer.flip();
+                digest.update(buffer);
+                buffer.clear();
+            }
+        }
+        return toHex(digest.digest());
+    }
+
+    private static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = HEX[(bytes[i] >> 4) & 0xf];
+            chars[i * 2 + 1] = HEX[bytes[i] & 0xf];
+        }
+        return new String(chars);
+    }
+
+    private static class Checksum {
+        final String version;
+        final String md5;
+
+        Checksum(String version, String md5) {
+            this.version = version;
+            this.md5 = md5;
+        }
+    }
+}
@@ -0,0 +1,157 @@
+package net.vonbrandis.gdrivesync;
+
+import com.google.api.services.drive.model.File;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.LinkedHashSet;
+import java.util.Set;
+
+/**
+ * Puts a file stored by {@link ChunkStore} back together from its manifest and chunks. The manifest and the chunks
+ * it lists are downloaded from drive, given the destination of the sync and the path of the file below it, or read
+ * from a local copy of the manifest and the chunk folder.
+ * If chunks are missing, all of them are named before anything is written. Every chunk is checked against
+ * its hash, and the file is only moved into place once it is complete.
+ * <p>
+ * Usage: java net.vonbrandis.gdrivesync.ChunkRestore (-d &lt;destinationname&gt; &lt;file&gt; | &lt;manifest&gt; &lt;chunkfolder&gt;) &lt;outputfile&gt;
+ */
+public class ChunkRestore {
+
+    /**
+     * The chunks of a file, on drive or in a local folder.
+     */
+    private interface Chunks {
+        boolean contains(String hash);
+
+        byte[] read(String hash) throws IOException;
+    }
+
+    private ChunkRestore() {
+    }
+
+    public static void main(String[] args) {
+        boolean fromDrive = args.length == 4 && args[0].equals("-d");
+        if (args.length != 3 && !fromDrive) {
+            System.out.println(String.format("Usage: java %s (-d <destinationname> <file> | <manifest> <chunkfolder>) <outputfile>", ChunkRestore.class.getName()));
+            System.out.println("     -d    Download the manifest of the file, a path below the destination of the sync, and its chunks from drive");
+            System.exit(1);
+        }
+        try {
+            java.io.File outputFile = new java.io.File(args[args.length - 1]);
+            long size;
+            if (fromDrive) {
+                Progress progress = new Progress();
+                progress.setTotalSummary(false);
+                DriveBackend service = new GDrive(Synchronizer.connect(true), progress, false);
+                size = restore(service, args[1], args[2], outputFile);
+            } else {
+                size = restore(new java.io.File(args[0]), new java.io.File(args[1]), outputFile);
+            }
+            System.out.println(String.format("Restored %s (%d bytes)", outputFile, size));
+        } catch (IOException | RuntimeException e) {
+            System.out.println("Restore failed: " + e.getMessage());
+            System.exit(2);
+        }
+    }
+
+    /**
+     * Restores a file from a local copy of its manifest and the chunk folder.
+     *
+     * @return the size of the restored file
+     */
+    public static long restore(java.io.File manifestFile, java.io.File chunkFolder, java.io.File outputFile) throws IOException {
+        ChunkStore.Manifest manifest;
+        try (InputStream in = new FileInputStream(manifestFile)) {
+            manifest = ChunkStore.Manifest.read(in);
+        }
+        return restore(manifest, new Chunks() {
+            public boolean contains(String hash) {
+                return new java.io.File(chunkFolder, hash).isFile();
+            }
+
+            public byte[] read(String hash) throws IOException {
+                return Files.readAllBytes(new java.io.File(chunkFolder, hash).toPath());
+            }
+        }, chunkFolder.getPath(), outputFile);
+    }
+
+    /**
+     * Restores a file from drive, downloading its manifest and chunks one by one.
+     *
+     * @param driveRootFolder the destination of the sync, as given with -t
+     * @param path            the path of the file below the destination
+     * @return the size of the restored file
+     */
+    public static long restore(DriveBackend service, String driveRootFolder, String path, java.io.File outputFile) throws IOException {
+        File driveRoot = null;
+        for (String elem : driveRootFolder.split("/")) {
+            driveRoot = service.fetchFolderByID(driveRoot != null ? driveRoot.getId() : null, elem);
+        }
+        File manifestFile = driveRoot;
+        for (String elem : path.split("/")) {
+            if (elem.isEmpty()) continue;
+            manifestFile = service.iterateDriveFolder(manifestFile).get(elem);
+            if (manifestFile == null) throw new IOException(String.format("No %s in %s on drive", path, driveRootFolder));
+        }
+        if (!ChunkStore.isManifest(manifestFile.getMimeType())) {
+            throw new IOException(String.format("%s is not stored in chunks, download it as it is", path));
+        }
+        ChunkStore.Manifest manifest = ChunkStore.Manifest.read(new ByteArrayInputStream(service.downloadDriveFile(manifestFile)));
+        File chunkFolder = service.iterateDriveFolder(driveRoot).get(ChunkStore.FOLDER_NAME);
+        RemoteListing chunks = chunkFolder != null ? service.iterateDriveFolder(chunkFolder) : new RemoteListing();
+        return restore(manifest, new Chunks() {
+            public boolean contains(String hash) {
+                return chunks.contains(hash);
+            }
+
+            public byte[] read(String hash) throws IOException {
+                return service.downloadDriveFile(chunks.get(hash));
+            }
+        }, driveRootFolder + "/" + ChunkStore.FOLDER_NAME, outputFile);
+    }
+
+    private static long restore(ChunkStore.Manifest manifest, Chunks chunks, String chunkFolder, java.io.File outputFile) throws IOException {
+        Set<String> missing = new LinkedHashSet<>();
+        for (ChunkStore.Chunk chunk : manifest.getChunks()) {
+            if (!chunks.contains(chunk.getHash())) missing.add(chunk.getHash());
+        }
+        if (!missing.isEmpty()) {
+            throw new IOException(String.format("Missing %d chunks in %s: %s", missing.size(), chunkFolder, String.join(" ", missing)));
+        }
+        java.io.File tmpFile = new java.io.File(outputFile.getPath() + ".tmp");
+        long written = 0;
+        boolean complete = false;
+        try {
+            try (OutputStream out = new BufferedOutputStream(new FileOutputStream(tmpFile))) {
+                for (ChunkStore.Chunk chunk : manifest.getChunks()) {
+                    if (!chunks.contains(chunk.getHash())) {
+                        throw new IOException("Missing chunk " + chunk.getHash());
+                    }
+                    byte[] content = chunks.read(chunk.getHash());
+                    if (content.length != chunk.getLength() || !ChunkStore.sha256(content, content.length).equals(chunk.getHash())) {
+                        throw new IOException("Corrupt chunk " + chunk.getHash());
+                    }
+                    out.write(content);
+                    written += content.length;
+                }
+            }
+            if (written != manifest.getSize()) {
+                throw new IOException(String.format("Restored %d bytes, but the manifest lists %d", written, manifest.getSize()));
+            }
+            Files.move(tmpFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+            complete = true;
+        } finally {
+            //a file that is not complete is not left behind
+            if (!complete) Files.deleteIfExists(tmpFile.toPath());
+        }
+        return written;
+    }
+}
@@ -0,0 +1,355 @@
+package net.vonbrandis.gdrivesync;
+
+import com.google.api.services.drive.model.File;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stores large files on drive as content-addressed chunks and a manifest, so a file that grew at the end,
+ * or changed in a few places, only uploads the chunks that are new instead of the whole file.
+ * <p>
+ * Files are cut into chunks of a fixed size, each named by the SHA-256 of its content, and kept in the folder
+ * {@value #FOLDER_NAME} in the drive root of the sync, so a chunk is stored once however many files contain it.
+ * The manifest takes the place of the file in its drive folder, with its own mime type, and lists the chunks
+ * in order, together with the size and modification time the file had when it was read. The stored chunks are listed
+ * once per run. A manifest is only written once all its chunks are stored, also those another file is uploading.
+ * Chunks that no manifest refers to any more stay in place until they are {@link #sweep() swept}.
+ * {@link ChunkRestore} puts a file back together from its manifest and the chunks.
+ */
+public class ChunkStore {
+    public static final String FOLDER_NAME = ".gdrivesync-chunks";
+    public static final String MANIFEST_MIME_TYPE = "application/vnd.gdrivesync.chunks";
+    public static final int DEFAULT_CHUNK_SIZE = 4 * 1024 * 1024;
+    private static final long SWEEP_GRACE_PERIOD = TimeUnit.DAYS.toMillis(1);
+    private static final CompletableFuture<Void> STORED = CompletableFuture.completedFuture(null);
+
+    private final DriveBackend service;
+    private final Progress progress;
+    private final File driveRoot;
+    private final long threshold;
+    private final int chunkSize;
+    private long sweepGracePeriod = SWEEP_GRACE_PERIOD;
+    private File folder;
+    //the chunks on drive, and the uploads of chunks in progress, by name
+    private Map<String, CompletableFuture<Void>> stored;
+
+    public ChunkStore(DriveBackend service, Progress progress, File driveRoot, long threshold, int chunkSize) {
+        this.service = service;
+        this.progress = progress;
+        this.driveRoot = driveRoot;
+        this.threshold = threshold;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @return true if a file of this size is stored in chunks
+     */
+    public boolean accepts(long size) {
+        return size >= threshold;
+    }
+
+    public static boolean isManifest(String mimeType) {
+        return MANIFEST_MIME_TYPE.equals(mimeType);
+    }
+
+    /**
+     * Sets how old a chunk has to be before a sweep may delete it.
+     */
+    void setSweepGracePeriod(long millis) {
+        this.sweepGracePeriod = millis;
+    }
+
+    /**
+     * Uploads the chunks of a local file that are not on drive yet, then its manifest.
+     *
+     * @param existing the drive file to replace with the manifest, or null to create one
+     * @return the manifest on drive, or null in a dry run
+     */
+    public File store(File parentFolder, String name, File existing, java.io.File localFile) throws IOException {
+        long start = System.currentTimeMillis();
+        open();
+        //the time is taken before the content is read, so a change while it is read shows on the next run
+        Manifest manifest = new Manifest(localFile.length(), localFile.lastModified());
+        int uploadedChunks = 0;
+        long uploadedBytes = 0;
+        byte[] buffer = new byte[chunkSize];
+        try (InputStream in = new FileInputStream(localFile)) {
+            //a file that grows while it is read is stored up to the size it had at the start
+            long remaining = manifest.size;
+            while (remaining > 0) {
+                int length = readFully(in, buffer, (int) Math.min(chunkSize, remaining));
+                if (length == 0) throw new IOException("File shrank while it was read: " + localFile);
+                remaining -= length;
+                String hash = sha256(buffer, length);
+                manifest.chunks.add(new Chunk(hash, length));
+                if (!upload(hash, buffer, length)) continue;
+                uploadedChunks++;
+                uploadedBytes += length;
+            }
+        }
+        byte[] content = manifest.toBytes();
+        File result = existing != null
+                ? service.updateDriveFile(existing, MANIFEST_MIME_TYPE, content)
+                : service.createDriveFile(parentFolder, name, MANIFEST_MIME_TYPE, content);
+        progress.chunksStored(localFile, manifest.chunks.size(), uploadedChunks, uploadedBytes + content.length, System.currentTimeMillis() - start);
+        return result;
+    }
+
+    /**
+     * Uploads a chunk, unless it is stored. If another file is uploading it, waits until that upload is done,
+     * and tries again if it failed.
+     *
+     * @return true if the chunk was uploaded by this call
+     */
+    private boolean upload(String hash, byte[] buffer, int length) throws IOException {
+        while (true) {
+            CompletableFuture<Void> upload = new CompletableFuture<>();
+            CompletableFuture<Void> running = stored.putIfAbsent(hash, upload);
+            if (running == null) {
+                try {
+                    service.createDriveFile(folder, hash, GDrive.APPLICATION_OCTET_STREAM, length == buffer.length ? buffer : copy(buffer, length));
+                } catch (Throwable e) {
+                    //removed first, so a waiting file uploads the chunk itself
+                    stored.remove(hash, upload);
+                    upload.completeExceptionally(e);
+                    throw e;
+                }
+                upload.complete(null);
+                return true;
+            }
+            if (await(running)) return false;
+        }
+    }
+
+    /**
+     * @return true if the upload succeeded, false if it failed
+     */
+    private static boolean await(CompletableFuture<Void> upload) throws IOException {
+        try {
+            upload.get();
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting for a chunk upload", e);
+        } catch (ExecutionException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Downloads the manifest of a file, and checks that it was written for the file as it is now.
+     *
+     * @return false if the size or modification time of the file changed since, or the manifest does not record them
+     */
+    public boolean isCurrent(File manifestFile, LocalEntry localFile) throws IOException {
+        Manifest manifest = readManifest(manifestFile);
+        return manifest.size == localFile.getSize() && manifest.modified == localFile.getLastModified();
+    }
+
+    private Manifest readManifest(File manifestFile) throws IOException {
+        return Manifest.read(new ByteArrayInputStream(service.downloadDriveFile(manifestFile)));
+    }
+
+    /**
+     * Deletes the chunks that no manifest refers to. The manifests are found by their mime type anywhere on the drive,
+     * so those of other syncs keep their chunks as well, and so do those in the trash, which may still be restored. Chunks younger than a day are kept, as another run may be
+     * uploading the chunks of a manifest it has not written yet. Nothing is deleted if a manifest cannot be read.
+     *
+     * @return the number of chunks deleted
+     */
+    public int sweep() throws IOException {
+        open();
+        //a dry run that found no chunk folder
+        if (folder.getId().isEmpty()) return 0;
+        List<File> manifests = new ArrayList<>();
+        service.listFilesByMimeType(MANIFEST_MIME_TYPE, manifests::add);
+        Set<String> referenced = new HashSet<>();
+        for (File manifestFile : manifests) {
+            Manifest manifest;
+            try {
+                manifest = readManifest(manifestFile);
+            } catch (IOException e) {
+                throw new IOException("Could not read the manifest of " + manifestFile.getTitle() + ", no chunks deleted", e);
+            }
+            manifest.chunks.forEach(chunk -> referenced.add(chunk.hash));
+        }
+        RemoteListing chunks = service.iterateDriveFolder(folder);
+        long cutoff = System.currentTimeMillis() - sweepGracePeriod;
+        int deleted = 0;
+        for (int c = 0; c < chunks.size(); c++) {
+            String hash = chunks.getTitle(c);
+            if (referenced.contains(hash) || chunks.getModified(c) > cutoff) continue;
+            progress.chunkDeleted(hash, chunks.getSize(c));
+            service.deleteDriveFile(chunks.toDriveFile(c));
+            stored.remove(hash);
+            deleted++;
+        }
+        progress.debug("Found %d manifests referring to %d chunks, deleted %d of %d stored chunks",
+                manifests.size(), referenced.size(), deleted, chunks.size());
+        return deleted;
+    }
+
+    /**
+     * Finds or creates the chunk folder, and lists the chunks in it.
+     */
+    private synchronized void open() throws IOException {
+        if (stored != null) return;
+        RemoteListing rootListing = service.iterateDriveFolder(driveRoot);
+        int i = rootListing.indexOf(FOLDER_NAME);
+        if (i >= 0 && rootListing.isFolder(i)) {
+            folder = rootListing.toDriveFile(i);
+        } else {
+            progress.createDirectory(driveRoot.getTitle() + "/" + FOLDER_NAME);
+            folder = service.createDriveFolder(driveRoot, FOLDER_NAME);
+        }
+        Map<String, CompletableFuture<Void>> names = new ConcurrentHashMap<>();
+        if (folder != null) {
+            RemoteListing chunks = service.iterateDriveFolder(folder);
+            for (int c = 0; c < chunks.size(); c++) {
+                names.put(chunks.getTitle(c), STORED);
+            }
+            progress.debug("Found %d stored chunks", names.size());
+        } else {
+            //a dry run creates no folder, so there is nothing to upload into either
+            folder = new File().setId("").setTitle(FOLDER_NAME);
+        }
+        stored = names;
+    }
+
+    private static int readFully(InputStream in, byte[] buffer, int length) throws IOException {
+        int read = 0;
+        while (read < length) {
+            int n = in.read(buffer, read, length - read);
+            if (n < 0) break;
+            read += n;
+        }
+        return read;
+    }
+
+    private static byte[] copy(byte[] buffer, int length) {
+        byte[] result = new byte[length];
+        System.arraycopy(buffer, 0, result, 0, length);
+        return result;
+    }
+
+    static String sha256(byte[] buffer, int length) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(buffer, 0, length);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    public static class Chunk {
+        private final String hash;
+        private final int length;
+
+        Chunk(String hash, int length) {
+            this.hash = hash;
+            this.length = length;
+        }
+
+        public String getHash() {
+            return hash;
+        }
+
+        public int getLength() {
+            return length;
+        }
+    }
+
+    /**
+     * The size and modification time of a file and its chunks in order, stored as text: a header line,
+     * a size line, a modified line, and a line with the hash and length of each chunk.
+     * Manifests of the first version have no modified line.
+     */
+    public static class Manifest {
+        private static final String HEADER = "gdrivesync-chunks 2";
+        private static final String HEADER_V1 = "gdrivesync-chunks 1";
+
+        private final long size;
+        private final long modified;
+        private final List<Chunk> chunks = new ArrayList<>();
+
+        /**
+         * @param modified the modification time of the file, or -1 if it is not known
+         */
+        Manifest(long size, long modified) {
+            this.size = size;
+            this.modified = modified;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getModified() {
+            return modified;
+        }
+
+        public List<Chunk> getChunks() {
+            return Collections.unmodifiableList(chunks);
+        }
+
+        byte[] toBytes() {
+            StringBuilder sb = new StringBuilder(HEADER).append('\n');
+            sb.append("size ").append(size).append('\n');
+            sb.append("modified ").append(modified).append('\n');
+            for (Chunk chunk : chunks) {
+                sb.append(chunk.hash).append(' ').append(chunk.length).append('\n');
+            }
+            return sb.toString().getBytes(StandardCharsets.UTF_8);
+        }
+
+        public static Manifest read(InputStream in) throws IOException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+            String header = reader.readLine();
+            if (!HEADER.equals(header) && !HEADER_V1.equals(header)) {
+                throw new IOException("Not a chunk manifest");
+            }
+            long size = Long.parseLong(field(reader.readLine(), "size"));
+            long modified = HEADER.equals(header) ? Long.parseLong(field(reader.readLine(), "modified")) : -1;
+            Manifest manifest = new Manifest(size, modified);
+            String line;
+            while ((line = reader.readLine()) != null) {
+                if (line.isEmpty()) continue;
+                String[] fields = line.split(" ");
+                if (fields.length != 2) throw new IOException("Invalid chunk line in manifest: " + line);
+                manifest.chunks.add(new Chunk(fields[0], Integer.parseInt(fields[1])));
+            }
+            return manifest;
+        }
+
+        private static String field(String line, String name) throws IOException {
+            if (line == null || !line.startsWith(name + " ")) {
+                throw new IOException("Chunk manifest without " + name);
+            }
+            return line.substring(name.length() + 1);
+        }
+    }
+}
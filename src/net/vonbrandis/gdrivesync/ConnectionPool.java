@@ -0,0 +1,64 @@
+package net.vonbrandis.gdrivesync;
+
+import com.google.api.client.http.HttpTransport;
+import com.google.api.client.http.apache.v2.ApacheHttpTransport;
+import org.apache.http.config.SocketConfig;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.apache.http.pool.PoolStats;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An HTTP transport on a pool of keep-alive connections, for many transfers in parallel.
+ * The default transport goes through HttpURLConnection, which keeps only a few idle connections per host,
+ * so parallel uploads keep opening new TLS connections. All drive requests go to the same host, so the
+ * pool allows as many connections to one host as in total. Sockets get a large send buffer, so an upload
+ * is not held back by a small TCP window on a long round trip.
+ */
+public class ConnectionPool {
+    private static final int SEND_BUFFER_SIZE = 1024 * 1024;
+    private static final int VALIDATE_AFTER_INACTIVITY = 2000;
+    private static final long IDLE_TIMEOUT_SECONDS = 30;
+
+    private final PoolingHttpClientConnectionManager connections;
+    private final HttpTransport transport;
+
+    public ConnectionPool(int maxConnections) {
+        connections = new PoolingHttpClientConnectionManager();
+        connections.setMaxTotal(maxConnections);
+        connections.setDefaultMaxPerRoute(maxConnections);
+        connections.setValidateAfterInactivity(VALIDATE_AFTER_INACTIVITY);
+        connections.setDefaultSocketConfig(SocketConfig.custom()
+                .setSndBufSize(SEND_BUFFER_SIZE)
+                .setTcpNoDelay(true)
+                .setSoKeepAlive(true)
+                .build());
+        CloseableHttpClient client = HttpClientBuilder.create()
+                .setConnectionManager(connections)
+                .useSystemProperties()
+                //redirects and retries are left to the google client and the rate limiter
+                .disableRedirectHandling()
+                .disableAutomaticRetries()
+                .evictIdleConnections(IDLE_TIMEOUT_SECONDS, TimeUnit.SECONDS)
+                .build();
+        transport = new ApacheHttpTransport(client);
+    }
+
+    public HttpTransport getTransport() {
+        return transport;
+    }
+
+    /**
+     * @return the number of connections in use, idle and at most allowed, and of requests waiting for a connection
+     */
+    public PoolStats getStats() {
+        return connections.getTotalStats();
+    }
+
+    public void close() throws IOException {
+        transport.shutdown();
+    }
+}
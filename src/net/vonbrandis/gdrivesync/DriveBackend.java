@@ -0,0 +1,75 @@
+package net.vonbrandis.gdrivesync;
+
+import com.google.api.services.drive.model.File;
+
+import java.io.IOException;
+import java.util.function.Consumer;
+
+/**
+ * The drive operations the synchronizer depends on. GDrive implements them against the
+ * Google Drive API, SimulatedDrive keeps an in-memory drive for benchmarks and offline runs.
+ */
+public interface DriveBackend extends ChangeFeed {
+
+    File fetchFolderByID(String parentFolderID, String name) throws IOException;
+
+    /**
+     * @return the file with the id, with its parents and trashed label, or null if there is none
+     */
+    File fetchFileByID(String id) throws IOException;
+
+    RemoteListing iterateDriveFolder(File parentFolder) throws IOException;
+
+    /**
+     * Passes every non-trashed file to the consumer.
+     */
+    void listAllFiles(Consumer<File> consumer) throws IOException;
+
+    /**
+     * Passes every file of the mime type, anywhere on the drive and trashed or not, to the consumer.
+     */
+    void listFilesByMimeType(String mimeType, Consumer<File> consumer) throws IOException;
+
+    File createDriveFolder(File parentFolder, String name) throws IOException;
+
+    File createDriveFile(File parentFolder, String driveFileName, java.io.File localFile) throws IOException;
+
+    File updateDriveFile(File driveFile, java.io.File localFile) throws IOException;
+
+    /**
+     * Uploads content held in memory, such as a chunk or a manifest.
+     */
+    default File createDriveFile(File parentFolder, String driveFileName, String mimeType, byte[] content) throws IOException {
+        return createDriveFile(parentFolder, driveFileName, mimeType, content, content.length);
+    }
+
+    /**
+     * Uploads the first bytes of a buffer, such as a compressed segment.
+     */
+    File createDriveFile(File parentFolder, String driveFileName, String mimeType, byte[] content, int length) throws IOException;
+
+    /**
+     * Replaces the content of a file with content held in memory, and sets its mime type.
+     */
+    File updateDriveFile(File driveFile, String mimeType, byte[] content) throws IOException;
+
+    /**
+     * Downloads the content of a small file, such as a manifest, into memory.
+     */
+    byte[] downloadDriveFile(File driveFile) throws IOException;
+
+    void deleteDriveFile(File driveFile) throws IOException;
+
+    File trashDriveFile(File driveFile) throws IOException;
+
+    File renameDriveFile(File driveFile, String title) throws IOException;
+
+    /**
+     * Moves a file or folder into another folder under the given title, without touching its content.
+     *
+     * @return the moved file, or null if the file no longer exists
+     */
+    File moveDriveFile(File driveFile, File parentFolder, String title) throws IOException;
+
+    MetadataBatch newMetadataBatch(int batchSize);
+}
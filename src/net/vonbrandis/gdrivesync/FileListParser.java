@@ -0,0 +1,142 @@
+package net.vonbrandis.gdrivesync;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.JsonParser;
+import com.google.api.client.json.JsonToken;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.ParentReference;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Reads a page of a files.list response token by token, and hands every item on as soon as it is read.
+ * Parsing into a FileList goes through reflection into generic maps, and holds the whole page, with every
+ * field of every file, until the last item is read; here only the fields the sync uses are read, into
+ * one reused Item, and everything else is skipped.
+ */
+public class FileListParser {
+
+    /**
+     * The fields of a listed file. An item is reused for the next file once the consumer returns.
+     */
+    public static class Item {
+        String id;
+        String title;
+        String mimeType;
+        long size;
+        long modified;
+        String md5;
+        final List<String> parents = new ArrayList<>();
+
+        private void clear() {
+            id = null;
+            title = null;
+            mimeType = null;
+            size = -1;
+            modified = -1;
+            md5 = null;
+            parents.clear();
+        }
+
+        public void addTo(RemoteListing listing) {
+            listing.add(title, id, mimeType, size, modified, md5);
+        }
+
+        public File toDriveFile() {
+            File file = new File().setId(id).setTitle(title).setMimeType(mimeType).setMd5Checksum(md5);
+            if (size >= 0) file.setFileSize(size);
+            if (modified >= 0) file.setModifiedDate(new DateTime(modified));
+            List<ParentReference> parentReferences = new ArrayList<>(parents.size());
+            for (String parent : parents) {
+                parentReferences.add(new ParentReference().setId(parent));
+            }
+            return file.setParents(parentReferences);
+        }
+    }
+
+    private FileListParser() {
+    }
+
+    /**
+     * @return the token of the next page, or null on the last page
+     */
+    public static String parse(JsonFactory jsonFactory, InputStream in, Consumer<Item> consumer) throws IOException {
+        String nextPageToken = null;
+        Item item = new Item();
+        try (JsonParser parser = jsonFactory.createJsonParser(in)) {
+            expect(parser.nextToken(), JsonToken.START_OBJECT);
+            while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                String field = parser.getText();
+                JsonToken value = parser.nextToken();
+                if (field.equals("nextPageToken") && value == JsonToken.VALUE_STRING) {
+                    nextPageToken = parser.getText();
+                } else if (field.equals("items") && value == JsonToken.START_ARRAY) {
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        item.clear();
+                        parseItem(parser, item);
+                        consumer.accept(item);
+                    }
+                } else {
+                    parser.skipChildren();
+                }
+            }
+        }
+        return nextPageToken != null && !nextPageToken.isEmpty() ? nextPageToken : null;
+    }
+
+    private static void parseItem(JsonParser parser, Item item) throws IOException {
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getText();
+            JsonToken value = parser.nextToken();
+            if (value == JsonToken.VALUE_NULL) continue;
+            switch (field) {
+                case "id":
+                    item.id = parser.getText();
+                    break;
+                case "title":
+                    item.title = parser.getText();
+                    break;
+                case "mimeType":
+                    item.mimeType = parser.getText();
+                    break;
+                case "fileSize":
+                    //int64 values are sent as strings
+                    item.size = Long.parseLong(parser.getText());
+                    break;
+                case "modifiedDate":
+                    item.modified = DateTime.parseRfc3339(parser.getText()).getValue();
+                    break;
+                case "md5Checksum":
+                    item.md5 = parser.getText();
+                    break;
+                case "parents":
+                    expect(value, JsonToken.START_ARRAY);
+                    while (parser.nextToken() == JsonToken.START_OBJECT) {
+                        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+                            String parentField = parser.getText();
+                            parser.nextToken();
+                            if (parentField.equals("id")) {
+                                item.parents.add(parser.getText());
+                            } else {
+                                parser.skipChildren();
+                            }
+                        }
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+    }
+
+    private static void expect(JsonToken actual, JsonToken expected) throws IOException {
+        if (actual != expected) {
+            throw new IOException("Unexpected " + actual + " in file listing, expected " + expected);
+        }
+    }
+}
@@ -3,154 +3,481 @@ package net.vonbrandis.gdrivesync;
 import com.google.api.services.drive.model.File;
 
 import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
 import java.util.*;
 
 import static java.lang.String.format;
 
 public class FolderSynchronizer {
-    private GDrive service;
+    private SyncContext context;
+    private DriveBackend service;
     private Progress progress;
+    private TransferExecutor transfers;
+    private SyncState state;
+    private ChecksumCache checksums;
+    private MoveDetector moveDetector;
+    private ChunkStore chunkStore;
+    private PackStore packStore;
+    private boolean packed;
     private java.io.File localFolder;
+    private long folderModified;
+    private Object folderKey;
     private File driveFolder;
+    private boolean newFolder;
+    private IgnoreRules parentIgnoreRules;
+    private IgnoreRules ignoreRules;
 
-    private Collection<java.io.File> missing = new ArrayList<>();
+    private Collection<LocalEntry> missing = new ArrayList<>();
     private Collection<String> locallyRemoved = new ArrayList<>();
-    private Collection<java.io.File> inSyncFiles = new ArrayList<>();
-    private Collection<java.io.File> outdated = new ArrayList<>();
-    private Collection<java.io.File> subfolders = new ArrayList<>();
-    private Map<String, File> driveFileMap = new HashMap<>();
-    private Map<String, java.io.File> localFileMap = new HashMap<>();
-
-    public FolderSynchronizer(GDrive service, Progress progress, java.io.File localFolder, File driveFolder) {
-        this.service = service;
-        this.progress = progress;
+    private Set<String> ignored = new HashSet<>();
+    private int inSyncCount;
+    private Collection<LocalEntry> inSyncFiles = new ArrayList<>();
+    private int outdatedCount;
+    private Collection<LocalEntry> subfolders = new ArrayList<>();
+    private Set<String> newSubfolders = new HashSet<>();
+    private List<LocalEntry> checksumCandidates = new ArrayList<>();
+    private List<LocalEntry> packedFiles = new ArrayList<>();
+    private RemoteListing driveFiles;
+    //drive folders created or moved into place in this run
+    private Map<String, File> newDriveFolders = new HashMap<>();
+    private Set<String> localNames = new HashSet<>();
+    private List<LocalEntry> localFiles;
+
+    public FolderSynchronizer(SyncContext context, java.io.File localFolder, File driveFolder) {
+        this(context, localFolder, localFolder.lastModified(), fileKey(localFolder), driveFolder);
+    }
+
+    /**
+     * @param folderModified the modification time of the local folder, as read when its parent was scanned
+     * @param folderKey      the file key of the local folder, or null
+     */
+    private FolderSynchronizer(SyncContext context, java.io.File localFolder, long folderModified, Object folderKey, File driveFolder) {
+        this.context = context;
+        this.service = context.getService();
+        this.progress = context.getProgress();
+        this.transfers = context.getTransfers();
+        this.state = context.getState();
+        this.checksums = context.getChecksums();
+        this.moveDetector = context.getMoveDetector();
+        this.chunkStore = context.getChunkStore();
+        this.packStore = context.getPackStore();
         this.localFolder = localFolder;
+        this.folderModified = folderModified;
+        this.folderKey = folderKey;
         this.driveFolder = driveFolder;
     }
 
-    public void sync() throws IOException {
-        //first, create a map of remote names to gdrive file objects
-        progress.debug("<<< Iterating drive folder %s", driveFolder.getTitle());
-        service.iterateDriveFolder(driveFolder).forEach(f -> driveFileMap.put(f.getTitle(), f));
-        //then iterate local files, and synchronize them
-        iterateLocalFolder(localFolder).forEach(this::sync);
+    /**
+     * Synchronizes the files of this folder in one go, on the calling thread.
+     *
+     * @return synchronizers for the subfolders
+     */
+    public List<FolderSynchronizer> sync() throws IOException {
+        scanLocalFolder();
+        fetchDriveFolder();
+        return synchronize();
+    }
+
+    /**
+     * First pipeline stage: lists the local folder if the sync state may replace the drive listing.
+     * Otherwise the local files are streamed from the directory into the diff, which hands outdated files
+     * to the transfer executor while the rest of the folder is read.
+     */
+    public void scanLocalFolder() throws IOException {
+        if (state != null && state.isFolderUnchanged(localFolder, folderModified)) {
+            localFiles = LocalScanner.list(localFolder, this::unreadable);
+        }
+    }
+
+    /**
+     * Second pipeline stage: lists the drive folder,
+     * from the sync state if the folder is unchanged since the last sync, from drive otherwise.
+     */
+    public void fetchDriveFolder() throws IOException {
+        //the ignore rules of the folder decide from here on which local files take part
+        loadIgnoreRules();
+        packed = packStore != null && packStore.isPacked(localFolder);
+        if (localFiles != null && isUnchangedSinceLastSync(localFiles)) {
+            progress.debug("=== Folder %s unchanged since last sync", localFolder);
+            driveFiles = new RemoteListing(localFiles.size());
+            localFiles.stream().filter(f -> !isHidden(f) && !isIgnored(f)).forEach(f -> {
+                SyncState.Entry entry = state.get(f.getFile());
+                driveFiles.add(f.getName(), entry.getDriveId(), entry.isFolder() ? GDrive.APPLICATION_VND_GOOGLE_APPS_FOLDER : GDrive.APPLICATION_OCTET_STREAM,
+                        entry.getSize(), entry.getRemoteModified(), entry.getMd5Checksum());
+            });
+        } else {
+            progress.debug("<<< Iterating drive folder %s", driveFolder.getTitle());
+            driveFiles = context.listDriveFolder(driveFolder);
+        }
+    }
+
+    /**
+     * Last pipeline stage: diffs the folder, hands uploads to the transfer executor and applies
+     * folder creations and moves. Deletions are left to the move detector, which runs them once
+     * the whole tree has been compared.
+     *
+     * @return synchronizers for the subfolders
+     */
+    public List<FolderSynchronizer> synchronize() throws IOException {
+        //iterate local files, and synchronize them
+        try {
+            if (localFiles != null) {
+                localFiles.forEach(this::sync);
+            } else {
+                LocalScanner.scan(localFolder, this::sync, this::unreadable);
+            }
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        localFiles = null;
+        //settle files that only look outdated by their modification time
+        compareChecksums();
+        //the segments and index in use stay, all other segments and indexes are locally removed
+        PackStore.Plan plan = packed ? packStore.plan(packedFiles) : null;
+        if (plan != null) localNames.addAll(plan.getNames());
         //finally, look for remote files that are locally removed
-        driveFileMap.keySet().stream().filter(name -> !localFileMap.containsKey(name)).forEach(locallyRemoved::add);
+        //remote files whose local file is ignored are left alone
+        for (int i = 0; i < driveFiles.size(); i++) {
+            String name = driveFiles.getTitle(i);
+            //the chunk folder has no local counterpart
+            if (!localNames.contains(name) && !ignored.contains(name) && !name.equals(ChunkStore.FOLDER_NAME)) locallyRemoved.add(name);
+        }
         //summary
         progress.folderSummary("Folder %s:\n %5d insync, %5d missing - %5d outdated - %3d locally removed - %3d subdirs"
-                , this.localFolder, inSyncFiles.size(), missing.size(), outdated.size(), locallyRemoved.size(), subfolders.size());
+                , this.localFolder, inSyncCount, missing.size(), outdatedCount, locallyRemoved.size(), subfolders.size());
 
-        //upload missing files
-        handleMissingFiles();
-        //refresh outdated files
-        handleOutdatedFiles();
-        //delete locally removed files
+        //hand locally removed files over for deletion, before moved files are looked up
         handleLocallyRemovedFiles();
-        //sync subfolders
-        syncSubfolders();
+        //move or upload missing files, outdated files are already refreshed
+        handleMissingFiles();
+        //upload the segments of packed files that changed
+        if (plan != null && !progress.isCancelled()) {
+            packStore.upload(driveFolder, localFolder, plan, driveFiles::contains, transfers);
+        }
+        //remember what is in sync for the next run
+        if (state != null) {
+            for (LocalEntry f : inSyncFiles) {
+                state.fileSynced(f, getDriveFile(f.getName()));
+            }
+            state.folderSynced(localFolder, driveFolder, folderModified, folderKey);
+        }
+        //hand back subfolders
+        List<FolderSynchronizer> result = subfolderSynchronizers();
+        //queued transfers hold on to this synchronizer until they are done, but need none of the listings
+        driveFiles = null;
+        newDriveFolders = null;
+        localNames = null;
+        ignored = null;
+        missing = null;
+        inSyncFiles = null;
+        subfolders = null;
+        newSubfolders = null;
+        checksumCandidates = null;
+        packedFiles = null;
+        return result;
+    }
+
+    /**
+     * @return true if the drive folder was created, or moved into place, by the parent's synchronizer in this run
+     */
+    public boolean isNewFolder() {
+        return newFolder;
+    }
+
+    /**
+     * A folder can be diffed against the sync state instead of drive when neither the folder
+     * nor any of its files changed since the last completed sync.
+     */
+    private boolean isUnchangedSinceLastSync(List<LocalEntry> localFiles) {
+        //the segments of a packed folder are not in the sync state
+        if (packed || state == null || !state.isFolderUnchanged(localFolder, folderModified)) return false;
+        return localFiles.stream().filter(f -> !isHidden(f) && !isIgnored(f)).allMatch(state::isFileUnchanged);
+    }
+
+    private void loadIgnoreRules() throws IOException {
+        if (ignoreRules != null || context.getIgnoreRules() == null) return;
+        ignoreRules = parentIgnoreRules != null ? parentIgnoreRules.forSubfolder(localFolder) : context.getIgnoreRules().forFolder(localFolder);
+    }
+
+    private boolean isIgnored(LocalEntry localFile) {
+        return ignoreRules != null && ignoreRules.isIgnored(localFile);
+    }
+
+    private static Object fileKey(java.io.File folder) {
+        try {
+            return Files.readAttributes(folder.toPath(), BasicFileAttributes.class).fileKey();
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    /**
+     * A file that can not be read, like a broken link, is left alone on drive rather than taken as locally removed.
+     */
+    private void unreadable(java.nio.file.Path path, IOException e) {
+        progress.log("!!! Could not read %s (%s), leaving it alone on drive", path, e);
+        ignored.add(path.getFileName().toString());
+    }
+
+    private static boolean isHidden(LocalEntry localFile) {
+        return localFile.getName().startsWith(".");
     }
 
-    private void sync(java.io.File localFile) {
+    private void sync(LocalEntry localFile) {
         //skip hidden files
-        if (localFile.getName().startsWith(".")) {
+        if (isHidden(localFile)) {
             progress.debug("Skipping %s", localFile);
             return;
         }
-        localFileMap.put(localFile.getName(), localFile);
+        //skip ignored files, and everything below ignored folders
+        if (isIgnored(localFile)) {
+            progress.debug("Ignoring %s", localFile);
+            ignored.add(localFile.getName());
+            return;
+        }
+        //small files of a packed folder go into segments, and their drive copies are locally removed
+        if (packed && packStore.accepts(localFile)) {
+            packedFiles.add(localFile);
+            return;
+        }
+        localNames.add(localFile.getName());
 
-        if (!driveFileMap.containsKey(localFile.getName())) {
+        int i = driveFiles.indexOf(localFile.getName());
+        if (i < 0) {
             if (localFile.isDirectory()) {
                 subfolders.add(localFile);
+                newSubfolders.add(localFile.getName());
             }
             missing.add(localFile);
         } else {
-            File driveFile = driveFileMap.get(localFile.getName());
             if (localFile.isDirectory()) {
                 subfolders.add(localFile);
-                if (!driveFile.getMimeType().equals(GDrive.APPLICATION_VND_GOOGLE_APPS_FOLDER)) {
+                if (!driveFiles.isFolder(i)) {
                     throw new RuntimeException(format("Folder %s is not a folder in drive!", localFile));
                 }
-            } else if (isOutdated(driveFile, localFile)) {
-                outdated.add(localFile);
+            } else if (isOutdated(i, localFile)) {
+                if (needsChecksum(i, localFile)) {
+                    checksumCandidates.add(localFile);
+                } else {
+                    try {
+                        refresh(localFile);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }
+            } else if (needsManifestCheck(i, localFile)) {
+                try {
+                    checkManifest(localFile);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
             } else {
-                inSyncFiles.add(localFile);
+                inSync(localFile);
+            }
+        }
+    }
+
+    /**
+     * In checksum mode, a file of the same size that is only newer than its drive copy is compared by MD5,
+     * so a touched or restored file is not uploaded again.
+     */
+    private boolean needsChecksum(int driveIndex, LocalEntry localFile) {
+        return checksums != null && driveFiles.getMd5Checksum(driveIndex) != null && driveFiles.getSize(driveIndex) == localFile.getSize();
+    }
+
+    private void inSync(LocalEntry localFile) {
+        inSyncCount++;
+        //the entries are only needed to record them in the sync state
+        if (state != null) inSyncFiles.add(localFile);
+    }
+
+    private void compareChecksums() throws IOException {
+        if (checksumCandidates.isEmpty()) return;
+        List<java.io.File> candidateFiles = new ArrayList<>();
+        checksumCandidates.forEach(f -> candidateFiles.add(f.getFile()));
+        Map<java.io.File, String> localChecksums = checksums.md5(candidateFiles);
+        for (LocalEntry f : checksumCandidates) {
+            if (localChecksums.get(f.getFile()).equals(driveFiles.getMd5Checksum(driveFiles.indexOf(f.getName())))) {
+                inSync(f);
+            } else {
+                refresh(f);
             }
         }
     }
 
     private File getDriveFile(String name) {
-        if (!driveFileMap.containsKey(name)) throw new RuntimeException("No such item: " + name);
-        return driveFileMap.get(name);
+        File driveFile = newDriveFolders.get(name);
+        if (driveFile == null) driveFile = driveFiles.get(name);
+        if (driveFile == null) throw new RuntimeException("No such item: " + name);
+        return driveFile;
     }
 
-    private void syncSubfolders() throws IOException {
-        for (java.io.File dir : subfolders) {
+    private List<FolderSynchronizer> subfolderSynchronizers() {
+        List<FolderSynchronizer> result = new ArrayList<>();
+        for (LocalEntry dir : subfolders) {
             if (progress.isCancelled()) {
-                return;
+                break;
             }
             File driveFolder = getDriveFile(dir.getName());
-            new FolderSynchronizer(service, progress, dir, driveFolder).sync();
+            FolderSynchronizer subfolder = new FolderSynchronizer(context, dir.getFile(), dir.getLastModified(), dir.getFileKey(), driveFolder);
+            subfolder.newFolder = newSubfolders.contains(dir.getName());
+            subfolder.parentIgnoreRules = ignoreRules;
+            result.add(subfolder);
         }
+        return result;
     }
 
-    private void handleLocallyRemovedFiles() throws IOException {
+    private void handleLocallyRemovedFiles() {
         for (String name : locallyRemoved) {
-            if (progress.isCancelled()) {
-                return;
-            }
-            File driveFile = getDriveFile(name);
-            progress.deleteFile(driveFile.getTitle());
-            service.deleteDriveFile(driveFile);
+            moveDetector.removed(new java.io.File(localFolder, name), getDriveFile(name));
         }
     }
 
-    private void handleOutdatedFiles() throws IOException {
-        for (java.io.File f : outdated) {
-            if (progress.isCancelled()) {
+    /**
+     * Queues the upload of an outdated file, as soon as it is found.
+     */
+    private void refresh(LocalEntry f) throws IOException {
+        outdatedCount++;
+        if (progress.isCancelled()) {
+            return;
+        }
+        File driveFile = getDriveFile(f.getName());
+        if (storesInChunks(f)) {
+            transfers.submit(f, () -> storeInChunks(f, driveFile));
+            return;
+        }
+        transfers.submit(f, () -> update(f, driveFile));
+    }
+
+    private void update(LocalEntry f, File driveFile) throws IOException {
+        if (ChunkStore.isManifest(driveFile.getMimeType())) {
+            //the file is uploaded as a whole again, in place of its manifest
+            driveFile.setMimeType(GDrive.APPLICATION_OCTET_STREAM);
+        }
+        long start = System.currentTimeMillis();
+        progress.updateFile(driveFile, f.getFile());
+        File updated = service.updateDriveFile(driveFile, f.getFile());
+        long elapsed = System.currentTimeMillis() - start;
+        progress.fileUpdated(driveFile, f.getFile(), elapsed);
+        if (state != null && updated != null) state.fileSynced(f, updated);
+    }
+
+    /**
+     * A manifest is written after its file was read, so its date does not show a change of the file, and it has a size
+     * of its own. It records the size and modification time of the file instead, and is downloaded to compare them,
+     * unless the sync state shows that neither the file nor the manifest changed since the last sync.
+     */
+    private boolean needsManifestCheck(int driveIndex, LocalEntry localFile) {
+        if (chunkStore == null || !ChunkStore.isManifest(driveFiles.getMimeType(driveIndex))) return false;
+        if (state == null || !state.isFileUnchanged(localFile)) return true;
+        SyncState.Entry entry = state.get(localFile.getFile());
+        return !entry.getDriveId().equals(driveFiles.getId(driveIndex)) || entry.getRemoteModified() != driveFiles.getModified(driveIndex);
+    }
+
+    /**
+     * Queues the download of a manifest, which stores the file again if it changed since the manifest was written.
+     * It is counted as in sync, as most are.
+     */
+    private void checkManifest(LocalEntry f) throws IOException {
+        inSyncCount++;
+        if (progress.isCancelled()) {
+            return;
+        }
+        File driveFile = getDriveFile(f.getName());
+        transfers.submit(f, () -> {
+            if (chunkStore.isCurrent(driveFile, f)) {
+                if (state != null) state.fileSynced(f, driveFile);
                 return;
             }
-            File driveFile = getDriveFile(f.getName());
-            long start = System.currentTimeMillis();
-            progress.updateFile(driveFile, f);
-            service.updateDriveFile(driveFile, f);
-            long elapsed = System.currentTimeMillis() - start;
-            progress.fileUpdated(driveFile, f, elapsed);
-        }
+            progress.debug("%s changed since its manifest was written", f.getFile());
+            //already on a transfer thread, which must not wait for a free one
+            if (storesInChunks(f)) {
+                storeInChunks(f, driveFile);
+            } else {
+                update(f, driveFile);
+            }
+        });
     }
 
     private void handleMissingFiles() throws IOException {
-        for (java.io.File f : missing) {
+        MetadataBatch batch = service.newMetadataBatch(context.getBatchSize());
+        for (LocalEntry f : missing) {
             if (progress.isCancelled()) {
                 return;
             }
 
-            File remoteFile;
-            if (f.isDirectory()) {
+            MoveDetector.Source source = moveDetector.findSource(f);
+            if (source != null) {
+                move(batch, f, source);
+            } else if (f.isDirectory()) {
                 progress.createDirectory(driveFolder.getTitle() + "/" + f.getName());
-                remoteFile = service.createDriveFolder(this.driveFolder, f.getName());
+                batch.createFolder(this.driveFolder, f.getName(), remoteFolder -> {
+                    if (remoteFolder != null) newDriveFolders.put(f.getName(), remoteFolder);
+                });
             } else {
-                progress.createFile(f, driveFolder);
-                long start = System.currentTimeMillis();
-                remoteFile = service.createDriveFile(this.driveFolder, f.getName(), f);
-                long elapsed = System.currentTimeMillis() - start;
-                progress.fileCreated(f, driveFolder, elapsed);
+                upload(f);
             }
-            if (remoteFile != null) driveFileMap.put(f.getName(), remoteFile);
         }
+        //folders are created and moved before this folder is done, so they exist before their children are synchronized
+        batch.flush();
     }
 
+    private void move(MetadataBatch batch, LocalEntry f, MoveDetector.Source source) throws IOException {
+        progress.moveFile(source.getLocalFile(), f.getFile());
+        batch.move(source.getDriveFile(), this.driveFolder, f.getName(), moved -> {
+            if (moved != null) {
+                if (f.isDirectory()) {
+                    newDriveFolders.put(f.getName(), moved);
+                } else if (state != null) {
+                    state.fileSynced(f, moved);
+                }
+            } else if (f.isDirectory()) {
+                //the drive folder is gone after all
+                progress.createDirectory(driveFolder.getTitle() + "/" + f.getName());
+                File remoteFolder = service.createDriveFolder(this.driveFolder, f.getName());
+                if (remoteFolder != null) newDriveFolders.put(f.getName(), remoteFolder);
+            } else {
+                upload(f);
+            }
+        });
+    }
+
+    private void upload(LocalEntry f) throws IOException {
+        if (storesInChunks(f)) {
+            transfers.submit(f, () -> storeInChunks(f, null));
+            return;
+        }
+        transfers.submit(f, () -> {
+            progress.createFile(f.getFile(), driveFolder);
+            long start = System.currentTimeMillis();
+            File remoteFile = service.createDriveFile(this.driveFolder, f.getName(), f.getFile());
+            long elapsed = System.currentTimeMillis() - start;
+            progress.fileCreated(f.getFile(), driveFolder, elapsed);
+            if (remoteFile != null && state != null) state.fileSynced(f, remoteFile);
+        });
+    }
+
+    private boolean storesInChunks(LocalEntry f) {
+        return chunkStore != null && chunkStore.accepts(f.getSize());
+    }
 
-    private List<java.io.File> iterateLocalFolder(java.io.File folder) {
-        java.io.File[] files = folder.listFiles();
-        if (files == null) return new ArrayList<>();
-        return Arrays.asList(files);
+    /**
+     * @param existing the drive file to replace, or null
+     */
+    private void storeInChunks(LocalEntry f, File existing) throws IOException {
+        File manifest = chunkStore.store(driveFolder, f.getName(), existing, f.getFile());
+        if (state != null && manifest != null) state.fileSynced(f, manifest);
     }
 
-    private boolean isOutdated(File driveFile, java.io.File localFile) {
-        long driveDate = driveFile.getModifiedDate().getValue();
-        long fileDate = localFile.lastModified();
-        long driveSize = driveFile.getFileSize();
-        return driveDate < fileDate || driveSize != localFile.length();
+    private boolean isOutdated(int driveIndex, LocalEntry localFile) {
+        long driveDate = driveFiles.getModified(driveIndex);
+        long fileDate = localFile.getLastModified();
+        //a manifest has a size of its own, see needsManifestCheck
+        if (ChunkStore.isManifest(driveFiles.getMimeType(driveIndex))) return driveDate < fileDate;
+        long driveSize = driveFiles.getSize(driveIndex);
+        return driveDate < fileDate || driveSize != localFile.getSize();
     }
 
 }
@@ -0,0 +1,265 @@
+package net.vonbrandis.gdrivesync;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Watches every folder of a local tree for changes, and reports which folders changed.
+ * Events are debounced: after the first event, changes are collected until there has been no
+ * event for a quiet period, or until the maximum delay has passed, so a burst of writes to a
+ * folder results in one sync of that folder. Hidden files are ignored, as the sync skips them, and so are the
+ * files and folders the ignore rules leave out: ignored folders are not watched at all. The rules of every watched
+ * folder are kept, and only read again when a rule file changes.
+ */
+public class FolderWatcher implements Closeable {
+    private static final long QUIET_PERIOD = 2000;
+    private static final long MAX_DELAY = 30000;
+    private static final long POLL_INTERVAL = 1000;
+
+    private final java.io.File root;
+    private final Progress progress;
+    private final long quietPeriod;
+    private final long maxDelay;
+    private final WatchService watchService;
+    private final Map<WatchKey, Path> keys = new HashMap<>();
+    private final Set<Path> registered = new HashSet<>();
+    //the rules in effect in every watched folder
+    private final Map<Path, IgnoreRules> folderRules = new HashMap<>();
+    private IgnoreRules ignoreRules;
+
+    public FolderWatcher(java.io.File root, Progress progress) throws IOException {
+        this(root, progress, QUIET_PERIOD, MAX_DELAY);
+    }
+
+    /**
+     * @param quietPeriod the time without events after which changes are reported, in milliseconds
+     * @param maxDelay    the time after the first event after which changes are reported anyway
+     */
+    FolderWatcher(java.io.File root, Progress progress, long quietPeriod, long maxDelay) throws IOException {
+        this.root = root;
+        this.progress = progress;
+        this.quietPeriod = quietPeriod;
+        this.maxDelay = maxDelay;
+        this.watchService = FileSystems.getDefault().newWatchService();
+    }
+
+    /**
+     * Registers all folders of the tree that are not watched yet, leaving out those the rules ignore.
+     *
+     * @param ignoreRules the rules of the root folder
+     */
+    public void registerAll(IgnoreRules ignoreRules) throws IOException {
+        this.ignoreRules = ignoreRules;
+        register(root.toPath());
+        folderRules.clear();
+        folderRules.put(root.toPath(), ignoreRules);
+        registerTree(root, ignoreRules);
+    }
+
+    /**
+     * Registers the folders below a watched folder, without descending into ignored ones, as the scanner does.
+     *
+     * @param rules the rules in effect in the folder
+     */
+    private void registerTree(java.io.File folder, IgnoreRules rules) throws IOException {
+        Deque<java.io.File> folders = new ArrayDeque<>();
+        Deque<IgnoreRules> pendingRules = new ArrayDeque<>();
+        //links may lead back up the tree
+        Set<Object> visited = new HashSet<>();
+        folders.add(folder);
+        pendingRules.add(rules);
+        while (!folders.isEmpty()) {
+            java.io.File current = folders.remove();
+            IgnoreRules currentRules = pendingRules.remove();
+            List<LocalEntry> subfolders = new ArrayList<>();
+            try {
+                LocalScanner.scan(current, entry -> {
+                    if (!entry.isDirectory() || isHidden(entry.getFile().toPath())) return;
+                    if (currentRules.isIgnored(entry)) return;
+                    if (entry.getFileKey() != null && !visited.add(entry.getFileKey())) return;
+                    subfolders.add(entry);
+                });
+            } catch (IOException e) {
+                if (current == folder) throw e;
+                progress.debug("Could not scan %s: %s", current, e.getMessage());
+                continue;
+            }
+            for (LocalEntry subfolder : subfolders) {
+                try {
+                    register(subfolder.getFile().toPath());
+                } catch (IOException e) {
+                    progress.debug("Could not watch %s: %s", subfolder, e.getMessage());
+                    continue;
+                }
+                IgnoreRules subfolderRules = currentRules.forSubfolder(subfolder.getFile());
+                folderRules.put(subfolder.getFile().toPath(), subfolderRules);
+                folders.add(subfolder.getFile());
+                pendingRules.add(subfolderRules);
+            }
+        }
+    }
+
+    private void register(Path folder) throws IOException {
+        if (!registered.add(folder)) return;
+        keys.put(folder.register(watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY), folder);
+    }
+
+    /**
+     * Waits for changes and returns the folders whose contents changed, once the events have settled.
+     *
+     * @param timeout the maximum time to wait for the first event, in milliseconds
+     * @return the changed folders, empty after the timeout or when cancelled, or null if events were lost
+     * and the whole tree has to be compared again
+     */
+    public Set<java.io.File> awaitChanges(long timeout) throws IOException, InterruptedException {
+        Set<java.io.File> changed = new HashSet<>();
+        long deadline = System.currentTimeMillis() + timeout;
+        long firstEvent = 0;
+        long lastEvent = 0;
+        while (!progress.isCancelled()) {
+            long now = System.currentTimeMillis();
+            long wait;
+            if (firstEvent == 0) {
+                if (now >= deadline) break;
+                wait = Math.min(POLL_INTERVAL, deadline - now);
+            } else {
+                long settled = Math.min(lastEvent + quietPeriod, firstEvent + maxDelay);
+                if (now >= settled) break;
+                wait = settled - now;
+            }
+            WatchKey key;
+            try {
+                key = watchService.poll(wait, TimeUnit.MILLISECONDS);
+            } catch (ClosedWatchServiceException e) {
+                break;
+            }
+            if (key == null) continue;
+            if (!collect(key, changed)) return null;
+            lastEvent = System.currentTimeMillis();
+            if (firstEvent == 0) firstEvent = lastEvent;
+        }
+        return changed;
+    }
+
+    /**
+     * @return false if events were lost
+     */
+    private boolean collect(WatchKey key, Set<java.io.File> changed) throws IOException {
+        Path folder = keys.get(key);
+        boolean complete = true;
+        for (WatchEvent<?> event : key.pollEvents()) {
+            if (event.kind() == OVERFLOW) {
+                complete = false;
+                continue;
+            }
+            Path child = folder.resolve((Path) event.context());
+            if (child.getFileName().toString().equals(IgnoreRules.FILE_NAME) && !isHidden(folder)) {
+                if (folder.equals(root.toPath())) {
+                    //the rules of the root are read with the global rules, at the next full compare
+                    complete = false;
+                } else {
+                    //other files of the folder may be ignored now, or no longer
+                    changed.add(folder.toFile());
+                    try {
+                        rulesChanged(folder);
+                    } catch (IOException e) {
+                        //the sync reports the broken rule file, and is retried at the next full compare
+                        progress.debug("Could not read the rules of %s: %s", folder, e.getMessage());
+                    }
+                }
+                continue;
+            }
+            if (isHidden(child) || isIgnored(folder, child)) continue;
+            changed.add(folder.toFile());
+            if (event.kind() == ENTRY_CREATE && child.toFile().isDirectory()) {
+                //the new folder is synchronized completely with its parent, but has to be watched from now on
+                register(child);
+                IgnoreRules childRules = rulesOf(folder).forSubfolder(child.toFile());
+                folderRules.put(child, childRules);
+                registerTree(child.toFile(), childRules);
+            }
+        }
+        if (!key.reset()) {
+            //the folder is gone, its parent reports the removal
+            keys.remove(key);
+            registered.remove(folder);
+            folderRules.remove(folder);
+        }
+        return complete;
+    }
+
+    /**
+     * @return true if the entry of the folder exists and the ignore rules leave it out
+     */
+    private boolean isIgnored(Path folder, Path child) {
+        BasicFileAttributes attrs;
+        try {
+            attrs = Files.readAttributes(child, BasicFileAttributes.class);
+        } catch (IOException e) {
+            //removed entries are reported, the sync of the folder decides about them
+            return false;
+        }
+        IgnoreRules rules;
+        try {
+            rules = rulesOf(folder);
+        } catch (IOException e) {
+            //a broken rule file, which the sync of the folder reports
+            return false;
+        }
+        return rules.isIgnored(new LocalEntry(folder.toFile(), child.getFileName().toString(), attrs));
+    }
+
+    private IgnoreRules rulesOf(Path folder) throws IOException {
+        IgnoreRules rules = folderRules.get(folder);
+        if (rules == null) {
+            rules = ignoreRules.forFolder(folder.toFile());
+            folderRules.put(folder, rules);
+        }
+        return rules;
+    }
+
+    /**
+     * Reads the rules of a folder and the folders below it again, and watches the folders they no longer ignore.
+     */
+    private void rulesChanged(Path folder) throws IOException {
+        folderRules.keySet().removeIf(path -> path.startsWith(folder));
+        registerTree(folder.toFile(), rulesOf(folder));
+    }
+
+    /**
+     * @return true if the path or any folder between it and the root is hidden
+     */
+    private boolean isHidden(Path path) {
+        for (Path name : root.toPath().relativize(path)) {
+            if (name.toString().startsWith(".")) return true;
+        }
+        return false;
+    }
+
+    @Override
+    public void close() throws IOException {
+        watchService.close();
+    }
+}
@@ -1,38 +1,75 @@
 package net.vonbrandis.gdrivesync;
 
+import com.google.api.client.http.ByteArrayContent;
 import com.google.api.client.http.FileContent;
+import com.google.api.client.http.HttpResponseException;
 import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.ChangeList;
 import com.google.api.services.drive.model.File;
 import com.google.api.services.drive.model.FileList;
 import com.google.api.services.drive.model.ParentReference;
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.io.InputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.Collections;
-import java.util.List;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
-public class GDrive {
+public class GDrive implements DriveBackend {
     public static final String APPLICATION_VND_GOOGLE_APPS_FOLDER = "application/vnd.google-apps.folder";
     public static final String APPLICATION_OCTET_STREAM = "application/octet-stream";
+    private static final int STATUS_NOT_FOUND = 404;
+    /**
+     * The fields of a file the sync uses, requested for every file returned, so drive sends nothing else.
+     */
+    static final String FILE_FIELDS = "id,title,mimeType,fileSize,modifiedDate,md5Checksum,parents/id";
+    private static final String FOLDER_FIELDS = "items(id,title,mimeType)";
+    private static final String LIST_FOLDER_FIELDS = "nextPageToken,items(id,title,mimeType,fileSize,modifiedDate,md5Checksum)";
+    private static final String FIND_FIELDS = "items(" + FILE_FIELDS + ",createdDate)";
+    //how far the clock of drive may be behind ours, when telling new files from older ones
+    private static final long MAX_CLOCK_SKEW = 5 * 60 * 1000;
+    private static final String LIST_ALL_FIELDS = "nextPageToken,items(" + FILE_FIELDS + ")";
+    private static final String CHANGE_FIELDS = "nextPageToken,largestChangeId,items(fileId,deleted,file(" + FILE_FIELDS + ",labels/trashed))";
     private Drive service;
     private Progress progress;
     private boolean dryrun;
+    private ResumableUploader resumableUploader;
+    private RateLimiter limiter;
 
     public GDrive(Drive service, Progress progress, boolean dryrun) {
         this.service = service;
         this.progress = progress;
         this.dryrun = dryrun;
+        this.limiter = new RateLimiter(progress, 0);
     }
 
+    /**
+     * Sets the limiter all calls go through, which may be shared with other GDrive instances.
+     */
+    public void setRateLimiter(RateLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    /**
+     * Uploads files of at least the threshold size in chunks, resuming interrupted uploads on later runs.
+     */
+    public void enableResumableUploads(java.io.File sessionDir, long threshold, int chunkSize) {
+        this.resumableUploader = new ResumableUploader(service, progress, sessionDir, threshold, chunkSize);
+    }
+
+    @Override
     public File fetchFolderByID(String parentFolderID, String name) throws IOException {
-        Drive.Files.List request = service.files().list();
+        Drive.Files.List request = service.files().list().setFields(FOLDER_FIELDS);
         if (parentFolderID != null) {
             request.setQ(String.format("title='%s' and '%s' in parents and trashed=False", name, parentFolderID));
         } else {
             request.setQ(String.format("title='%s' and trashed=False", name));
         }
 
-        FileList files = request.execute();
+        FileList files = limiter.execute("list", request::execute);
         if (files.getItems().size() > 1) {
             throw new RuntimeException("Ambiguous folder: " + name);
         }
@@ -42,39 +79,197 @@ public class GDrive {
         return files.getItems().get(0);
     }
 
+    @Override
+    public File fetchFileByID(String id) throws IOException {
+        try {
+            return limiter.execute("get", () -> service.files().get(id).setFields(FILE_FIELDS + ",labels/trashed").execute());
+        } catch (HttpResponseException e) {
+            if (e.getStatusCode() == STATUS_NOT_FOUND) return null;
+            throw e;
+        }
+    }
+
+    @Override
     public void deleteDriveFile(File driveFile) throws IOException {
         if (dryrun) {
             progress.debug("DRY RUN: Deleting file %s", driveFile.getTitle());
         } else {
-            service.files().delete(driveFile.getId()).execute();
+            limiter.execute("delete", () -> service.files().delete(driveFile.getId()).execute());
         }
     }
 
-    public List<File> iterateDriveFolder(File parentFolder) throws IOException {
-        Drive.Files.List request = service.files().list().setMaxResults(1000).setQ(String.format("'%s' in parents and trashed=False", parentFolder.getId()));
-        FileList result;
-        List<File> list = new ArrayList<>();
+    @Override
+    public RemoteListing iterateDriveFolder(File parentFolder) throws IOException {
+        Drive.Files.List request = service.files().list().setMaxResults(1000).setQ(String.format("'%s' in parents and trashed=False", parentFolder.getId()))
+                .setFields(LIST_FOLDER_FIELDS);
+        RemoteListing listing = new RemoteListing();
+        String pageToken;
         do {
-            result = request.execute();
-            list.addAll(result.getItems());
-            request.setPageToken(result.getNextPageToken());
-        } while (result.getNextPageToken() != null && result.getNextPageToken().length() > 0);
-        return list;
+            pageToken = listPage(request, item -> item.addTo(listing));
+            request.setPageToken(pageToken);
+        } while (pageToken != null);
+        return listing;
+    }
+
+    /**
+     * Pages through every non-trashed file in the account, requesting only the fields the sync needs.
+     */
+    @Override
+    public void listAllFiles(Consumer<File> consumer) throws IOException {
+        Drive.Files.List request = service.files().list().setMaxResults(1000).setQ("trashed=False").setFields(LIST_ALL_FIELDS);
+        String pageToken;
+        do {
+            pageToken = listPage(request, item -> consumer.accept(item.toDriveFile()));
+            request.setPageToken(pageToken);
+        } while (pageToken != null);
+    }
+
+    @Override
+    public void listFilesByMimeType(String mimeType, Consumer<File> consumer) throws IOException {
+        Drive.Files.List request = service.files().list().setMaxResults(1000)
+                .setQ(String.format("mimeType='%s'", mimeType)).setFields(LIST_ALL_FIELDS);
+        String pageToken;
+        do {
+            pageToken = listPage(request, item -> consumer.accept(item.toDriveFile()));
+            request.setPageToken(pageToken);
+        } while (pageToken != null);
+    }
+
+    /**
+     * Fetches a page of a listing and parses it while it is read. A page that fails half way is fetched
+     * again as a whole, so the consumer may see some items twice.
+     *
+     * @return the token of the next page, or null on the last page
+     */
+    private String listPage(Drive.Files.List request, Consumer<FileListParser.Item> consumer) throws IOException {
+        return limiter.execute("list", () -> {
+            try (InputStream in = request.executeAsInputStream()) {
+                return FileListParser.parse(service.getJsonFactory(), in, consumer);
+            }
+        });
+    }
+
+    @Override
+    public long currentChangeId() throws IOException {
+        return limiter.execute("about", () -> service.about().get().setFields("largestChangeId").execute()).getLargestChangeId();
     }
 
+    @Override
+    public Page fetchChanges(long startChangeId, String pageToken) throws IOException {
+        ChangeList result = limiter.execute("changes", () -> service.changes().list()
+                .setStartChangeId(startChangeId)
+                .setIncludeDeleted(true)
+                .setMaxResults(1000)
+                .setPageToken(pageToken)
+                .setFields(CHANGE_FIELDS)
+                .execute());
+        return new Page(result.getItems(), result.getNextPageToken(), result.getLargestChangeId());
+    }
+
+    @Override
     public File createDriveFolder(File parentFolder, String name) throws IOException {
         if (dryrun) {
             progress.debug("DRY RUN: Would create folder %s/%s)", parentFolder.getTitle(), name);
             return null;
         } else {
-            File newFile = new File();
-            newFile.setTitle(name);
-            newFile.setMimeType(APPLICATION_VND_GOOGLE_APPS_FOLDER);
-            newFile.setParents(Collections.singletonList(new ParentReference().setId(parentFolder.getId())));
-            return service.files().insert(newFile).execute();
+            return limiter.execute("insert", () -> service.files().insert(folderMetadata(parentFolder, name)).setFields(FILE_FIELDS).execute(),
+                    () -> findInFolder(service, limiter, parentFolder, name));
         }
     }
 
+    /**
+     * Looks up a folder by title, to tell whether a folder creation that failed was carried out after all.
+     *
+     * @return the first non-trashed folder with the title in the folder, or null if there is none
+     */
+    static File findInFolder(Drive service, RateLimiter limiter, File parentFolder, String title) throws IOException {
+        return findInFolder(service, limiter, parentFolder, title, f -> APPLICATION_VND_GOOGLE_APPS_FOLDER.equals(f.getMimeType()));
+    }
+
+    /**
+     * Looks up the file an upload that failed may have created after all. Drive allows several files with the same
+     * title, so only a file created since the upload started, with its size and checksum, counts.
+     *
+     * @param md5     the checksum of the upload, or null if it is not known
+     * @param started the time the upload started
+     * @return the first matching file, or null if there is none
+     */
+    static File findUpload(Drive service, RateLimiter limiter, File parentFolder, String title, long size, String md5, long started) throws IOException {
+        return findInFolder(service, limiter, parentFolder, title, f -> f.getFileSize() != null && f.getFileSize() == size
+                && (md5 == null || md5.equals(f.getMd5Checksum()))
+                && (f.getCreatedDate() == null || f.getCreatedDate().getValue() >= started - MAX_CLOCK_SKEW));
+    }
+
+    private static File findInFolder(Drive service, RateLimiter limiter, File parentFolder, String title, Predicate<File> matches) throws IOException {
+        String escaped = title.replace("\\", "\\\\").replace("'", "\\'");
+        FileList files = limiter.execute("list", () -> service.files().list()
+                .setQ(String.format("title='%s' and '%s' in parents and trashed=False", escaped, parentFolder.getId()))
+                .setFields(FIND_FIELDS)
+                .execute());
+        if (files.getItems() == null) return null;
+        return files.getItems().stream().filter(matches).findFirst().orElse(null);
+    }
+
+    static File folderMetadata(File parentFolder, String name) {
+        File newFile = new File();
+        newFile.setTitle(name);
+        newFile.setMimeType(APPLICATION_VND_GOOGLE_APPS_FOLDER);
+        newFile.setParents(Collections.singletonList(new ParentReference().setId(parentFolder.getId())));
+        return newFile;
+    }
+
+    @Override
+    public File trashDriveFile(File driveFile) throws IOException {
+        if (dryrun) {
+            progress.debug("DRY RUN: Trashing file %s", driveFile.getTitle());
+            return driveFile;
+        } else {
+            return limiter.execute("trash", () -> service.files().trash(driveFile.getId()).setFields(FILE_FIELDS).execute());
+        }
+    }
+
+    @Override
+    public File renameDriveFile(File driveFile, String title) throws IOException {
+        if (dryrun) {
+            progress.debug("DRY RUN: Renaming file %s to %s", driveFile.getTitle(), title);
+            return driveFile;
+        } else {
+            return limiter.execute("patch", () -> service.files().patch(driveFile.getId(), new File().setTitle(title)).setFields(FILE_FIELDS).execute());
+        }
+    }
+
+    @Override
+    public File moveDriveFile(File driveFile, File parentFolder, String title) throws IOException {
+        if (dryrun) {
+            progress.debug("DRY RUN: Moving file %s to %s/%s", driveFile.getTitle(), parentFolder.getTitle(), title);
+            return driveFile;
+        }
+        try {
+            return limiter.execute("patch", () -> service.files().patch(driveFile.getId(), moveMetadata(parentFolder, title)).setFields(FILE_FIELDS).execute());
+        } catch (HttpResponseException e) {
+            if (e.getStatusCode() == STATUS_NOT_FOUND) return null;
+            throw e;
+        }
+    }
+
+    /**
+     * Metadata that replaces the parents of a file, and its title.
+     */
+    static File moveMetadata(File parentFolder, String title) {
+        return new File()
+                .setTitle(title)
+                .setParents(Collections.singletonList(new ParentReference().setId(parentFolder.getId())));
+    }
+
+    /**
+     * Creates a batch for metadata operations. Batching is disabled in dry runs.
+     */
+    @Override
+    public MetadataBatch newMetadataBatch(int batchSize) {
+        return new MetadataBatch(this, service, limiter, progress, dryrun ? 1 : batchSize);
+    }
+
+    @Override
     public File createDriveFile(File parentFolder, String driveFileName, java.io.File localFile) throws IOException {
         if (dryrun) {
             progress.debug("DRY RUN: Would create file %s as %s/%s (%d bytes)", localFile, parentFolder.getTitle(), driveFileName, localFile.length());
@@ -85,20 +280,87 @@ public class GDrive {
             newFile.setTitle(driveFileName);
             newFile.setMimeType(mimeType);
             newFile.setParents(Collections.singletonList(new ParentReference().setId(parentFolder.getId())));
+            long started = System.currentTimeMillis();
+            long size = localFile.length();
+            if (resumableUploader != null && resumableUploader.accepts(localFile)) {
+                //a retried resumable upload continues from the last acknowledged chunk
+                return limiter.execute("insert", () -> resumableUploader.create(newFile, localFile),
+                        () -> findUpload(service, limiter, parentFolder, driveFileName, size, null, started));
+            }
             java.io.File fileContent = new java.io.File(localFile.getAbsolutePath());
             FileContent mediaContent = new FileContent(mimeType, fileContent);
-            return service.files().insert(newFile, mediaContent).execute();
+            return limiter.execute("insert", () -> service.files().insert(newFile, mediaContent).setFields(FILE_FIELDS).execute(),
+                    () -> findUpload(service, limiter, parentFolder, driveFileName, size, null, started));
         }
     }
 
+    @Override
+    public File createDriveFile(File parentFolder, String driveFileName, String mimeType, byte[] content, int length) throws IOException {
+        if (dryrun) {
+            progress.debug("DRY RUN: Would create file %s/%s (%d bytes)", parentFolder.getTitle(), driveFileName, length);
+            return null;
+        }
+        File newFile = new File()
+                .setTitle(driveFileName)
+                .setMimeType(mimeType)
+                .setParents(Collections.singletonList(new ParentReference().setId(parentFolder.getId())));
+        long started = System.currentTimeMillis();
+        return limiter.execute("insert", () -> service.files().insert(newFile, new ByteArrayContent(mimeType, content, 0, length)).setFields(FILE_FIELDS).execute(),
+                () -> findUpload(service, limiter, parentFolder, driveFileName, length, md5(content, length), started));
+    }
+
+    private static String md5(byte[] content, int length) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        digest.update(content, 0, length);
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest()) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    @Override
+    public File updateDriveFile(File driveFile, String mimeType, byte[] content) throws IOException {
+        if (dryrun) {
+            progress.debug("DRY RUN: Would update file %s (%d bytes)", driveFile.getTitle(), content.length);
+            return driveFile;
+        }
+        File metadata = new File().setMimeType(mimeType);
+        return limiter.execute("update", () -> service.files().update(driveFile.getId(), metadata, new ByteArrayContent(mimeType, content)).setFields(FILE_FIELDS).execute());
+    }
+
+    @Override
+    public byte[] downloadDriveFile(File driveFile) throws IOException {
+        return limiter.execute("download", () -> {
+            try (InputStream in = service.files().get(driveFile.getId()).executeMediaAsInputStream()) {
+                ByteArrayOutputStream content = new ByteArrayOutputStream();
+                byte[] buffer = new byte[8192];
+                int n;
+                while ((n = in.read(buffer)) >= 0) {
+                    content.write(buffer, 0, n);
+                }
+                return content.toByteArray();
+            }
+        });
+    }
+
+    @Override
     public File updateDriveFile(File driveFile, java.io.File localFile) throws IOException {
         if (dryrun) {
             progress.debug("DRY RUN: Would update file %s (%d bytes)", localFile, localFile.length());
             return driveFile;
         } else {
+            if (resumableUploader != null && resumableUploader.accepts(localFile)) {
+                return limiter.execute("update", () -> resumableUploader.update(driveFile, localFile));
+            }
             java.io.File fileContent = new java.io.File(localFile.getAbsolutePath());
             FileContent mediaContent = new FileContent(driveFile.getMimeType(), fileContent);
-            return service.files().update(driveFile.getId(), driveFile, mediaContent).execute();
+            return limiter.execute("update", () -> service.files().update(driveFile.getId(), driveFile, mediaContent).setFields(FILE_FIELDS).execute());
         }
     }
 }
@@ -0,0 +1,334 @@
+package net.vonbrandis.gdrivesync;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Rules for files and folders to leave out of the sync, read from .gdriveignore files with gitignore semantics.
+ * A rule file applies to the folder it is in and everything below it, and its rules take precedence over those
+ * of the folders above; within a file, the last matching rule decides. Patterns without a slash match the name
+ * at any depth, patterns with a slash match the path relative to the folder of the rule file, a trailing slash
+ * matches only folders, and a leading ! re-includes what an earlier rule excluded. An ignored folder is skipped
+ * as a whole, so nothing below it is scanned or listed on drive.
+ * <p>
+ * As an extension, a rule can end in size and age predicates, such as {@code *.iso size>1G} or {@code *.tmp age>7d},
+ * which only match files. Sizes take the units K, M, G and T, ages s, m, h, d and w, and default to bytes and days.
+ * A line of only predicates applies to all files.
+ * <p>
+ * Patterns are compiled once: plain names and {@code *.ext} patterns are compared as strings, all others as
+ * regular expressions. An instance holds the rules in effect in one folder.
+ */
+public class IgnoreRules {
+    public static final String FILE_NAME = ".gdriveignore";
+    private static final Pattern PREDICATE = Pattern.compile("(?:^|\\s+)(size|age)([<>])(\\d+)([a-zA-Z]?)$");
+
+    private final Path folder;
+    //the rule files in effect, outermost first, with the path of this folder relative to the folder of each file,
+    //ending in a slash unless empty
+    private final List<List<Rule>> levels;
+    private final List<String> prefixes;
+
+    private IgnoreRules(Path folder, List<List<Rule>> levels, List<String> prefixes) {
+        this.folder = folder;
+        this.levels = levels;
+        this.prefixes = prefixes;
+    }
+
+    /**
+     * Loads the rules of the root folder of a sync.
+     *
+     * @param globalRules a file with rules for the whole tree, which the rule files in the folders take precedence over, or null
+     */
+    public static IgnoreRules load(java.io.File localRoot, java.io.File globalRules) throws IOException {
+        Path root = localRoot.getAbsoluteFile().toPath();
+        IgnoreRules rules = new IgnoreRules(root, Collections.emptyList(), Collections.emptyList());
+        if (globalRules != null) {
+            rules = rules.with(parse(globalRules.toPath()));
+        }
+        return rules.withRulesOf(root);
+    }
+
+    /**
+     * @return the rules in effect in a subfolder of this folder
+     */
+    public IgnoreRules forSubfolder(java.io.File subfolder) throws IOException {
+        Path path = folder.resolve(subfolder.getName());
+        List<String> subfolderPrefixes = new ArrayList<>(prefixes.size());
+        for (String prefix : prefixes) {
+            subfolderPrefixes.add(prefix + subfolder.getName() + "/");
+        }
+        return new IgnoreRules(path, levels, subfolderPrefixes).withRulesOf(path);
+    }
+
+    /**
+     * @return the rules in effect in a folder anywhere below this one, read from every folder on the way
+     */
+    public IgnoreRules forFolder(java.io.File localFolder) throws IOException {
+        IgnoreRules result = this;
+        for (Path name : folder.relativize(localFolder.getAbsoluteFile().toPath())) {
+            if (name.toString().isEmpty()) continue;
+            result = result.forSubfolder(name.toFile());
+        }
+        return result;
+    }
+
+    /**
+     * @return true if the folder, or any folder between it and this one, is ignored
+     */
+    public boolean isIgnoredFolder(java.io.File localFolder) throws IOException {
+        IgnoreRules current = this;
+        for (Path name : folder.relativize(localFolder.getAbsoluteFile().toPath())) {
+            if (name.toString().isEmpty()) continue;
+            if (current.isIgnored(name.toString(), true, 0, 0)) return true;
+            current = current.forSubfolder(name.toFile());
+        }
+        return false;
+    }
+
+    public boolean isIgnored(LocalEntry entry) {
+        return isIgnored(entry.getName(), entry.isDirectory(), entry.getSize(), entry.getLastModified());
+    }
+
+    /**
+     * @return true if an entry of this folder with the given name and attributes is ignored
+     */
+    public boolean isIgnored(String name, boolean directory, long size, long lastModified) {
+        for (int level = levels.size() - 1; level >= 0; level--) {
+            List<Rule> rules = levels.get(level);
+            for (int i = rules.size() - 1; i >= 0; i--) {
+                Rule rule = rules.get(i);
+                if (rule.matches(prefixes.get(level), name, directory, size, lastModified)) return !rule.negated;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Adds the rules of the file in this folder, if there is one.
+     */
+    private IgnoreRules withRulesOf(Path localFolder) throws IOException {
+        Path file = localFolder.resolve(FILE_NAME);
+        if (!Files.isRegularFile(file)) return this;
+        return with(parse(file));
+    }
+
+    private IgnoreRules with(List<Rule> rules) {
+        if (rules.isEmpty()) return this;
+        List<List<Rule>> newLevels = new ArrayList<>(levels);
+        newLevels.add(rules);
+        List<String> newPrefixes = new ArrayList<>(prefixes);
+        newPrefixes.add("");
+        return new IgnoreRules(folder, newLevels, newPrefixes);
+    }
+
+    /**
+     * @throws IOException naming the file and line of a rule that cannot be parsed
+     */
+    static List<Rule> parse(Path file) throws IOException {
+        List<String> lines = Files.readAllLines(file, StandardCharsets.UTF_8);
+        List<Rule> rules = new ArrayList<>();
+        for (int i = 0; i < lines.size(); i++) {
+            Rule rule;
+            try {
+                rule = Rule.parse(lines.get(i));
+            } catch (IllegalArgumentException e) {
+                throw new IOException(String.format("%s, line %d: %s", file, i + 1, e.getMessage()));
+            }
+            if (rule != null) rules.add(rule);
+        }
+        return rules;
+    }
+
+    static class Rule {
+        private final boolean negated;
+        private final boolean directoryOnly;
+        //matched against the path relative to the folder of the rule file, otherwise against the name only
+        private final boolean anchored;
+        private final String literal;
+        private final String suffix;
+        private final Pattern pattern;
+        private final long minSize;
+        private final long maxSize;
+        private final long minAge;
+        private final long maxAge;
+
+        private Rule(boolean negated, boolean directoryOnly, boolean anchored, String glob, long[] predicates) {
+            this.negated = negated;
+            this.directoryOnly = directoryOnly;
+            this.anchored = anchored;
+            if (!hasWildcards(glob)) {
+                this.literal = unescape(glob);
+                this.suffix = null;
+                this.pattern = null;
+            } else if (!anchored && glob.startsWith("*") && !hasWildcards(glob.substring(1))) {
+                this.literal = null;
+                this.suffix = unescape(glob.substring(1));
+                this.pattern = null;
+            } else {
+                this.literal = null;
+                this.suffix = null;
+                this.pattern = Pattern.compile(toRegex(glob));
+            }
+            this.minSize = predicates[0];
+            this.maxSize = predicates[1];
+            this.minAge = predicates[2];
+            this.maxAge = predicates[3];
+        }
+
+        /**
+         * @return the rule on the line, or null for an empty line or a comment
+         * @throws IllegalArgumentException for a predicate with an unknown unit or out of range
+         */
+        static Rule parse(String line) {
+            line = trimTrailingSpaces(line);
+            if (line.isEmpty() || line.startsWith("#")) return null;
+            boolean negated = line.startsWith("!");
+            if (negated) line = line.substring(1);
+
+            //size and age bounds: minimum size, maximum size, minimum age, maximum age
+            long[] predicates = {-1, Long.MAX_VALUE, -1, Long.MAX_VALUE};
+            boolean filesOnly = false;
+            Matcher m;
+            while ((m = PREDICATE.matcher(line)).find()) {
+                long value;
+                try {
+                    value = Math.multiplyExact(Long.parseLong(m.group(3)), unit(m.group(1), m.group(4)));
+                } catch (NumberFormatException | ArithmeticException e) {
+                    throw new IllegalArgumentException("Out of range in ignore rule: " + m.group().trim());
+                }
+                int index = m.group(1).equals("size") ? 0 : 2;
+                if (m.group(2).equals(">")) {
+                    predicates[index] = value;
+                } else {
+                    predicates[index + 1] = value;
+                }
+                filesOnly = true;
+                line = line.substring(0, m.start());
+            }
+            if (line.isEmpty()) {
+                if (!filesOnly) return null;
+                line = "*";
+            }
+
+            boolean directoryOnly = line.endsWith("/");
+            if (directoryOnly) line = line.substring(0, line.length() - 1);
+            boolean anchored = line.contains("/");
+            if (line.startsWith("/")) line = line.substring(1);
+            if (line.isEmpty()) return null;
+            Rule rule = new Rule(negated, directoryOnly, anchored, line, predicates);
+            return filesOnly && directoryOnly ? null : rule;
+        }
+
+        boolean matches(String prefix, String name, boolean directory, long size, long lastModified) {
+            if (directoryOnly && !directory) return false;
+            if (!anchored) {
+                if (literal != null && !literal.equals(name)) return false;
+                if (suffix != null && !name.endsWith(suffix)) return false;
+                if (pattern != null && !pattern.matcher(name).matches()) return false;
+            } else {
+                String path = prefix + name;
+                if (literal != null && !literal.equals(path)) return false;
+                if (pattern != null && !pattern.matcher(path).matches()) return false;
+            }
+            if (minSize < 0 && maxSize == Long.MAX_VALUE && minAge < 0 && maxAge == Long.MAX_VALUE) return true;
+            //size and age only apply to files
+            if (directory) return false;
+            long age = System.currentTimeMillis() - lastModified;
+            return size > minSize && size < maxSize && age > minAge && age < maxAge;
+        }
+
+        private static long unit(String predicate, String unit) {
+            if (predicate.equals("size")) {
+                switch (unit.toUpperCase()) {
+                    case "":
+                        return 1;
+                    case "K":
+                        return 1L << 10;
+                    case "M":
+                        return 1L << 20;
+                    case "G":
+                        return 1L << 30;
+                    case "T":
+                        return 1L << 40;
+                }
+            } else {
+                switch (unit) {
+                    case "s":
+                        return 1000L;
+                    case "m":
+                        return 60 * 1000L;
+                    case "h":
+                        return 3600 * 1000L;
+                    case "":
+                    case "d":
+                        return 24 * 3600 * 1000L;
+                    case "w":
+                        return 7 * 24 * 3600 * 1000L;
+                }
+            }
+            throw new IllegalArgumentException("Unknown unit in ignore rule: " + predicate + " " + unit);
+        }
+
+        private static String trimTrailingSpaces(String line) {
+            int end = line.length();
+            while (end > 0 && line.charAt(end - 1) == ' ' && (end < 2 || line.charAt(end - 2) != '\\')) end--;
+            return line.substring(0, end);
+        }
+
+        private static boolean hasWildcards(String glob) {
+            for (int i = 0; i < glob.length(); i++) {
+                char c = glob.charAt(i);
+                if (c == '\\') {
+                    i++;
+                } else if (c == '*' || c == '?' || c == '[') {
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        private static String unescape(String glob) {
+            return glob.replaceAll("\\\\(.)", "$1");
+        }
+
+        static String toRegex(String glob) {
+            StringBuilder sb = new StringBuilder();
+            int n = glob.length();
+            for (int i = 0; i < n; i++) {
+                char c = glob.charAt(i);
+                if (c == '*' && i + 1 < n && glob.charAt(i + 1) == '*' && (i == 0 || glob.charAt(i - 1) == '/')) {
+                    if (i + 2 < n && glob.charAt(i + 2) == '/') {
+                        //**/ matches any number of folders, including none
+                        sb.append("(?:.*/)?");
+                        i += 2;
+                    } else {
+                        sb.append(".*");
+                        i++;
+                    }
+                } else if (c == '*') {
+                    sb.append("[^/]*");
+                } else if (c == '?') {
+                    sb.append("[^/]");
+                } else if (c == '[' && glob.indexOf(']', i + 2) > 0) {
+                    int end = glob.indexOf(']', i + 2);
+                    String set = glob.substring(i + 1, end);
+                    if (set.startsWith("!")) set = "^" + set.substring(1);
+                    sb.append('[').append(set.replace("\\", "\\\\").replace("[", "\\[")).append(']');
+                    i = end;
+                } else if (c == '\\' && i + 1 < n) {
+                    sb.append(Pattern.quote(String.valueOf(glob.charAt(++i))));
+                } else {
+                    sb.append(Pattern.quote(String.valueOf(c)));
+                }
+            }
+            return sb.toString();
+        }
+    }
+}
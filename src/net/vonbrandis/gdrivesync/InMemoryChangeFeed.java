@@ -0,0 +1,41 @@
+package net.vonbrandis.gdrivesync;
+
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.File;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * ChangeFeed kept in memory, for exercising change replay without a drive account.
+ * Changes are numbered from 1 and served in pages of a fixed size.
+ */
+public class InMemoryChangeFeed implements ChangeFeed {
+    private final List<Change> changes = new ArrayList<>();
+    private final int pageSize;
+
+    public InMemoryChangeFeed(int pageSize) {
+        this.pageSize = pageSize;
+    }
+
+    public synchronized void fileChanged(File file) {
+        changes.add(new Change().setId((long) changes.size() + 1).setFileId(file.getId()).setDeleted(false).setFile(file));
+    }
+
+    public synchronized void fileDeleted(String fileId) {
+        changes.add(new Change().setId((long) changes.size() + 1).setFileId(fileId).setDeleted(true));
+    }
+
+    @Override
+    public synchronized long currentChangeId() {
+        return changes.size();
+    }
+
+    @Override
+    public synchronized Page fetchChanges(long startChangeId, String pageToken) {
+        int from = pageToken != null ? Integer.parseInt(pageToken) : (int) Math.max(startChangeId - 1, 0);
+        int to = Math.min(from + pageSize, changes.size());
+        String nextPageToken = to < changes.size() ? Integer.toString(to) : null;
+        return new Page(new ArrayList<>(changes.subList(Math.min(from, to), to)), nextPageToken, changes.size());
+    }
+}
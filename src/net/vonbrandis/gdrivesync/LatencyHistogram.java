@@ -0,0 +1,76 @@
+package net.vonbrandis.gdrivesync;
+
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of call latencies, with fixed buckets from 5 ms to a minute,
+ * in the cumulative form Prometheus expects.
+ */
+public class LatencyHistogram {
+    private static final long[] BOUNDS = {5, 10, 25, 50, 100, 250, 500, 1000, 2500, 5000, 10000, 30000, 60000};
+
+    private final LongAdder[] buckets = new LongAdder[BOUNDS.length + 1];
+    private final LongAdder count = new LongAdder();
+    private final LongAdder sumMillis = new LongAdder();
+    private final LongAdder failures = new LongAdder();
+
+    public LatencyHistogram() {
+        for (int i = 0; i < buckets.length; i++) {
+            buckets[i] = new LongAdder();
+        }
+    }
+
+    public void record(long millis, boolean failed) {
+        int i = 0;
+        while (i < BOUNDS.length && millis > BOUNDS[i]) i++;
+        buckets[i].increment();
+        count.increment();
+        sumMillis.add(millis);
+        if (failed) failures.increment();
+    }
+
+    /**
+     * @return the upper bounds of the buckets in milliseconds, the last bucket has no bound
+     */
+    public static long[] getBounds() {
+        return BOUNDS.clone();
+    }
+
+    /**
+     * @return the number of calls per bucket, cumulative, so the last element is the total count
+     */
+    public long[] getCumulativeCounts() {
+        long[] result = new long[buckets.length];
+        long total = 0;
+        for (int i = 0; i < buckets.length; i++) {
+            total += buckets[i].sum();
+            result[i] = total;
+        }
+        return result;
+    }
+
+    public long getCount() {
+        return count.sum();
+    }
+
+    public long getSumMillis() {
+        return sumMillis.sum();
+    }
+
+    public long getFailures() {
+        return failures.sum();
+    }
+
+    /**
+     * @return the upper bound of the bucket holding the given quantile, or -1 above the last bound
+     */
+    public long quantile(double q) {
+        long[] counts = getCumulativeCounts();
+        long total = counts[counts.length - 1];
+        if (total == 0) return 0;
+        for (int i = 0; i < BOUNDS.length; i++) {
+            if (counts[i] >= q * total) return BOUNDS[i];
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,63 @@
+package net.vonbrandis.gdrivesync;
+
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+/**
+ * A local file or folder together with the attributes read when it was scanned,
+ * so the diff does not have to stat the file again.
+ * The entries of a folder share the File of the folder, and only keep their own name.
+ */
+public class LocalEntry {
+    private final java.io.File folder;
+    private final String name;
+    private final boolean directory;
+    private final long size;
+    private final long lastModified;
+    private final Object fileKey;
+
+    public LocalEntry(Path path, BasicFileAttributes attrs) {
+        this(path.getParent().toFile(), path.getFileName().toString(), attrs);
+    }
+
+    public LocalEntry(java.io.File folder, String name, BasicFileAttributes attrs) {
+        this.folder = folder;
+        this.name = name;
+        this.directory = attrs.isDirectory();
+        this.size = attrs.size();
+        this.lastModified = attrs.lastModifiedTime().toMillis();
+        this.fileKey = attrs.fileKey();
+    }
+
+    public java.io.File getFile() {
+        return new java.io.File(folder, name);
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public boolean isDirectory() {
+        return directory;
+    }
+
+    public long getSize() {
+        return size;
+    }
+
+    public long getLastModified() {
+        return lastModified;
+    }
+
+    /**
+     * @return the key identifying the file on its file system, like device and inode, or null if there is none
+     */
+    public Object getFileKey() {
+        return fileKey;
+    }
+
+    @Override
+    public String toString() {
+        return getFile().toString();
+    }
+}
@@ -0,0 +1,92 @@
+package net.vonbrandis.gdrivesync;
+
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Scans local folders with a directory stream, reading the attributes of every entry in one call
+ * instead of separate isDirectory, length and lastModified calls, which are each a round trip on
+ * network file systems. Entries are handed on as they are read, so a huge folder is never held
+ * in memory as a whole. Symbolic links are followed; entries that vanish or can not be read while
+ * scanning, like broken links, are reported apart from the others, so a caller can tell them from
+ * removed files.
+ */
+public class LocalScanner {
+
+    private LocalScanner() {
+    }
+
+    /**
+     * Streams the entries of a folder to the consumer, in directory order.
+     */
+    public static void scan(java.io.File folder, Consumer<LocalEntry> consumer) throws IOException {
+        scan(folder, consumer, (path, e) -> {
+        });
+    }
+
+    /**
+     * Streams the entries of a folder to the consumer, in directory order, and the entries whose attributes can
+     * not be read to the second consumer.
+     */
+    public static void scan(java.io.File folder, Consumer<LocalEntry> consumer, BiConsumer<Path, IOException> unreadable) throws IOException {
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(folder.toPath())) {
+            for (Path path : stream) {
+                LocalEntry entry;
+                try {
+                    entry = entry(folder, path);
+                } catch (IOException e) {
+                    unreadable.accept(path, e);
+                    continue;
+                }
+                consumer.accept(entry);
+            }
+        }
+    }
+
+    public static List<LocalEntry> list(java.io.File folder, BiConsumer<Path, IOException> unreadable) throws IOException {
+        List<LocalEntry> result = new ArrayList<>();
+        scan(folder, result::add, unreadable);
+        return result;
+    }
+
+    /**
+     * Streams all files and folders below the root to the consumer, each folder before its contents.
+     */
+    public static void walk(java.io.File root, Consumer<LocalEntry> consumer) throws IOException {
+        Path rootPath = root.toPath();
+        Files.walkFileTree(rootPath, EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE, new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+                if (!dir.equals(rootPath)) consumer.accept(new LocalEntry(dir, attrs));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+                consumer.accept(new LocalEntry(file, attrs));
+                return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) throws IOException {
+                if (file.equals(rootPath)) throw e;
+                return FileVisitResult.CONTINUE;
+            }
+        });
+    }
+
+    private static LocalEntry entry(java.io.File folder, Path path) throws IOException {
+        return new LocalEntry(folder, path.getFileName().toString(), Files.readAttributes(path, BasicFileAttributes.class));
+    }
+}
@@ -0,0 +1,223 @@
+package net.vonbrandis.gdrivesync;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.DriveRequest;
+import com.google.api.services.drive.model.File;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Groups metadata-only drive operations (delete, trash, create folder, rename, move) into batch requests.
+ * Operations are sent once the batch is full, or on {@link #flush()}. Drive counts every part of a batch against
+ * the quota, so the rate limiter does too. Items that fail inside a batch are retried one by one with the regular
+ * backend calls, which throw on failure as before; an item rejected by the rate limit lowers the rate first.
+ * A batch that fails as a whole is sent again with only the items that got no answer; a folder creation
+ * that may have been carried out is not sent again, but looked up before it is retried on its own.
+ * Without a drive service, for instance on a simulated backend, every operation is sent on its own.
+ * A batch is not thread-safe, each FolderSynchronizer uses its own.
+ */
+public class MetadataBatch {
+
+    public interface Callback {
+        void completed(File result) throws IOException;
+    }
+
+    private abstract static class Operation {
+        final String description;
+        final Callback callback;
+
+        Operation(String description, Callback callback) {
+            this.description = description;
+            this.callback = callback;
+        }
+
+        abstract DriveRequest<?> request() throws IOException;
+
+        abstract File executeSingle() throws IOException;
+
+        /**
+         * Retries an operation that failed in a batch. Operations that are not idempotent check whether
+         * the failed attempt was carried out first.
+         */
+        File retrySingle() throws IOException {
+            return executeSingle();
+        }
+
+        boolean isIdempotent() {
+            return true;
+        }
+    }
+
+    private final DriveBackend backend;
+    private final Drive service;
+    private final RateLimiter limiter;
+    private final Progress progress;
+    private final int batchSize;
+    private final List<Operation> queued = new ArrayList<>();
+
+    public MetadataBatch(DriveBackend backend, Drive service, RateLimiter limiter, Progress progress, int batchSize) {
+        this.backend = backend;
+        this.service = service;
+        this.limiter = limiter;
+        this.progress = progress;
+        this.batchSize = service != null ? batchSize : 1;
+    }
+
+    public void delete(File driveFile, Callback callback) throws IOException {
+        add(new Operation("delete " + driveFile.getTitle(), callback) {
+            DriveRequest<?> request() throws IOException {
+                return service.files().delete(driveFile.getId());
+            }
+
+            File executeSingle() throws IOException {
+                backend.deleteDriveFile(driveFile);
+                return null;
+            }
+        });
+    }
+
+    public void trash(File driveFile, Callback callback) throws IOException {
+        add(new Operation("trash " + driveFile.getTitle(), callback) {
+            DriveRequest<?> request() throws IOException {
+                return service.files().trash(driveFile.getId()).setFields(GDrive.FILE_FIELDS);
+            }
+
+            File executeSingle() throws IOException {
+                return backend.trashDriveFile(driveFile);
+            }
+        });
+    }
+
+    public void createFolder(File parentFolder, String name, Callback callback) throws IOException {
+        add(new Operation("create folder " + parentFolder.getTitle() + "/" + name, callback) {
+            DriveRequest<?> request() throws IOException {
+                return service.files().insert(GDrive.folderMetadata(parentFolder, name)).setFields(GDrive.FILE_FIELDS);
+            }
+
+            File executeSingle() throws IOException {
+                return backend.createDriveFolder(parentFolder, name);
+            }
+
+            File retrySingle() throws IOException {
+                File existing = GDrive.findInFolder(service, limiter, parentFolder, name);
+                return existing != null ? existing : executeSingle();
+            }
+
+            boolean isIdempotent() {
+                return false;
+            }
+        });
+    }
+
+    public void rename(File driveFile, String title, Callback callback) throws IOException {
+        add(new Operation("rename " + driveFile.getTitle() + " to " + title, callback) {
+            DriveRequest<?> request() throws IOException {
+                return service.files().patch(driveFile.getId(), new File().setTitle(title)).setFields(GDrive.FILE_FIELDS);
+            }
+
+            File executeSingle() throws IOException {
+                return backend.renameDriveFile(driveFile, title);
+            }
+        });
+    }
+
+    /**
+     * Moves a file or folder. The callback gets null if the file no longer exists.
+     */
+    public void move(File driveFile, File parentFolder, String title, Callback callback) throws IOException {
+        add(new Operation("move " + driveFile.getTitle() + " to " + parentFolder.getTitle() + "/" + title, callback) {
+            DriveRequest<?> request() throws IOException {
+                return service.files().patch(driveFile.getId(), GDrive.moveMetadata(parentFolder, title)).setFields(GDrive.FILE_FIELDS);
+            }
+
+            File executeSingle() throws IOException {
+                return backend.moveDriveFile(driveFile, parentFolder, title);
+            }
+        });
+    }
+
+    /**
+     * Sends all queued operations, and retries failed items with single calls.
+     */
+    public void flush() throws IOException {
+        if (queued.isEmpty()) return;
+        List<Operation> operations = new ArrayList<>(queued);
+        queued.clear();
+
+        List<Operation> failed = new ArrayList<>();
+        //operations that got an answer, so a retried batch runs no callback twice
+        Set<Operation> answered = new HashSet<>();
+        boolean[] sent = {false};
+        long start = System.currentTimeMillis();
+        limiter.execute("batch", () -> {
+            BatchRequest batch = service.batch();
+            for (Operation op : operations) {
+                if (answered.contains(op)) continue;
+                if (sent[0] && !op.isIdempotent()) {
+                    //it may have been carried out by the failed batch
+                    answered.add(op);
+                    failed.add(op);
+                    continue;
+                }
+                queue(batch, op.request(), op, answered, failed);
+            }
+            sent[0] = true;
+            //the call itself counts as one request
+            limiter.acquire(batch.size() - 1);
+            if (batch.size() > 0) batch.execute();
+            return null;
+        });
+        progress.batchExecuted(operations.size(), failed.size(), System.currentTimeMillis() - start);
+
+        for (Operation op : failed) {
+            complete(op, op.retrySingle());
+        }
+    }
+
+    private void add(Operation op) throws IOException {
+        if (batchSize <= 1) {
+            complete(op, op.executeSingle());
+            return;
+        }
+        queued.add(op);
+        if (queued.size() >= batchSize) {
+            flush();
+        }
+    }
+
+    private <T> void queue(BatchRequest batch, DriveRequest<T> request, Operation op, Set<Operation> answered, List<Operation> failed) throws IOException {
+        request.queue(batch, new JsonBatchCallback<T>() {
+            @Override
+            public void onSuccess(T result, HttpHeaders responseHeaders) throws IOException {
+                answered.add(op);
+                complete(op, result instanceof File ? (File) result : null);
+            }
+
+            @Override
+            public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+                progress.operationFailed(op.description, error.getMessage());
+                if (isRateLimited(error)) limiter.throttled();
+                answered.add(op);
+                failed.add(op);
+            }
+        });
+    }
+
+    private static boolean isRateLimited(GoogleJsonError error) {
+        if (error.getCode() == 429) return true;
+        if (error.getCode() != 403 || error.getErrors() == null) return false;
+        return error.getErrors().stream().anyMatch(e -> "rateLimitExceeded".equals(e.getReason()) || "userRateLimitExceeded".equals(e.getReason()));
+    }
+
+    private void complete(Operation op, File result) throws IOException {
+        if (op.callback != null) op.callback.completed(result);
+    }
+}
@@ -0,0 +1,181 @@
+package net.vonbrandis.gdrivesync;
+
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.FileWriter;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * Exports the Progress metrics while a sync runs, as a JSON line appended to a file at a fixed
+ * interval, and in the Prometheus text format on http://localhost:port/metrics.
+ * A stalled sync shows as a growing seconds_since_progress, a slow one as a low upload rate.
+ */
+public class MetricsExporter {
+    private static final String PREFIX = "gdrivesync_";
+
+    private final Progress progress;
+    private final Map<String, LongSupplier> gauges = new LinkedHashMap<>();
+    private ScheduledExecutorService scheduler;
+    private Writer jsonWriter;
+    private HttpServer server;
+
+    public MetricsExporter(Progress progress) {
+        this.progress = progress;
+    }
+
+    /**
+     * Adds a value from outside Progress to the exported metrics. Gauges have to be added before the export starts.
+     */
+    public void addGauge(String name, LongSupplier value) {
+        gauges.put(name, value);
+    }
+
+    /**
+     * Appends a JSON line with the current metrics to the file every interval, and once more on close.
+     */
+    public void writeJsonLines(java.io.File file, long intervalMillis) throws IOException {
+        jsonWriter = new FileWriter(file, true);
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "metrics");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleAtFixedRate(this::writeJsonLine, intervalMillis, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Serves the metrics in the Prometheus text format on the loopback interface.
+     */
+    public void serveHttp(int port) throws IOException {
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            byte[] body = prometheus().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+    }
+
+    public void close() {
+        if (server != null) server.stop(0);
+        if (scheduler != null) {
+            scheduler.shutdown();
+            writeJsonLine();
+            try {
+                jsonWriter.close();
+            } catch (IOException e) {
+                progress.debug("Could not close metrics file: %s", e.getMessage());
+            }
+        }
+    }
+
+    private synchronized void writeJsonLine() {
+        try {
+            jsonWriter.write(json());
+            jsonWriter.write('\n');
+            jsonWriter.flush();
+        } catch (IOException e) {
+            progress.debug("Could not write metrics: %s", e.getMessage());
+        }
+    }
+
+    String json() {
+        long now = System.currentTimeMillis();
+        StringBuilder sb = new StringBuilder("{");
+        sb.append("\"time\":").append(now);
+        sb.append(",\"elapsed_seconds\":").append((now - progress.getStartTime()) / 1000);
+        for (Map.Entry<String, Long> counter : progress.getCounters().entrySet()) {
+            sb.append(",\"").append(counter.getKey()).append("\":").append(counter.getValue());
+        }
+        sb.append(",\"upload_bytes_per_second\":").append(format(progress.getUploadRate()));
+        sb.append(",\"seconds_since_progress\":").append((now - progress.getLastProgress()) / 1000);
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            sb.append(",\"").append(gauge.getKey()).append("\":").append(gauge.getValue().getAsLong());
+        }
+        sb.append(",\"latency\":{");
+        boolean first = true;
+        for (Map.Entry<String, LatencyHistogram> entry : progress.getLatencies().entrySet()) {
+            LatencyHistogram h = entry.getValue();
+            if (!first) sb.append(',');
+            first = false;
+            sb.append('"').append(entry.getKey()).append("\":{")
+                    .append("\"count\":").append(h.getCount())
+                    .append(",\"failed\":").append(h.getFailures())
+                    .append(",\"avg_ms\":").append(h.getCount() > 0 ? h.getSumMillis() / h.getCount() : 0)
+                    .append(",\"p50_ms\":").append(quantile(h, 0.5))
+                    .append(",\"p99_ms\":").append(quantile(h, 0.99))
+                    .append('}');
+        }
+        sb.append("}}");
+        return sb.toString();
+    }
+
+    String prometheus() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Long> counter : progress.getCounters().entrySet()) {
+            String name = PREFIX + counter.getKey() + "_total";
+            sb.append("# TYPE ").append(name).append(" counter\n");
+            sb.append(name).append(' ').append(counter.getValue()).append('\n');
+        }
+        gauge(sb, "upload_bytes_per_second", format(progress.getUploadRate()));
+        gauge(sb, "last_progress_timestamp_seconds", String.valueOf(progress.getLastProgress() / 1000));
+        gauge(sb, "start_timestamp_seconds", String.valueOf(progress.getStartTime() / 1000));
+        for (Map.Entry<String, LongSupplier> gauge : gauges.entrySet()) {
+            gauge(sb, gauge.getKey(), String.valueOf(gauge.getValue().getAsLong()));
+        }
+
+        Map<String, LatencyHistogram> latencies = progress.getLatencies();
+        String histogram = PREFIX + "drive_call_duration_seconds";
+        sb.append("# TYPE ").append(histogram).append(" histogram\n");
+        long[] bounds = LatencyHistogram.getBounds();
+        for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+            String op = entry.getKey();
+            LatencyHistogram h = entry.getValue();
+            long[] counts = h.getCumulativeCounts();
+            for (int i = 0; i < counts.length; i++) {
+                String le = i < bounds.length ? format(bounds[i] / 1000.0) : "+Inf";
+                sb.append(histogram).append("_bucket{operation=\"").append(op).append("\",le=\"").append(le).append("\"} ").append(counts[i]).append('\n');
+            }
+            sb.append(histogram).append("_sum{operation=\"").append(op).append("\"} ").append(format(h.getSumMillis() / 1000.0)).append('\n');
+            sb.append(histogram).append("_count{operation=\"").append(op).append("\"} ").append(h.getCount()).append('\n');
+        }
+        String failures = PREFIX + "drive_call_failures_total";
+        sb.append("# TYPE ").append(failures).append(" counter\n");
+        for (Map.Entry<String, LatencyHistogram> entry : latencies.entrySet()) {
+            sb.append(failures).append("{operation=\"").append(entry.getKey()).append("\"} ").append(entry.getValue().getFailures()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    private static void gauge(StringBuilder sb, String name, String value) {
+        sb.append("# TYPE ").append(PREFIX).append(name).append(" gauge\n");
+        sb.append(PREFIX).append(name).append(' ').append(value).append('\n');
+    }
+
+    /**
+     * @return the quantile in milliseconds, or null if it is above the last bucket bound
+     */
+    private static String quantile(LatencyHistogram h, double q) {
+        long millis = h.quantile(q);
+        return millis >= 0 ? String.valueOf(millis) : "null";
+    }
+
+    private static String format(double value) {
+        return String.format(Locale.ROOT, "%.3f", value);
+    }
+}
@@ -0,0 +1,160 @@
+package net.vonbrandis.gdrivesync;
+
+import com.google.api.services.drive.model.File;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Detects local files and folders that were moved or renamed, so they are moved on drive instead of
+ * being uploaded again and deleted at their old place.
+ * <p>
+ * Deletions of locally removed files are held back until the whole tree has been compared. A new local
+ * file or folder is matched with the drive file recorded in the sync state under its file key (inode),
+ * if the path it had then no longer exists, or in checksum mode with a removed file of the same size
+ * and MD5 that was found earlier in the run. Folders are only matched by file key. A matched drive file is moved,
+ * and not deleted afterwards.
+ * A folder is moved with all its contents, which are then compared as usual.
+ */
+public class MoveDetector {
+    private final SyncContext context;
+    private final Set<String> claimed = new HashSet<>();
+    private final Map<String, Source> removals = new LinkedHashMap<>();
+    private final Map<Long, List<Source>> removalsBySize = new HashMap<>();
+    private final List<java.io.File> movedFrom = new ArrayList<>();
+
+    /**
+     * A drive file together with the local path it belonged to.
+     */
+    public static class Source {
+        private final File driveFile;
+        private final java.io.File localFile;
+
+        Source(File driveFile, java.io.File localFile) {
+            this.driveFile = driveFile;
+            this.localFile = localFile;
+        }
+
+        public File getDriveFile() {
+            return driveFile;
+        }
+
+        public java.io.File getLocalFile() {
+            return localFile;
+        }
+    }
+
+    public MoveDetector(SyncContext context) {
+        this.context = context;
+    }
+
+    /**
+     * Records a drive file whose local file is gone. It is deleted by {@link #deleteRemoved()}, unless it is moved before.
+     */
+    public synchronized void removed(java.io.File localFile, File driveFile) {
+        if (claimed.contains(driveFile.getId())) return;
+        Source removal = new Source(driveFile, localFile);
+        removals.put(driveFile.getId(), removal);
+        if (driveFile.getMd5Checksum() != null && !GDrive.APPLICATION_VND_GOOGLE_APPS_FOLDER.equals(driveFile.getMimeType())) {
+            removalsBySize.computeIfAbsent(driveFile.getFileSize(), size -> new ArrayList<>()).add(removal);
+        }
+    }
+
+    /**
+     * Looks for the drive file a new local file or folder was moved from, and claims it, so it is not deleted.
+     *
+     * @return the drive file with its old local path, or null if the entry is new
+     */
+    public Source findSource(LocalEntry entry) throws IOException {
+        Source source = findByFileKey(entry);
+        return source != null ? source : findByChecksum(entry);
+    }
+
+    private Source findByFileKey(LocalEntry entry) {
+        SyncState state = context.getState();
+        if (state == null) return null;
+        java.io.File previous = state.findByFileKey(entry.getFileKey());
+        //the old path has to be gone, otherwise this is a hard link, or the inode of a deleted file was reused
+        if (previous == null || previous.equals(entry.getFile().getAbsoluteFile()) || previous.exists()) return null;
+        SyncState.Entry recorded = state.get(previous);
+        if (recorded == null || recorded.isFolder() != entry.isDirectory()) return null;
+        if (!entry.isDirectory() && (recorded.getSize() != entry.getSize() || recorded.getModified() != entry.getLastModified())) {
+            return null;
+        }
+        return claim(recorded.toDriveFile(previous.getName()), previous);
+    }
+
+    /**
+     * Matches a file with a removed file found earlier in the run. Folders have no checksum, so a renamed folder is
+     * only found by its file key, with the sync state (-u); without it, its files are uploaded again.
+     */
+    private Source findByChecksum(LocalEntry entry) throws IOException {
+        ChecksumCache checksums = context.getChecksums();
+        if (checksums == null || entry.isDirectory()) return null;
+        synchronized (this) {
+            if (!removalsBySize.containsKey(entry.getSize())) return null;
+        }
+        String md5 = checksums.md5(entry.getFile());
+        synchronized (this) {
+            List<Source> candidates = removalsBySize.get(entry.getSize());
+            if (candidates == null) return null;
+            for (Source removal : candidates) {
+                if (md5.equals(removal.driveFile.getMd5Checksum())) {
+                    return claim(removal.driveFile, removal.localFile);
+                }
+            }
+        }
+        return null;
+    }
+
+    private synchronized Source claim(File driveFile, java.io.File localFile) {
+        if (!claimed.add(driveFile.getId())) return null;
+        Source removal = removals.remove(driveFile.getId());
+        if (removal != null) {
+            List<Source> sameSize = removalsBySize.get(driveFile.getFileSize());
+            if (sameSize != null && sameSize.remove(removal) && sameSize.isEmpty()) {
+                removalsBySize.remove(driveFile.getFileSize());
+            }
+        }
+        movedFrom.add(localFile);
+        return new Source(driveFile, localFile);
+    }
+
+    /**
+     * Deletes the drive files of locally removed files that were not moved, and forgets the old paths of moved ones.
+     * Called once the whole tree has been compared.
+     */
+    public void deleteRemoved() throws IOException {
+        Progress progress = context.getProgress();
+        SyncState state = context.getState();
+        List<Source> pending;
+        synchronized (this) {
+            pending = new ArrayList<>(removals.values());
+            removals.clear();
+            removalsBySize.clear();
+            if (state != null) {
+                for (java.io.File localFile : movedFrom) {
+                    state.removed(localFile);
+                }
+            }
+            movedFrom.clear();
+        }
+        MetadataBatch batch = context.getService().newMetadataBatch(context.getBatchSize());
+        for (Source removal : pending) {
+            if (progress.isCancelled()) {
+                return;
+            }
+            progress.deleteFile(removal.driveFile.getTitle());
+            batch.delete(removal.driveFile, deleted -> {
+                if (state != null) state.removed(removal.localFile);
+            });
+        }
+        batch.flush();
+    }
+}
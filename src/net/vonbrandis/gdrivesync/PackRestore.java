@@ -0,0 +1,91 @@
+package net.vonbrandis.gdrivesync;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Extracts files packed by {@link PackStore}, from the index of a folder and a local copy of its segments,
+ * as downloaded from drive. Only the segments holding the requested files are opened, and every file gets back
+ * the modification time listed in the index.
+ * <p>
+ * Usage: java net.vonbrandis.gdrivesync.PackRestore &lt;index&gt; &lt;segmentfolder&gt; &lt;outputfolder&gt; [name...]
+ */
+public class PackRestore {
+
+    private PackRestore() {
+    }
+
+    public static void main(String[] args) {
+        if (args.length < 3) {
+            System.out.println(String.format("Usage: java %s <index> <segmentfolder> <outputfolder> [name...]", PackRestore.class.getName()));
+            System.exit(1);
+        }
+        try {
+            Set<String> names = args.length > 3 ? new HashSet<>(Arrays.asList(args).subList(3, args.length)) : null;
+            int count = restore(new java.io.File(args[0]), new java.io.File(args[1]), new java.io.File(args[2]), names);
+            System.out.println(String.format("Restored %d files to %s", count, args[2]));
+        } catch (IOException e) {
+            System.out.println("Restore failed: " + e.getMessage());
+            System.exit(2);
+        }
+    }
+
+    /**
+     * @param names the files to restore, or null for all
+     * @return the number of restored files
+     */
+    public static int restore(java.io.File indexFile, java.io.File segmentFolder, java.io.File outputFolder, Set<String> names) throws IOException {
+        int count = 0;
+        try (BufferedReader reader = Files.newBufferedReader(indexFile.toPath(), StandardCharsets.UTF_8)) {
+            String line;
+            String segmentName = null;
+            ZipFile segment = null;
+            try {
+                while ((line = reader.readLine()) != null) {
+                    if (line.isEmpty()) continue;
+                    //segment, size, modification time and name, the name last as it may contain tabs
+                    String[] fields = line.split("\t", 4);
+                    if (fields.length != 4) throw new IOException("Invalid line in index: " + line);
+                    if (names != null && !names.contains(fields[3])) continue;
+                    if (!fields[0].equals(segmentName)) {
+                        if (segment != null) segment.close();
+                        java.io.File segmentFile = new java.io.File(segmentFolder, fields[0]);
+                        if (!segmentFile.isFile()) throw new IOException("Missing segment " + fields[0]);
+                        segment = new ZipFile(segmentFile);
+                        segmentName = fields[0];
+                    }
+                    extract(segment, fields[3], Long.parseLong(fields[1]), Long.parseLong(fields[2]), outputFolder);
+                    count++;
+                }
+            } finally {
+                if (segment != null) segment.close();
+            }
+        }
+        return count;
+    }
+
+    private static void extract(ZipFile segment, String name, long size, long modified, java.io.File outputFolder) throws IOException {
+        ZipEntry entry = segment.getEntry(name);
+        if (entry == null) throw new IOException(String.format("Segment %s does not hold %s", segment.getName(), name));
+        java.io.File outputFile = new java.io.File(outputFolder, name);
+        java.io.File tmpFile = new java.io.File(outputFolder, name + ".tmp");
+        try (InputStream in = segment.getInputStream(entry)) {
+            Files.copy(in, tmpFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        }
+        if (tmpFile.length() != size) {
+            Files.delete(tmpFile.toPath());
+            throw new IOException(String.format("Restored %d bytes of %s, but the index lists %d", tmpFile.length(), name, size));
+        }
+        Files.move(tmpFile.toPath(), outputFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        outputFile.setLastModified(modified);
+    }
+}
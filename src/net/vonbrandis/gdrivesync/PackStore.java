@@ -0,0 +1,347 @@
+package net.vonbrandis.gdrivesync;
+
+import com.google.api.services.drive.model.File;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
+
+/**
+ * Packs the small files of a folder into compressed zip segments, so a folder of many tiny files takes a few
+ * uploads instead of one per file. Only folders with a {@value #MARKER} file are packed, its subfolders only if
+ * they have one as well; all files below {@value #MAX_PACKED_FILE_SIZE} bytes in a packed folder go into segments,
+ * larger ones are uploaded as usual.
+ * <p>
+ * The files are sorted by name and cut into segments of at most the segment size, with additional boundaries after
+ * files whose name hashes to a fixed pattern, so adding or removing a file only changes the segments up to the next
+ * such boundary, usually just its own. A segment
+ * is named after the hash of the names, sizes and modification times of its files: a segment that is already on
+ * drive is up to date, one that is not is compressed and uploaded, and segments no longer in use are deleted with
+ * the locally removed files. An index, named the same way, lists the segment, size and modification time of every
+ * packed file, so a file can be found without opening the segments; {@link PackRestore} extracts files with it.
+ * <p>
+ * Segments are compressed on a pool with a thread per core, ahead of their upload, with a limited number of
+ * compressed segments, and of their bytes, waiting for a transfer thread. The limits hold for all jobs together.
+ */
+public class PackStore {
+    public static final String MARKER = ".gdrivepack";
+    public static final String PREFIX = ".gdrivepack-";
+    public static final String INDEX_PREFIX = PREFIX + "index-";
+    public static final String SEGMENT_SUFFIX = ".zip";
+    public static final long MAX_PACKED_FILE_SIZE = 1024 * 1024;
+    public static final long MAX_SEGMENT_SIZE = 256 * 1024 * 1024;
+    //segments are held in memory between compression and upload, by all jobs together
+    private static final int MAX_BUFFERED_KB = (int) (2 * MAX_SEGMENT_SIZE / 1024);
+    //local and central zip headers and data descriptor, besides the name, which both headers hold
+    private static final int ZIP_ENTRY_OVERHEAD = 128;
+    private static final String ZIP_MIME_TYPE = "application/zip";
+    private static final String INDEX_MIME_TYPE = "text/plain";
+    //a boundary after about one in 256 files
+    private static final int BOUNDARY_MASK = 0xff;
+    private static final int CORES = Runtime.getRuntime().availableProcessors();
+
+    private final DriveBackend service;
+    private final Progress progress;
+    private final long segmentSize;
+    private static final Semaphore COMPRESSED = new Semaphore(2 * CORES);
+    private static final Semaphore BUFFERED = new Semaphore(MAX_BUFFERED_KB);
+
+    public PackStore(DriveBackend service, Progress progress, long segmentSize) {
+        this.service = service;
+        this.progress = progress;
+        this.segmentSize = Math.min(segmentSize, MAX_SEGMENT_SIZE);
+    }
+
+    /**
+     * @return true if the small files of the folder are packed
+     */
+    public boolean isPacked(java.io.File localFolder) {
+        return new java.io.File(localFolder, MARKER).isFile();
+    }
+
+    /**
+     * @return true if the entry of a packed folder goes into a segment
+     */
+    public boolean accepts(LocalEntry entry) {
+        //the index has a line per file, so names with line breaks are uploaded as usual
+        return !entry.isDirectory() && entry.getSize() < MAX_PACKED_FILE_SIZE
+                && entry.getName().indexOf('\n') < 0 && entry.getName().indexOf('\r') < 0;
+    }
+
+    /**
+     * The packed files of a folder in segments, with the index.
+     */
+    public static class Plan {
+        private final List<Segment> segments;
+        private final String indexName;
+        private final byte[] index;
+
+        Plan(List<Segment> segments, String indexName, byte[] index) {
+            this.segments = segments;
+            this.indexName = indexName;
+            this.index = index;
+        }
+
+        public List<Segment> getSegments() {
+            return segments;
+        }
+
+        public String getIndexName() {
+            return indexName;
+        }
+
+        /**
+         * @return the names of the segments and the index on drive
+         */
+        public Set<String> getNames() {
+            Set<String> names = new HashSet<>();
+            segments.forEach(s -> names.add(s.name));
+            if (indexName != null) names.add(indexName);
+            return names;
+        }
+    }
+
+    public static class Segment {
+        private final List<LocalEntry> files;
+        private final long size;
+        private final String name;
+
+        Segment(List<LocalEntry> files, long size, String name) {
+            this.files = files;
+            this.size = size;
+            this.name = name;
+        }
+
+        public String getName() {
+            return name;
+        }
+    }
+
+    /**
+     * Cuts the files into segments, and lists them in the index.
+     */
+    public Plan plan(List<LocalEntry> files) {
+        if (files.isEmpty()) return new Plan(Collections.emptyList(), null, null);
+        List<LocalEntry> sorted = new ArrayList<>(files);
+        sorted.sort(Comparator.comparing(LocalEntry::getName));
+        List<Segment> segments = new ArrayList<>();
+        List<LocalEntry> current = new ArrayList<>();
+        long currentSize = 0;
+        for (LocalEntry f : sorted) {
+            if (!current.isEmpty() && currentSize + f.getSize() > segmentSize) {
+                segments.add(segment(current, currentSize));
+                current = new ArrayList<>();
+                currentSize = 0;
+            }
+            current.add(f);
+            currentSize += f.getSize();
+            if ((f.getName().hashCode() * 0x9e3779b9 >>> 8 & BOUNDARY_MASK) == 0) {
+                segments.add(segment(current, currentSize));
+                current = new ArrayList<>();
+                currentSize = 0;
+            }
+        }
+        if (!current.isEmpty()) segments.add(segment(current, currentSize));
+
+        StringBuilder index = new StringBuilder();
+        for (Segment segment : segments) {
+            for (LocalEntry f : segment.files) {
+                index.append(segment.name).append('\t').append(f.getSize()).append('\t').append(f.getLastModified())
+                        .append('\t').append(f.getName()).append('\n');
+            }
+        }
+        byte[] content = index.toString().getBytes(StandardCharsets.UTF_8);
+        return new Plan(segments, INDEX_PREFIX + hash(content), content);
+    }
+
+    private static Segment segment(List<LocalEntry> files, long size) {
+        StringBuilder members = new StringBuilder();
+        for (LocalEntry f : files) {
+            members.append(f.getName()).append('\t').append(f.getSize()).append('\t').append(f.getLastModified()).append('\n');
+        }
+        return new Segment(files, size, PREFIX + hash(members.toString().getBytes(StandardCharsets.UTF_8)) + SEGMENT_SUFFIX);
+    }
+
+    /**
+     * Compresses the segments of the plan that are not on drive yet in the background, and queues their uploads
+     * into the drive folder. The index is uploaded by the last of them, once all are on drive.
+     * Blocks while too many compressed segments wait for their upload.
+     */
+    public void upload(File driveFolder, java.io.File localFolder, Plan plan, Predicate<String> onDrive, TransferExecutor transfers) throws IOException {
+        if (plan.indexName == null) return;
+        List<Segment> missing = new ArrayList<>();
+        for (Segment segment : plan.segments) {
+            if (!onDrive.test(segment.name)) missing.add(segment);
+        }
+        if (missing.isEmpty()) {
+            if (onDrive.test(plan.indexName)) return;
+            transfers.submit(plan.index.length, 0, () -> uploadIndex(driveFolder, plan));
+            return;
+        }
+        AtomicInteger remaining = new AtomicInteger(missing.size());
+        AtomicBoolean failed = new AtomicBoolean();
+        for (Segment segment : missing) {
+            //the buffer is allocated at its full size, and a single large segment may take the whole budget
+            long capacity = capacity(segment);
+            int kilobytes = (int) Math.min((capacity + 1023) / 1024, MAX_BUFFERED_KB);
+            if (!acquire(COMPRESSED, 1)) return;
+            if (!acquire(BUFFERED, kilobytes)) {
+                COMPRESSED.release();
+                return;
+            }
+            CompletableFuture<Buffer> archive = CompletableFuture.supplyAsync(() -> zip(segment, capacity), Compressors.POOL);
+            AtomicBoolean released = new AtomicBoolean();
+            Runnable release = () -> {
+                if (released.compareAndSet(false, true)) {
+                    BUFFERED.release(kilobytes);
+                    COMPRESSED.release();
+                }
+            };
+            try {
+                transfers.submit(segment.size, 0, () -> {
+                    boolean uploaded = false;
+                    try {
+                        long start = System.currentTimeMillis();
+                        Buffer content = get(archive);
+                        service.createDriveFile(driveFolder, segment.name, ZIP_MIME_TYPE, content.array(), content.size());
+                        progress.segmentUploaded(localFolder, segment.files.size(), segment.size, content.size(), System.currentTimeMillis() - start);
+                        uploaded = true;
+                    } finally {
+                        release.run();
+                        if (!uploaded) failed.set(true);
+                    }
+                    //an index is only written once all of its segments are on drive
+                    if (remaining.decrementAndGet() == 0 && !failed.get()) uploadIndex(driveFolder, plan);
+                });
+            } catch (RuntimeException | IOException e) {
+                //the transfer may never run, so its permits are handed back here
+                archive.cancel(false);
+                release.run();
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Waits for the permits, giving up if the run is cancelled.
+     *
+     * @return false if the run was cancelled
+     */
+    private boolean acquire(Semaphore semaphore, int permits) throws IOException {
+        try {
+            //transfers skipped after a cancel do not hand back their permits
+            while (!semaphore.tryAcquire(permits, 1, TimeUnit.SECONDS)) {
+                if (progress.isCancelled()) return false;
+            }
+            return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while waiting to compress a segment", e);
+        }
+    }
+
+    private void uploadIndex(File driveFolder, Plan plan) throws IOException {
+        service.createDriveFile(driveFolder, plan.indexName, INDEX_MIME_TYPE, plan.index);
+    }
+
+    /**
+     * @return the most bytes the zip of a segment can take, with compression that gains nothing
+     */
+    private static long capacity(Segment segment) {
+        //deflate adds 5 bytes to every 16 KB it can not compress, the end record 22 bytes
+        long capacity = segment.size + segment.size / 1024 + 64;
+        for (LocalEntry f : segment.files) {
+            capacity += ZIP_ENTRY_OVERHEAD + 2L * f.getName().getBytes(StandardCharsets.UTF_8).length;
+        }
+        return capacity;
+    }
+
+    private static Buffer zip(Segment segment, long capacity) {
+        Buffer bytes = new Buffer((int) Math.min(capacity, Integer.MAX_VALUE - 8));
+        try (ZipOutputStream zip = new ZipOutputStream(bytes)) {
+            for (LocalEntry f : segment.files) {
+                ZipEntry entry = new ZipEntry(f.getName());
+                entry.setTime(f.getLastModified());
+                zip.putNextEntry(entry);
+                zip.write(Files.readAllBytes(f.getFile().toPath()));
+                zip.closeEntry();
+            }
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+        return bytes;
+    }
+
+    private static Buffer get(CompletableFuture<Buffer> archive) throws IOException {
+        try {
+            return archive.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while compressing a segment", e);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof UncheckedIOException) throw ((UncheckedIOException) e.getCause()).getCause();
+            throw new IOException("Could not compress a segment", e.getCause());
+        }
+    }
+
+    private static String hash(byte[] content) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder sb = new StringBuilder();
+        byte[] hash = digest.digest(content);
+        //64 bits tell the segments of a folder apart
+        for (int i = 0; i < 8; i++) {
+            sb.append(String.format("%02x", hash[i]));
+        }
+        return sb.toString();
+    }
+
+    /**
+     * A compressed segment, uploaded from the buffer it was written into instead of a copy.
+     */
+    private static class Buffer extends ByteArrayOutputStream {
+        Buffer(int capacity) {
+            super(capacity);
+        }
+
+        byte[] array() {
+            return buf;
+        }
+    }
+
+    /**
+     * The compression threads, shared by all runs and started on first use.
+     */
+    private static class Compressors {
+        static final ExecutorService POOL = Executors.newFixedThreadPool(CORES, r -> {
+            Thread t = new Thread(r, "compress");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+}
@@ -2,23 +2,46 @@ package net.vonbrandis.gdrivesync;
 
 import com.google.api.services.drive.model.File;
 
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.LongAdder;
+
 public class Progress {
+    private static final int THROUGHPUT_WINDOW_SECONDS = 60;
 
-    private int createdFiles;
-    private int updatedFiles;
-    private int uploadedBytes;
-    private int deletedFiles;
-    private int createdFolders;
+    //counters are updated from the transfer threads
+    private final LongAdder createdFiles = new LongAdder();
+    private final LongAdder updatedFiles = new LongAdder();
+    private final LongAdder uploadedBytes = new LongAdder();
+    private final LongAdder deletedFiles = new LongAdder();
+    private final LongAdder movedFiles = new LongAdder();
+    private final LongAdder chunkedFiles = new LongAdder();
+    private final LongAdder uploadedChunks = new LongAdder();
+    private final LongAdder deletedChunks = new LongAdder();
+    private final LongAdder packedFiles = new LongAdder();
+    private final LongAdder uploadedSegments = new LongAdder();
+    private final LongAdder createdFolders = new LongAdder();
+    private final LongAdder failedBatchItems = new LongAdder();
+    private final LongAdder retriedCalls = new LongAdder();
+    private final ConcurrentMap<String, LatencyHistogram> latencies = new ConcurrentHashMap<>();
+    private final ThroughputWindow throughput = new ThroughputWindow(THROUGHPUT_WINDOW_SECONDS);
+    //bytes of resumable uploads already counted in the throughput, per file
+    private final ConcurrentMap<java.io.File, Long> acknowledgedBytes = new ConcurrentHashMap<>();
+    private volatile long lastProgress;
     private long startTime;
 
     private boolean debug = false;
     private boolean transactions = false;
     private boolean folderSummary = false;
     private boolean totalSummary = true;
-    private boolean cancelled = false;
+    private volatile boolean cancelled = false;
 
     public Progress() {
         startTime = System.currentTimeMillis();
+        lastProgress = startTime;
     }
 
     public void newline() {
@@ -29,10 +52,10 @@ public class Progress {
         double bps = bytes / (millis / 1000.0);
         if (bps > 1000000) {
             return String.format("%.1f MB/s", bps / 1000000);
-        } else if (bytes > 1000) {
-            return String.format("%.1f KB/s", bps / 1000000);
+        } else if (bps > 1000) {
+            return String.format("%.1f KB/s", bps / 1000);
         } else {
-            return String.format("%d B/s", bytes);
+            return String.format("%d B/s", (long) bps);
         }
     }
 
@@ -79,11 +102,11 @@ public class Progress {
                 localFile.getName(),
                 formattedBytes(localFile.length())
         ));
-        createdFiles++;
-        uploadedBytes += localFile.length();
     }
 
     public void fileCreated(java.io.File localFile, File driveFolder, long millis) {
+        createdFiles.increment();
+        uploaded(localFile, localFile.length());
         if (!transactions) return;
         System.out.println(String.format(">>> Uploaded file %s as %s/%s (%s, %.2f seconds, %s)",
                 localFile.getName(),
@@ -93,14 +116,28 @@ public class Progress {
                 millis / 1000.0,
                 transferSpeed(localFile.length(), millis)
         ));
-        createdFiles++;
-        uploadedBytes += localFile.length();
+    }
+
+    public void chunkUploaded(java.io.File localFile, long offset, long size) {
+        Long previous = acknowledgedBytes.put(localFile, offset);
+        throughput.add(offset - (previous != null ? previous : 0));
+        lastProgress = System.currentTimeMillis();
+        if (!debug) return;
+        System.out.println(String.format(">>> Uploaded %s of %s of %s", formattedBytes(offset), formattedBytes(size), localFile.getName()));
+    }
+
+    public void uploadResumed(java.io.File localFile, long offset, long size) {
+        //the bytes before the offset were sent by an earlier run
+        acknowledgedBytes.put(localFile, offset);
+        if (!transactions) return;
+        System.out.println(String.format(">>> Resuming upload of %s at %s of %s", localFile.getName(), formattedBytes(offset), formattedBytes(size)));
     }
 
     public void createDirectory(String folder) {
+        createdFolders.increment();
+        lastProgress = System.currentTimeMillis();
         if (!transactions) return;
         System.out.println(String.format(">>> Creating folder %s", folder));
-        createdFolders++;
     }
 
     public void updateFile(File driveFile, java.io.File localFile) {
@@ -110,11 +147,11 @@ public class Progress {
                 formattedBytes(localFile.length()),
                 formattedBytes(driveFile.getFileSize())
         ));
-        updatedFiles++;
-        uploadedBytes += localFile.length();
     }
 
     public void fileUpdated(File driveFile, java.io.File localFile, long millis) {
+        updatedFiles.increment();
+        uploaded(localFile, localFile.length());
         if (!transactions) return;
         System.out.println(String.format(">>> Updated file %s (%s, %s remote, %.2f seconds, %s)",
                 driveFile.getTitle(),
@@ -123,14 +160,104 @@ public class Progress {
                 millis / 1000.0,
                 transferSpeed(localFile.length(), millis)
         ));
-        updatedFiles++;
-        uploadedBytes += localFile.length();
+    }
+
+    public void chunksStored(java.io.File localFile, int chunks, int uploaded, long uploadedBytes, long millis) {
+        chunkedFiles.increment();
+        uploadedChunks.add(uploaded);
+        uploaded(localFile, uploadedBytes);
+        if (!transactions) return;
+        System.out.println(String.format(">>> Stored file %s in %d chunks, %d new (%s of %s, %.2f seconds, %s)",
+                localFile.getName(),
+                chunks,
+                uploaded,
+                formattedBytes(uploadedBytes),
+                formattedBytes(localFile.length()),
+                millis / 1000.0,
+                transferSpeed(uploadedBytes, millis)
+        ));
+    }
+
+    public void chunkDeleted(String hash, long size) {
+        deletedChunks.increment();
+        lastProgress = System.currentTimeMillis();
+        if (!transactions) return;
+        System.out.println(String.format("!!! Deleting unused chunk %s (%s)", hash, formattedBytes(size)));
+    }
+
+    public void segmentUploaded(java.io.File localFolder, int files, long size, long compressedSize, long millis) {
+        packedFiles.add(files);
+        uploadedSegments.increment();
+        uploaded(localFolder, compressedSize);
+        if (!transactions) return;
+        System.out.println(String.format(">>> Uploaded %d files of %s as a segment (%s, %s compressed, %.2f seconds, %s)",
+                files,
+                localFolder,
+                formattedBytes(size),
+                formattedBytes(compressedSize),
+                millis / 1000.0,
+                transferSpeed(compressedSize, millis)
+        ));
     }
 
     public void deleteFile(String fileName) {
+        deletedFiles.increment();
+        lastProgress = System.currentTimeMillis();
         if (!transactions) return;
         System.out.println(String.format("!!! Deleting file %s", fileName));
-        deletedFiles++;
+    }
+
+    public void moveFile(java.io.File from, java.io.File to) {
+        movedFiles.increment();
+        lastProgress = System.currentTimeMillis();
+        if (!transactions) return;
+        System.out.println(String.format(">>> Moving %s to %s", from, to));
+    }
+
+    public void batchExecuted(int size, int failed, long millis) {
+        if (!debug) return;
+        System.out.println(String.format("<<< Executed batch of %d operations (%d failed, %.2f seconds)", size, failed, millis / 1000.0));
+    }
+
+    public void operationFailed(String description, String reason) {
+        failedBatchItems.increment();
+        if (!transactions) return;
+        System.out.println(String.format("!!! Batched %s failed (%s), retrying", description, reason));
+    }
+
+    public void retrying(String operation, int attempt, long delay, String reason) {
+        retriedCalls.increment();
+        if (!transactions) return;
+        System.out.println(String.format("!!! Drive %s failed (%s), retry %d in %.1f seconds", operation, reason, attempt, delay / 1000.0));
+    }
+
+    public void rateLowered(double rate) {
+        if (!debug) return;
+        System.out.println(String.format("!!! Rate limited by drive, lowering request rate to %.1f/s", rate));
+    }
+
+    /**
+     * Records the latency of one drive call, counting failed attempts separately from retries.
+     */
+    public void apiCall(String operation, long millis, boolean failed) {
+        latencies.computeIfAbsent(operation, op -> new LatencyHistogram()).record(millis, failed);
+    }
+
+    private void uploaded(java.io.File localFile, long size) {
+        uploadedBytes.add(size);
+        Long acknowledged = acknowledgedBytes.remove(localFile);
+        throughput.add(size - (acknowledged != null ? acknowledged : 0));
+        lastProgress = System.currentTimeMillis();
+    }
+
+    /**
+     * Reports a pipeline stage: the items it processed, its largest queue, the time its threads were busy
+     * (or -1 if unknown) and the time the previous stage waited for its queue to drain.
+     */
+    public void stageSummary(String stage, long processed, int maxDepth, long busyMillis, long waitedMillis) {
+        if (!debug) return;
+        System.out.println(String.format("Stage %-8s processed %7d, max queue %5d, busy %8s ms, waited on %8d ms", stage, processed, maxDepth,
+                busyMillis >= 0 ? String.valueOf(busyMillis) : "-", waitedMillis));
     }
 
     public void folderSummary(String msg, Object... params) {
@@ -143,16 +270,78 @@ public class Progress {
         long elapsed = System.currentTimeMillis() - startTime;
         System.out.println();
         System.out.println("********* SUMMARY *****************");
-        printProperty("Created files", createdFiles);
-        printProperty("Created folders", createdFolders);
-        printProperty("Updated files", updatedFiles);
-        printProperty("Deleted files", deletedFiles);
-        printProperty("Uploaded bytes", formattedBytes(uploadedBytes));
+        printProperty("Created files", createdFiles.sum());
+        printProperty("Created folders", createdFolders.sum());
+        printProperty("Updated files", updatedFiles.sum());
+        printProperty("Deleted files", deletedFiles.sum());
+        printProperty("Moved files", movedFiles.sum());
+        printProperty("Chunked files", chunkedFiles.sum());
+        printProperty("Uploaded chunks", uploadedChunks.sum());
+        printProperty("Deleted chunks", deletedChunks.sum());
+        printProperty("Packed files", packedFiles.sum());
+        printProperty("Uploaded segments", uploadedSegments.sum());
+        printProperty("Retried batch items", failedBatchItems.sum());
+        printProperty("Retried calls", retriedCalls.sum());
+        printProperty("Uploaded bytes", formattedBytes(uploadedBytes.sum()));
         printProperty("Time spent", formattedTime(elapsed));
-        printProperty("Average speed", transferSpeed(uploadedBytes, elapsed));
+        printProperty("Average speed", transferSpeed(uploadedBytes.sum(), elapsed));
+        if (debug) {
+            getLatencies().forEach((op, h) -> printProperty("Drive " + op, String.format("%d calls, %d failed, avg %d ms, p50 <= %s, p99 <= %s",
+                    h.getCount(), h.getFailures(), h.getCount() > 0 ? h.getSumMillis() / h.getCount() : 0, bound(h.quantile(0.5)), bound(h.quantile(0.99)))));
+        }
         System.out.println("***********************************");
     }
 
+    private static String bound(long millis) {
+        return millis >= 0 ? millis + " ms" : "inf";
+    }
+
+    /**
+     * @return the counters by metric name, for export
+     */
+    public Map<String, Long> getCounters() {
+        Map<String, Long> counters = new LinkedHashMap<>();
+        counters.put("created_files", createdFiles.sum());
+        counters.put("created_folders", createdFolders.sum());
+        counters.put("updated_files", updatedFiles.sum());
+        counters.put("deleted_files", deletedFiles.sum());
+        counters.put("moved_files", movedFiles.sum());
+        counters.put("chunked_files", chunkedFiles.sum());
+        counters.put("uploaded_chunks", uploadedChunks.sum());
+        counters.put("deleted_chunks", deletedChunks.sum());
+        counters.put("packed_files", packedFiles.sum());
+        counters.put("uploaded_segments", uploadedSegments.sum());
+        counters.put("retried_batch_items", failedBatchItems.sum());
+        counters.put("retried_calls", retriedCalls.sum());
+        counters.put("uploaded_bytes", uploadedBytes.sum());
+        return counters;
+    }
+
+    /**
+     * @return the latency histograms by drive operation, sorted by name
+     */
+    public Map<String, LatencyHistogram> getLatencies() {
+        return new TreeMap<>(latencies);
+    }
+
+    /**
+     * @return the upload rate in bytes per second over the last minute
+     */
+    public double getUploadRate() {
+        return throughput.getRate();
+    }
+
+    /**
+     * @return the time of the last completed upload, chunk, folder creation or deletion
+     */
+    public long getLastProgress() {
+        return lastProgress;
+    }
+
+    public long getStartTime() {
+        return startTime;
+    }
+
     private void printProperty(String key, Object value) {
         System.out.println(String.format("%30s: %s", key, value));
     }
@@ -0,0 +1,197 @@
+package net.vonbrandis.gdrivesync;
+
+import com.google.api.client.http.HttpResponseException;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket shared by all drive calls, which retries throttled and failed calls with
+ * exponential backoff and jitter, and reports the latency of every attempt to Progress. The allowed request rate adapts to the quota (AIMD): every
+ * rate limit error halves it, at most once per second, and every successful call raises it
+ * a little, by about one request per second per second, up to the configured maximum.
+ * Without a maximum the rate is unlimited until the first rate limit error, which then sets
+ * it to half the rate observed at that moment.
+ */
+public class RateLimiter {
+    private static final double MIN_RATE = 0.5;
+    private static final double INCREASE = 1.0;
+    private static final long DECREASE_INTERVAL = 1000;
+    private static final int DEFAULT_MAX_RETRIES = 8;
+    private static final long DEFAULT_BASE_DELAY = 1000;
+    private static final long DEFAULT_MAX_DELAY = 64000;
+
+    public interface Call<T> {
+        T execute() throws IOException;
+    }
+
+    private final Progress progress;
+    private final double maxRate;
+    private final int maxRetries;
+    private final long baseDelay;
+    private final long maxDelay;
+    private final Random random = new Random();
+
+    private double rate;
+    private double tokens;
+    private long lastRefill = System.nanoTime();
+    private long lastDecrease;
+    private long windowStart = System.currentTimeMillis();
+    private int windowCount;
+    private double observedRate;
+
+    /**
+     * @param maxRate the maximum number of requests per second, or 0 for no limit
+     */
+    public RateLimiter(Progress progress, double maxRate) {
+        this(progress, maxRate, DEFAULT_MAX_RETRIES, DEFAULT_BASE_DELAY, DEFAULT_MAX_DELAY);
+    }
+
+    public RateLimiter(Progress progress, double maxRate, int maxRetries, long baseDelay, long maxDelay) {
+        this.progress = progress;
+        this.maxRate = maxRate > 0 ? maxRate : Double.POSITIVE_INFINITY;
+        this.rate = this.maxRate;
+        this.tokens = Math.min(this.maxRate, 1);
+        this.maxRetries = maxRetries;
+        this.baseDelay = baseDelay;
+        this.maxDelay = maxDelay;
+    }
+
+    /**
+     * Executes a call when the rate allows it, retrying it while it fails with a retryable error.
+     * Only for calls that can be repeated safely, such as get, list, patch, update and delete.
+     */
+    public <T> T execute(String operation, Call<T> call) throws IOException {
+        return execute(operation, call, null);
+    }
+
+    /**
+     * Executes a call that must not simply be repeated, such as an insert. A server error or timeout may come
+     * after drive carried out the call, so before a retry, recover looks for its result, which is returned if
+     * there is one. Calls rejected by the rate limit were not carried out, and are retried right away.
+     *
+     * @param recover returns the result of an earlier attempt, or null if there is none
+     */
+    public <T> T execute(String operation, Call<T> call, Call<T> recover) throws IOException {
+        for (int attempt = 1; ; attempt++) {
+            acquire();
+            long start = System.currentTimeMillis();
+            try {
+                T result = call.execute();
+                progress.apiCall(operation, System.currentTimeMillis() - start, false);
+                succeeded();
+                return result;
+            } catch (IOException e) {
+                progress.apiCall(operation, System.currentTimeMillis() - start, true);
+                if (!isRetryable(e) || attempt > maxRetries) throw e;
+                if (isRateLimited(e)) throttled();
+                long delay = backoff(attempt);
+                progress.retrying(operation, attempt, delay, e.getMessage());
+                sleep(delay);
+                if (recover != null && !isRateLimited(e)) {
+                    T result = recover.execute();
+                    if (result != null) {
+                        progress.debug("%s succeeded before it failed, not retrying it", operation);
+                        return result;
+                    }
+                }
+            }
+        }
+    }
+
+    public synchronized double getRate() {
+        return rate;
+    }
+
+    private void acquire() throws IOException {
+        acquire(1);
+    }
+
+    /**
+     * Waits for the rate to allow more requests, such as the parts of a batch beyond the one the call is counted as.
+     */
+    void acquire(int requests) throws IOException {
+        if (requests <= 0) return;
+        long wait;
+        synchronized (this) {
+            countRequest(requests);
+            if (Double.isInfinite(rate)) return;
+            long now = System.nanoTime();
+            tokens = Math.min(Math.max(rate, 1), tokens + (now - lastRefill) / 1e9 * rate);
+            lastRefill = now;
+            //tokens may go negative, every caller waits for its own reserved slot
+            tokens -= requests;
+            wait = tokens >= 0 ? 0 : (long) (-tokens / rate * 1000);
+        }
+        sleep(wait);
+    }
+
+    private synchronized void countRequest(int requests) {
+        long now = System.currentTimeMillis();
+        windowCount += requests;
+        if (now - windowStart >= 1000) {
+            observedRate = windowCount * 1000.0 / (now - windowStart);
+            windowStart = now;
+            windowCount = 0;
+        }
+    }
+
+    private synchronized void succeeded() {
+        if (rate < maxRate) {
+            rate = Math.min(maxRate, rate + INCREASE / rate);
+        }
+    }
+
+    /**
+     * Lowers the rate after a rate limit error, also one reported for a part of a batch.
+     */
+    synchronized void throttled() {
+        long now = System.currentTimeMillis();
+        if (now - lastDecrease < DECREASE_INTERVAL) return;
+        lastDecrease = now;
+        //a partial window counts as a whole second, so a burst does not overstate the rate
+        double current = Double.isInfinite(rate)
+                ? Math.max(Math.max(observedRate, windowCount * 1000.0 / Math.max(1000, now - windowStart)), 2 * MIN_RATE)
+                : rate;
+        rate = Math.max(MIN_RATE, current / 2);
+        tokens = Math.min(tokens, 0);
+        progress.rateLowered(rate);
+    }
+
+    /**
+     * Exponential backoff with jitter, between half and all of baseDelay * 2^(attempt-1), capped at maxDelay.
+     */
+    private long backoff(int attempt) {
+        long delay = Math.min(maxDelay, baseDelay << Math.min(attempt - 1, 20));
+        return delay / 2 + (long) (random.nextDouble() * delay / 2);
+    }
+
+    static boolean isRetryable(IOException e) {
+        if (e instanceof HttpResponseException) {
+            int status = ((HttpResponseException) e).getStatusCode();
+            return status >= 500 || isRateLimited(e);
+        }
+        return e instanceof SocketTimeoutException;
+    }
+
+    static boolean isRateLimited(IOException e) {
+        if (!(e instanceof HttpResponseException)) return false;
+        HttpResponseException response = (HttpResponseException) e;
+        if (response.getStatusCode() == 429) return true;
+        String content = response.getContent();
+        return response.getStatusCode() == 403 && content != null
+                && (content.contains("rateLimitExceeded") || content.contains("userRateLimitExceeded"));
+    }
+
+    private static void sleep(long millis) throws IOException {
+        if (millis <= 0) return;
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package net.vonbrandis.gdrivesync;
+
+import com.google.api.services.drive.model.Change;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.ParentReference;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * In-memory parent/child index of all drive files, built from a single paged listing
+ * of the whole account instead of one listing per folder.
+ * The index can be saved together with the id of the last change it reflects, and brought
+ * up to date on the next run by replaying the changes since then.
+ * <p>
+ * Files are kept in a compact form rather than as File objects, with the mime type interned and the id of a
+ * parent shared by all its children, so a tree of millions of files fits in a fraction of the heap the listing took.
+ */
+public class RemoteIndex {
+    private static final int MAGIC = 0x47534932;
+    //before titles, mime types and MD5s could be missing
+    private static final int OLD_MAGIC = 0x47534931;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    //keyed by id, so changes remove a child without searching the folder
+    private final Map<String, Map<String, Node>> children = new HashMap<>();
+    private final Map<String, Node> files = new HashMap<>();
+    private long changeId;
+
+    private static class Node {
+        final String id;
+        final String title;
+        final String mimeType;
+        final long size;
+        final long modified;
+        final String md5;
+        final String[] parents;
+
+        Node(String id, String title, String mimeType, long size, long modified, String md5, String[] parents) {
+            this.id = id;
+            this.title = title;
+            this.mimeType = mimeType != null ? mimeType.intern() : null;
+            this.size = size;
+            this.modified = modified;
+            this.md5 = md5;
+            this.parents = parents;
+        }
+    }
+
+    public static RemoteIndex load(DriveBackend service, Progress progress) throws IOException {
+        progress.debug("<<< Listing all drive files");
+        long start = System.currentTimeMillis();
+        RemoteIndex index = new RemoteIndex();
+        service.listAllFiles(index::add);
+        progress.debug("Indexed %d drive files in %d ms", index.size(), System.currentTimeMillis() - start);
+        return index;
+    }
+
+    /**
+     * Loads a cached index and brings it up to date from the change feed. If there is no cached
+     * index yet, the whole drive is listed, starting from the change id at the time of the listing.
+     */
+    public static RemoteIndex loadIncremental(java.io.File cacheFile, DriveBackend service, ChangeFeed feed, Progress progress) throws IOException {
+        if (!cacheFile.exists()) {
+            long changeId = feed.currentChangeId();
+            RemoteIndex index = load(service, progress);
+            index.changeId = changeId;
+            return index;
+        }
+        long start = System.currentTimeMillis();
+        RemoteIndex index = read(cacheFile);
+        if (index == null) {
+            progress.debug("Cached drive index has an old format, listing all files again");
+            cacheFile.delete();
+            return loadIncremental(cacheFile, service, feed, progress);
+        }
+        progress.debug("Loaded %d cached drive files in %d ms", index.size(), System.currentTimeMillis() - start);
+        int changes = index.applyChanges(feed);
+        progress.debug("Applied %d drive changes up to change %d", changes, index.getChangeId());
+        return index;
+    }
+
+    public synchronized void add(File file) {
+        List<ParentReference> parents = file.getParents() != null ? file.getParents() : Collections.emptyList();
+        String[] parentIds = new String[parents.size()];
+        for (int i = 0; i < parentIds.length; i++) {
+            parentIds[i] = parents.get(i).getId();
+        }
+        add(file.getId(), file.getTitle(), file.getMimeType(), file.getFileSize() != null ? file.getFileSize() : -1,
+                file.getModifiedDate() != null ? file.getModifiedDate().getValue() : -1, file.getMd5Checksum(), parentIds);
+    }
+
+    private void add(String id, String title, String mimeType, long size, long modified, String md5, String[] parents) {
+        remove(id);
+        for (int i = 0; i < parents.length; i++) {
+            //share the id string of the parent, or of its siblings, instead of holding a copy per child
+            Node parent = files.get(parents[i]);
+            if (parent != null) {
+                parents[i] = parent.id;
+            } else {
+                Map<String, Node> siblings = children.get(parents[i]);
+                if (siblings != null && !siblings.isEmpty()) parents[i] = sharedParentId(siblings.values().iterator().next(), parents[i]);
+            }
+        }
+        Node node = new Node(id, title, mimeType, size, modified, md5, parents);
+        files.put(id, node);
+        for (String parent : parents) {
+            children.computeIfAbsent(parent, p -> new LinkedHashMap<>()).put(id, node);
+        }
+    }
+
+    private static String sharedParentId(Node sibling, String parentId) {
+        for (String id : sibling.parents) {
+            if (id.equals(parentId)) return id;
+        }
+        return parentId;
+    }
+
+    public synchronized void remove(String fileId) {
+        Node node = files.remove(fileId);
+        if (node == null) return;
+        for (String parent : node.parents) {
+            Map<String, Node> siblings = children.get(parent);
+            if (siblings == null) continue;
+            siblings.remove(fileId);
+            if (siblings.isEmpty()) children.remove(parent);
+        }
+    }
+
+    /**
+     * Applies all changes after the current change id.
+     *
+     * @return the number of changes applied
+     */
+    public int applyChanges(ChangeFeed feed) throws IOException {
+        int count = 0;
+        long largestChangeId = changeId;
+        String pageToken = null;
+        do {
+            ChangeFeed.Page page = feed.fetchChanges(changeId + 1, pageToken);
+            for (Change change : page.getChanges()) {
+                apply(change);
+                count++;
+            }
+            largestChangeId = Math.max(largestChangeId, page.getLargestChangeId());
+            pageToken = page.getNextPageToken();
+        } while (pageToken != null && pageToken.length() > 0);
+        changeId = largestChangeId;
+        return count;
+    }
+
+    private void apply(Change change) {
+        File file = change.getFile();
+        boolean trashed = file != null && file.getLabels() != null && Boolean.TRUE.equals(file.getLabels().getTrashed());
+        if (Boolean.TRUE.equals(change.getDeleted()) || file == null || trashed) {
+            remove(change.getFileId());
+        } else {
+            add(file);
+        }
+    }
+
+    public synchronized RemoteListing children(File folder) {
+        Map<String, Node> list = children.get(folder.getId());
+        if (list == null) return new RemoteListing();
+        RemoteListing listing = new RemoteListing(list.size());
+        for (Node node : list.values()) {
+            listing.add(node.title, node.id, node.mimeType, node.size, node.modified, node.md5);
+        }
+        return listing;
+    }
+
+    public synchronized int size() {
+        return files.size();
+    }
+
+    public long getChangeId() {
+        return changeId;
+    }
+
+    public synchronized void save(java.io.File cacheFile) throws IOException {
+        java.io.File tmpFile = new java.io.File(cacheFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            out.writeLong(changeId);
+            out.writeInt(files.size());
+            for (Node node : files.values()) {
+                out.writeUTF(node.id);
+                writeOptional(out, node.title);
+                writeOptional(out, node.mimeType);
+                out.writeLong(node.size);
+                out.writeLong(node.modified);
+                writeOptional(out, node.md5);
+                out.writeInt(node.parents.length);
+                for (String parent : node.parents) {
+                    out.writeUTF(parent);
+                }
+            }
+        }
+        Files.move(tmpFile.toPath(), cacheFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * @return the cached index, or null if it was written in an older format
+     */
+    private static RemoteIndex read(java.io.File cacheFile) throws IOException {
+        RemoteIndex index = new RemoteIndex();
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(cacheFile), BUFFER_SIZE))) {
+            int magic = in.readInt();
+            if (magic == OLD_MAGIC) return null;
+            if (magic != MAGIC) {
+                throw new IOException("Not a remote index file: " + cacheFile);
+            }
+            index.changeId = in.readLong();
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                String id = in.readUTF();
+                String title = readOptional(in);
+                String mimeType = readOptional(in);
+                long size = in.readLong();
+                long modified = in.readLong();
+                String md5 = readOptional(in);
+                String[] parents = new String[in.readInt()];
+                for (int p = 0; p < parents.length; p++) {
+                    parents[p] = in.readUTF();
+                }
+                index.add(id, title, mimeType, size, modified, md5, parents);
+            }
+        }
+        return index;
+    }
+
+    //a flag before every field that may be null
+    private static void writeOptional(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) out.writeUTF(value);
+    }
+
+    private static String readOptional(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+}
@@ -0,0 +1,191 @@
+package net.vonbrandis.gdrivesync;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.File;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * The files of one drive folder, held in parallel arrays instead of as File objects.
+ * A File is a generic map with boxed values, a DateTime and a list of parent references, several hundred bytes
+ * per file; here a file costs its title and id, a few primitives and a slot in an open addressing table of
+ * titles. Mime types are interned, as there are only a few of them. A File is only rebuilt when an operation
+ * on drive needs one.
+ * <p>
+ * Titles are unique in a listing: of several drive files with the same title, the last one added is kept.
+ * A listing is filled and read by one thread at a time.
+ */
+public class RemoteListing {
+    private static final int INITIAL_CAPACITY = 16;
+
+    private String[] titles;
+    private String[] ids;
+    private String[] mimeTypes;
+    private long[] sizes;
+    private long[] modified;
+    private long[] md5High;
+    private long[] md5Low;
+    private boolean[] hasMd5;
+    private int count;
+    //index + 1 of the file with a title, by hash of the title, 0 for a free slot
+    private int[] table;
+
+    public RemoteListing() {
+        this(INITIAL_CAPACITY);
+    }
+
+    public RemoteListing(int capacity) {
+        allocate(Math.max(capacity, INITIAL_CAPACITY));
+    }
+
+    public static RemoteListing of(Collection<File> files) {
+        RemoteListing listing = new RemoteListing(files.size());
+        files.forEach(listing::add);
+        return listing;
+    }
+
+    public void add(File file) {
+        add(file.getTitle(), file.getId(), file.getMimeType(), file.getFileSize() != null ? file.getFileSize() : -1,
+                file.getModifiedDate() != null ? file.getModifiedDate().getValue() : -1, file.getMd5Checksum());
+    }
+
+    /**
+     * @param size     the size in bytes, or -1 if there is none, as for folders
+     * @param modified the modification time in milliseconds, or -1 if unknown
+     * @param md5      the checksum in hex, or null
+     */
+    public void add(String title, String id, String mimeType, long size, long modified, String md5) {
+        int i = indexOf(title);
+        if (i < 0) {
+            if (count == titles.length) grow();
+            i = count++;
+            insert(title, i);
+        }
+        titles[i] = title;
+        ids[i] = id;
+        mimeTypes[i] = mimeType != null ? mimeType.intern() : null;
+        sizes[i] = size;
+        this.modified[i] = modified;
+        hasMd5[i] = isMd5(md5);
+        md5High[i] = hasMd5[i] ? Long.parseUnsignedLong(md5.substring(0, 16), 16) : 0;
+        md5Low[i] = hasMd5[i] ? Long.parseUnsignedLong(md5.substring(16), 16) : 0;
+    }
+
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return the index of the file with the title, or -1 if there is none
+     */
+    public int indexOf(String title) {
+        int mask = table.length - 1;
+        for (int slot = hash(title) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+            if (titles[table[slot] - 1].equals(title)) return table[slot] - 1;
+        }
+        return -1;
+    }
+
+    public boolean contains(String title) {
+        return indexOf(title) >= 0;
+    }
+
+    /**
+     * @return the file with the title, or null if there is none
+     */
+    public File get(String title) {
+        int i = indexOf(title);
+        return i >= 0 ? toDriveFile(i) : null;
+    }
+
+    public String getTitle(int i) {
+        return titles[i];
+    }
+
+    public String getId(int i) {
+        return ids[i];
+    }
+
+    public String getMimeType(int i) {
+        return mimeTypes[i];
+    }
+
+    public boolean isFolder(int i) {
+        return GDrive.APPLICATION_VND_GOOGLE_APPS_FOLDER.equals(mimeTypes[i]);
+    }
+
+    public long getSize(int i) {
+        return sizes[i];
+    }
+
+    public long getModified(int i) {
+        return modified[i];
+    }
+
+    /**
+     * @return the checksum in hex, or null if there is none
+     */
+    public String getMd5Checksum(int i) {
+        return hasMd5[i] ? String.format("%016x%016x", md5High[i], md5Low[i]) : null;
+    }
+
+    /**
+     * @return a new File with the fields of the listing
+     */
+    public File toDriveFile(int i) {
+        File file = new File().setId(ids[i]).setTitle(titles[i]).setMimeType(mimeTypes[i]).setMd5Checksum(getMd5Checksum(i));
+        if (sizes[i] >= 0) file.setFileSize(sizes[i]);
+        if (modified[i] >= 0) file.setModifiedDate(new DateTime(modified[i]));
+        return file;
+    }
+
+    private static boolean isMd5(String md5) {
+        if (md5 == null || md5.length() != 32) return false;
+        for (int i = 0; i < md5.length(); i++) {
+            if (Character.digit(md5.charAt(i), 16) < 0) return false;
+        }
+        return true;
+    }
+
+    private static int hash(String title) {
+        int h = title.hashCode() * 0x9e3779b9;
+        return h ^ (h >>> 16);
+    }
+
+    private void insert(String title, int index) {
+        int mask = table.length - 1;
+        int slot = hash(title) & mask;
+        while (table[slot] != 0) slot = (slot + 1) & mask;
+        table[slot] = index + 1;
+    }
+
+    private void allocate(int capacity) {
+        titles = new String[capacity];
+        ids = new String[capacity];
+        mimeTypes = new String[capacity];
+        sizes = new long[capacity];
+        modified = new long[capacity];
+        md5High = new long[capacity];
+        md5Low = new long[capacity];
+        hasMd5 = new boolean[capacity];
+        //at most half full
+        table = new int[Integer.highestOneBit(capacity * 2 - 1) * 2];
+    }
+
+    private void grow() {
+        int capacity = titles.length * 2;
+        titles = Arrays.copyOf(titles, capacity);
+        ids = Arrays.copyOf(ids, capacity);
+        mimeTypes = Arrays.copyOf(mimeTypes, capacity);
+        sizes = Arrays.copyOf(sizes, capacity);
+        modified = Arrays.copyOf(modified, capacity);
+        md5High = Arrays.copyOf(md5High, capacity);
+        md5Low = Arrays.copyOf(md5Low, capacity);
+        hasMd5 = Arrays.copyOf(hasMd5, capacity);
+        table = new int[Integer.highestOneBit(capacity * 2 - 1) * 2];
+        for (int i = 0; i < count; i++) {
+            insert(titles[i], i);
+        }
+    }
+}
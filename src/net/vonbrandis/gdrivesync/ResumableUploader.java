@@ -0,0 +1,193 @@
+package net.vonbrandis.gdrivesync;
+
+import com.google.api.client.http.ByteArrayContent;
+import com.google.api.client.http.EmptyContent;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpContent;
+import com.google.api.client.http.HttpRequest;
+import com.google.api.client.http.HttpResponse;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.http.json.JsonHttpContent;
+import com.google.api.services.drive.Drive;
+import com.google.api.services.drive.model.File;
+
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.Properties;
+
+/**
+ * Uploads large files in chunks using the drive resumable upload protocol.
+ * The upload session URI and the last acknowledged offset are saved in the session directory
+ * after every chunk, so an interrupted upload continues where it stopped on the next run,
+ * provided the local file did not change in the meantime.
+ */
+public class ResumableUploader {
+    private static final String UPLOAD_URL = "https://www.googleapis.com/upload/drive/v2/files";
+    private static final int STATUS_RESUME_INCOMPLETE = 308;
+    private static final int STATUS_NOT_FOUND = 404;
+    private static final int STATUS_GONE = 410;
+    /**
+     * Drive requires chunks to be a multiple of 256 KB, except for the last one.
+     */
+    public static final int CHUNK_GRANULARITY = 256 * 1024;
+
+    private final Drive service;
+    private final Progress progress;
+    private final java.io.File sessionDir;
+    private final long threshold;
+    private final int chunkSize;
+
+    public ResumableUploader(Drive service, Progress progress, java.io.File sessionDir, long threshold, int chunkSize) {
+        if (chunkSize <= 0 || chunkSize % CHUNK_GRANULARITY != 0) {
+            throw new IllegalArgumentException("Chunk size must be a multiple of 256 KB");
+        }
+        this.service = service;
+        this.progress = progress;
+        this.sessionDir = sessionDir;
+        this.threshold = threshold;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * @return true if the file is large enough to be uploaded in chunks
+     */
+    public boolean accepts(java.io.File localFile) {
+        return localFile.length() >= threshold;
+    }
+
+    public File create(File metadata, java.io.File localFile) throws IOException {
+        String target = "create:" + metadata.getParents().get(0).getId() + "/" + metadata.getTitle();
+        return upload("POST", new GenericUrl(UPLOAD_URL), target, metadata, localFile);
+    }
+
+    public File update(File driveFile, java.io.File localFile) throws IOException {
+        String target = "update:" + driveFile.getId();
+        File metadata = new File().setMimeType(driveFile.getMimeType());
+        return upload("PUT", new GenericUrl(UPLOAD_URL + "/" + driveFile.getId()), target, metadata, localFile);
+    }
+
+    private File upload(String method, GenericUrl url, String target, File metadata, java.io.File localFile) throws IOException {
+        long size = localFile.length();
+        long modified = localFile.lastModified();
+        java.io.File sessionFile = new java.io.File(sessionDir, String.format("upload-%08x", (target + " " + localFile.getAbsolutePath()).hashCode()));
+
+        //continue a previous session if the file is unchanged
+        Properties session = loadSession(sessionFile);
+        String sessionUri = null;
+        long offset = 0;
+        if (session != null && Long.parseLong(session.getProperty("size")) == size
+                && Long.parseLong(session.getProperty("modified")) == modified) {
+            sessionUri = session.getProperty("uri");
+            HttpResponse response = send(sessionUri, new EmptyContent(), "bytes */" + size);
+            if (isComplete(response)) {
+                sessionFile.delete();
+                return response.parseAs(File.class);
+            } else if (response.getStatusCode() == STATUS_RESUME_INCOMPLETE) {
+                offset = committedOffset(response);
+                response.ignore();
+                progress.uploadResumed(localFile, offset, size);
+            } else if (response.getStatusCode() == STATUS_NOT_FOUND || response.getStatusCode() == STATUS_GONE) {
+                //the session expired, start over
+                response.ignore();
+                sessionUri = null;
+            } else {
+                throw new HttpResponseException(response);
+            }
+        }
+        if (sessionUri == null) {
+            sessionUri = startSession(method, url, metadata, size);
+            saveSession(sessionFile, sessionUri, size, modified, 0);
+        }
+
+        //send the remaining chunks
+        byte[] buffer = new byte[(int) Math.min(chunkSize, Math.max(size - offset, 1))];
+        try (RandomAccessFile in = new RandomAccessFile(localFile, "r")) {
+            while (true) {
+                if (progress.isCancelled()) {
+                    throw new IOException("Upload of " + localFile + " cancelled at offset " + offset);
+                }
+                int length = (int) Math.min(buffer.length, size - offset);
+                in.seek(offset);
+                in.readFully(buffer, 0, length);
+                String range = length == 0 ? "bytes */" + size : String.format("bytes %d-%d/%d", offset, offset + length - 1, size);
+                HttpResponse response = send(sessionUri, new ByteArrayContent(metadata.getMimeType(), buffer, 0, length), range);
+                if (isComplete(response)) {
+                    sessionFile.delete();
+                    return response.parseAs(File.class);
+                } else if (response.getStatusCode() == STATUS_RESUME_INCOMPLETE) {
+                    offset = committedOffset(response);
+                    response.ignore();
+                    saveSession(sessionFile, sessionUri, size, modified, offset);
+                    progress.chunkUploaded(localFile, offset, size);
+                } else {
+                    throw new HttpResponseException(response);
+                }
+            }
+        }
+    }
+
+    private String startSession(String method, GenericUrl url, File metadata, long size) throws IOException {
+        url.set("uploadType", "resumable");
+        //the file returned by the last chunk has the fields asked for here
+        url.set("fields", GDrive.FILE_FIELDS);
+        HttpRequest request = service.getRequestFactory().buildRequest(method, url, new JsonHttpContent(service.getJsonFactory(), metadata));
+        request.getHeaders().set("X-Upload-Content-Type", metadata.getMimeType());
+        request.getHeaders().set("X-Upload-Content-Length", size);
+        HttpResponse response = request.execute();
+        try {
+            String location = response.getHeaders().getLocation();
+            if (location == null) {
+                throw new IOException("No upload session returned for " + metadata.getTitle());
+            }
+            return location;
+        } finally {
+            response.ignore();
+        }
+    }
+
+    private HttpResponse send(String sessionUri, HttpContent content, String contentRange) throws IOException {
+        HttpRequest request = service.getRequestFactory().buildPutRequest(new GenericUrl(sessionUri), content);
+        request.getHeaders().setContentRange(contentRange);
+        request.setParser(service.getObjectParser());
+        request.setThrowExceptionOnExecuteError(false);
+        request.setFollowRedirects(false);
+        return request.execute();
+    }
+
+    private static boolean isComplete(HttpResponse response) {
+        return response.getStatusCode() == 200 || response.getStatusCode() == 201;
+    }
+
+    /**
+     * Reads the offset after the last byte drive acknowledged, from a Range header such as "bytes=0-1048575".
+     */
+    private static long committedOffset(HttpResponse response) {
+        String range = response.getHeaders().getRange();
+        if (range == null) return 0;
+        return Long.parseLong(range.substring(range.indexOf('-') + 1)) + 1;
+    }
+
+    private static Properties loadSession(java.io.File sessionFile) throws IOException {
+        if (!sessionFile.exists()) return null;
+        Properties props = new Properties();
+        try (InputStream in = new FileInputStream(sessionFile)) {
+            props.load(in);
+        }
+        return props;
+    }
+
+    private static void saveSession(java.io.File sessionFile, String uri, long size, long modified, long offset) throws IOException {
+        Properties props = new Properties();
+        props.setProperty("uri", uri);
+        props.setProperty("size", Long.toString(size));
+        props.setProperty("modified", Long.toString(modified));
+        props.setProperty("offset", Long.toString(offset));
+        try (OutputStream out = new FileOutputStream(sessionFile)) {
+            props.store(out, "Resumable upload session");
+        }
+    }
+}
@@ -0,0 +1,489 @@
+package net.vonbrandis.gdrivesync;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.ParentReference;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Consumer;
+
+/**
+ * In-memory drive for benchmarking and testing the synchronizer without a Google account.
+ * Every call can be slowed down by a fixed latency, uploads share a link of limited bandwidth,
+ * and calls fail at a configurable rate with server errors, or with rate limit errors once
+ * the per-second quota is used up. All changes are recorded in a change feed.
+ * <p>
+ * As on drive, a folder may hold several files with the same title, deleting a folder deletes everything below it,
+ * trashed files drop out of the listings but are kept, and uploads get the MD5 checksum of their content. Only content uploaded from memory, such as chunks and manifests,
+ * is kept and can be downloaded. Callers get copies of the stored files, so changing a returned
+ * file does not change the drive.
+ */
+public class SimulatedDrive implements DriveBackend {
+    private static final int PAGE_SIZE = 1000;
+    private static final String RATE_LIMIT_ERROR = "{\"error\":{\"errors\":[{\"domain\":\"usageLimits\",\"reason\":\"rateLimitExceeded\"}],\"code\":403,\"message\":\"Rate Limit Exceeded\"}}";
+
+    private final Map<String, File> files = new HashMap<>();
+    //the files in every folder, by id
+    private final Map<String, Map<String, File>> children = new HashMap<>();
+    //the content of files uploaded from memory, so it can be downloaded again
+    private final Map<String, byte[]> contents = new HashMap<>();
+    private final InMemoryChangeFeed changes = new InMemoryChangeFeed(PAGE_SIZE);
+    private final Map<String, AtomicLong> calls = new LinkedHashMap<>();
+    private final AtomicLong uploadedBytes = new AtomicLong();
+    private final AtomicLong failures = new AtomicLong();
+    private final AtomicLong throttled = new AtomicLong();
+    private final Random random = new Random(1);
+    private long nextId;
+
+    private long latencyMillis;
+    private long bandwidth;
+    private double errorRate;
+    private int quotaPerSecond;
+    private RateLimiter limiter;
+
+    private long linkFreeAt;
+    private long quotaSecond;
+    private int quotaUsed;
+
+    /**
+     * Sets the time every call takes, on top of the time spent transferring data.
+     */
+    public void setLatency(long latencyMillis) {
+        this.latencyMillis = latencyMillis;
+    }
+
+    /**
+     * Sets the bandwidth in bytes per second of the link shared by all uploads, 0 for unlimited.
+     */
+    public void setBandwidth(long bandwidth) {
+        this.bandwidth = bandwidth;
+    }
+
+    /**
+     * Sets the fraction of calls that fail with a server error.
+     */
+    public void setErrorRate(double errorRate) {
+        this.errorRate = errorRate;
+    }
+
+    /**
+     * Sets the number of calls allowed per second before calls fail with a rate limit error, 0 for unlimited.
+     */
+    public void setQuotaPerSecond(int quotaPerSecond) {
+        this.quotaPerSecond = quotaPerSecond;
+    }
+
+    /**
+     * Sets a limiter that every call goes through, as GDrive does, so failed calls are retried.
+     */
+    public void setRateLimiter(RateLimiter limiter) {
+        this.limiter = limiter;
+    }
+
+    /**
+     * Creates a top level folder, to be found by fetchFolderByID.
+     */
+    public synchronized File createRootFolder(String name) {
+        return storeCopy(new File().setTitle(name).setMimeType(GDrive.APPLICATION_VND_GOOGLE_APPS_FOLDER)
+                .setParents(Collections.singletonList(new ParentReference().setId("root"))));
+    }
+
+    /**
+     * Adds a file without simulating any cost, to set up an existing drive. It has no checksum, as it has no content.
+     */
+    public synchronized File addFile(File parentFolder, String name, long size, long modified) {
+        return storeCopy(new File().setTitle(name).setMimeType(GDrive.APPLICATION_OCTET_STREAM)
+                .setFileSize(size).setModifiedDate(new DateTime(modified))
+                .setParents(Collections.singletonList(new ParentReference().setId(parentFolder.getId()))));
+    }
+
+    /**
+     * Adds a folder without simulating any cost, to set up an existing drive.
+     */
+    public synchronized File addFolder(File parentFolder, String name) {
+        return storeCopy(GDrive.folderMetadata(parentFolder, name));
+    }
+
+    public synchronized int size() {
+        return files.size();
+    }
+
+    public long getUploadedBytes() {
+        return uploadedBytes.get();
+    }
+
+    /**
+     * @return the number of calls per operation, plus failed and throttled calls
+     */
+    public synchronized Map<String, Long> getStatistics() {
+        Map<String, Long> result = new LinkedHashMap<>();
+        calls.forEach((op, count) -> result.put(op, count.get()));
+        result.put("failed", failures.get());
+        result.put("throttled", throttled.get());
+        return result;
+    }
+
+    @Override
+    public File fetchFolderByID(String parentFolderID, String name) throws IOException {
+        call("get");
+        synchronized (this) {
+            List<File> matches = new ArrayList<>();
+            for (File f : files.values()) {
+                boolean inParent = parentFolderID == null || f.getParents().get(0).getId().equals(parentFolderID);
+                if (inParent && f.getTitle().equals(name)) matches.add(f);
+            }
+            if (matches.size() > 1) {
+                throw new RuntimeException("Ambiguous folder: " + name);
+            }
+            if (matches.isEmpty()) {
+                throw new RuntimeException("No such folder: " + name);
+            }
+            return copy(matches.get(0));
+        }
+    }
+
+    @Override
+    public File fetchFileByID(String id) throws IOException {
+        call("get");
+        synchronized (this) {
+            File stored = files.get(id);
+            return stored != null ? copy(stored) : null;
+        }
+    }
+
+    @Override
+    public RemoteListing iterateDriveFolder(File parentFolder) throws IOException {
+        RemoteListing listing;
+        synchronized (this) {
+            Map<String, File> folder = children.get(parentFolder.getId());
+            //the listing copies what it needs of the stored files
+            listing = RemoteListing.of(folder != null ? folder.values() : Collections.emptyList());
+        }
+        for (int page = 0; page == 0 || page * PAGE_SIZE < listing.size(); page++) {
+            call("list");
+        }
+        return listing;
+    }
+
+    @Override
+    public void listAllFiles(Consumer<File> consumer) throws IOException {
+        List<File> list = new ArrayList<>();
+        synchronized (this) {
+            files.values().stream().filter(f -> !isTrashed(f)).forEach(f -> list.add(copy(f)));
+        }
+        for (int page = 0; page == 0 || page * PAGE_SIZE < list.size(); page++) {
+            call("list");
+            list.subList(page * PAGE_SIZE, Math.min((page + 1) * PAGE_SIZE, list.size())).forEach(consumer);
+        }
+    }
+
+    @Override
+    public void listFilesByMimeType(String mimeType, Consumer<File> consumer) throws IOException {
+        List<File> list = new ArrayList<>();
+        synchronized (this) {
+            files.values().stream().filter(f -> mimeType.equals(f.getMimeType())).forEach(f -> list.add(copy(f)));
+        }
+        for (int page = 0; page == 0 || page * PAGE_SIZE < list.size(); page++) {
+            call("list");
+            list.subList(page * PAGE_SIZE, Math.min((page + 1) * PAGE_SIZE, list.size())).forEach(consumer);
+        }
+    }
+
+    @Override
+    public File createDriveFolder(File parentFolder, String name) throws IOException {
+        call("insert");
+        synchronized (this) {
+            return storeCopy(GDrive.folderMetadata(parentFolder, name));
+        }
+    }
+
+    @Override
+    public File createDriveFile(File parentFolder, String driveFileName, java.io.File localFile) throws IOException {
+        call("insert");
+        transfer(localFile.length());
+        String md5 = md5(localFile);
+        synchronized (this) {
+            return storeCopy(new File().setTitle(driveFileName).setMimeType(GDrive.APPLICATION_OCTET_STREAM)
+                    .setFileSize(localFile.length()).setModifiedDate(new DateTime(System.currentTimeMillis())).setMd5Checksum(md5)
+                    .setParents(Collections.singletonList(new ParentReference().setId(parentFolder.getId()))));
+        }
+    }
+
+    @Override
+    public File updateDriveFile(File driveFile, java.io.File localFile) throws IOException {
+        call("update");
+        transfer(localFile.length());
+        String md5 = md5(localFile);
+        synchronized (this) {
+            File stored = existing(driveFile);
+            stored.setFileSize(localFile.length()).setModifiedDate(new DateTime(System.currentTimeMillis())).setMd5Checksum(md5);
+            contents.remove(stored.getId());
+            return changed(stored);
+        }
+    }
+
+    @Override
+    public File createDriveFile(File parentFolder, String driveFileName, String mimeType, byte[] buffer, int length) throws IOException {
+        call("insert");
+        transfer(length);
+        //the caller may reuse its buffer
+        byte[] content = Arrays.copyOf(buffer, length);
+        synchronized (this) {
+            File created = storeCopy(new File().setTitle(driveFileName).setMimeType(mimeType)
+                    .setFileSize((long) content.length).setModifiedDate(new DateTime(System.currentTimeMillis())).setMd5Checksum(md5(content))
+                    .setParents(Collections.singletonList(new ParentReference().setId(parentFolder.getId()))));
+            contents.put(created.getId(), content);
+            return created;
+        }
+    }
+
+    @Override
+    public File updateDriveFile(File driveFile, String mimeType, byte[] content) throws IOException {
+        call("update");
+        transfer(content.length);
+        synchronized (this) {
+            File stored = existing(driveFile);
+            stored.setMimeType(mimeType).setFileSize((long) content.length).setModifiedDate(new DateTime(System.currentTimeMillis()))
+                    .setMd5Checksum(md5(content));
+            contents.put(stored.getId(), content.clone());
+            return changed(stored);
+        }
+    }
+
+    @Override
+    public byte[] downloadDriveFile(File driveFile) throws IOException {
+        call("get");
+        synchronized (this) {
+            byte[] content = contents.get(existing(driveFile).getId());
+            if (content == null) throw new IOException("No content kept for " + driveFile.getTitle());
+            return content.clone();
+        }
+    }
+
+    @Override
+    public void deleteDriveFile(File driveFile) throws IOException {
+        call("delete");
+        synchronized (this) {
+            File stored = existing(driveFile);
+            children.get(parentId(stored)).remove(stored.getId());
+            //everything below a folder goes with it
+            Deque<File> pending = new ArrayDeque<>();
+            pending.add(stored);
+            while (!pending.isEmpty()) {
+                File f = pending.remove();
+                files.remove(f.getId());
+                contents.remove(f.getId());
+                Map<String, File> folder = children.remove(f.getId());
+                if (folder != null) pending.addAll(folder.values());
+                changes.fileDeleted(f.getId());
+            }
+        }
+    }
+
+    @Override
+    public File trashDriveFile(File driveFile) throws IOException {
+        call("trash");
+        synchronized (this) {
+            File stored = existing(driveFile);
+            children.get(parentId(stored)).remove(stored.getId());
+            //the trash keeps the files, with everything below a folder, out of the listings
+            Deque<File> pending = new ArrayDeque<>();
+            pending.add(stored);
+            while (!pending.isEmpty()) {
+                File f = pending.remove();
+                f.setLabels(new File.Labels().setTrashed(true));
+                Map<String, File> folder = children.get(f.getId());
+                if (folder != null) pending.addAll(folder.values());
+                changes.fileChanged(copy(f));
+            }
+            return copy(stored);
+        }
+    }
+
+    @Override
+    public File renameDriveFile(File driveFile, String title) throws IOException {
+        call("patch");
+        synchronized (this) {
+            File stored = existing(driveFile);
+            stored.setTitle(title);
+            return changed(stored);
+        }
+    }
+
+    @Override
+    public File moveDriveFile(File driveFile, File parentFolder, String title) throws IOException {
+        call("patch");
+        synchronized (this) {
+            File stored = files.get(driveFile.getId());
+            if (stored == null) return null;
+            children.get(parentId(stored)).remove(stored.getId());
+            stored.setTitle(title).setParents(Collections.singletonList(new ParentReference().setId(parentFolder.getId())));
+            children.computeIfAbsent(parentFolder.getId(), id -> new LinkedHashMap<>()).put(stored.getId(), stored);
+            return changed(stored);
+        }
+    }
+
+    @Override
+    public MetadataBatch newMetadataBatch(int batchSize) {
+        return new MetadataBatch(this, null, null, null, 1);
+    }
+
+    @Override
+    public long currentChangeId() {
+        return changes.currentChangeId();
+    }
+
+    @Override
+    public Page fetchChanges(long startChangeId, String pageToken) throws IOException {
+        call("changes");
+        return changes.fetchChanges(startChangeId, pageToken);
+    }
+
+    /**
+     * Stores a new file, and returns a copy of it.
+     */
+    private File storeCopy(File file) {
+        file.setId("sim" + (++nextId));
+        if (file.getModifiedDate() == null) file.setModifiedDate(new DateTime(System.currentTimeMillis()));
+        files.put(file.getId(), file);
+        children.computeIfAbsent(parentId(file), id -> new LinkedHashMap<>()).put(file.getId(), file);
+        return changed(file);
+    }
+
+    /**
+     * Records a change of a stored file in the feed, and returns a copy of it.
+     */
+    private File changed(File stored) {
+        changes.fileChanged(copy(stored));
+        return copy(stored);
+    }
+
+    /**
+     * Copies the fields the drive keeps. File.clone() cannot copy the immutable parent lists the callers pass in.
+     */
+    private static File copy(File stored) {
+        File copy = new File().setId(stored.getId()).setTitle(stored.getTitle()).setMimeType(stored.getMimeType())
+                .setFileSize(stored.getFileSize()).setModifiedDate(stored.getModifiedDate()).setMd5Checksum(stored.getMd5Checksum())
+                .setParents(Collections.singletonList(new ParentReference().setId(parentId(stored))));
+        if (stored.getLabels() != null) copy.setLabels(new File.Labels().setTrashed(stored.getLabels().getTrashed()));
+        return copy;
+    }
+
+    private static boolean isTrashed(File file) {
+        return file.getLabels() != null && Boolean.TRUE.equals(file.getLabels().getTrashed());
+    }
+
+    private static String parentId(File file) {
+        return file.getParents().get(0).getId();
+    }
+
+    private static String md5(java.io.File localFile) throws IOException {
+        return md5(Files.readAllBytes(localFile.toPath()));
+    }
+
+    private static String md5(byte[] content) {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        StringBuilder sb = new StringBuilder();
+        for (byte b : digest.digest(content)) {
+            sb.append(String.format("%02x", b));
+        }
+        return sb.toString();
+    }
+
+    private File existing(File driveFile) throws IOException {
+        File stored = files.get(driveFile.getId());
+        if (stored == null) {
+            throw new HttpResponseException.Builder(404, "File not found: " + driveFile.getId(), new HttpHeaders()).build();
+        }
+        return stored;
+    }
+
+    /**
+     * Accounts for one call through the rate limiter, if there is one. Calls fail before they change
+     * anything, so retrying just the accounting is the same as retrying the whole call.
+     */
+    private void call(String op) throws IOException {
+        if (limiter == null) {
+            attempt(op);
+        } else {
+            limiter.execute(op, () -> {
+                attempt(op);
+                return null;
+            });
+        }
+    }
+
+    /**
+     * Accounts for one attempt, failing it if the quota is exhausted or an error is due, and waits for the latency.
+     */
+    private void attempt(String op) throws IOException {
+        boolean overQuota;
+        boolean fail;
+        synchronized (this) {
+            calls.computeIfAbsent(op, k -> new AtomicLong()).incrementAndGet();
+            long second = System.currentTimeMillis() / 1000;
+            if (second != quotaSecond) {
+                quotaSecond = second;
+                quotaUsed = 0;
+            }
+            overQuota = quotaPerSecond > 0 && ++quotaUsed > quotaPerSecond;
+            fail = !overQuota && errorRate > 0 && random.nextDouble() < errorRate;
+        }
+        sleep(latencyMillis);
+        if (overQuota) {
+            throttled.incrementAndGet();
+            throw new HttpResponseException.Builder(403, "Forbidden", new HttpHeaders()).setContent(RATE_LIMIT_ERROR).build();
+        }
+        if (fail) {
+            failures.incrementAndGet();
+            throw new HttpResponseException.Builder(503, "Service Unavailable", new HttpHeaders()).build();
+        }
+    }
+
+    /**
+     * Reserves time on the shared link for the given number of bytes, and waits until they are sent.
+     */
+    private void transfer(long bytes) throws IOException {
+        uploadedBytes.addAndGet(bytes);
+        if (bandwidth <= 0) return;
+        long done;
+        synchronized (this) {
+            long start = Math.max(System.currentTimeMillis(), linkFreeAt);
+            linkFreeAt = start + bytes * 1000 / bandwidth;
+            done = linkFreeAt;
+        }
+        sleep(done - System.currentTimeMillis());
+    }
+
+    private static void sleep(long millis) throws IOException {
+        if (millis <= 0) return;
+        try {
+            TimeUnit.MILLISECONDS.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted", e);
+        }
+    }
+}
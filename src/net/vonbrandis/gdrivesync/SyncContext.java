@@ -0,0 +1,119 @@
+package net.vonbrandis.gdrivesync;
+
+import com.google.api.services.drive.model.File;
+
+import java.io.IOException;
+
+/**
+ * State shared by all FolderSynchronizers taking part in one sync run.
+ */
+public class SyncContext {
+    private final DriveBackend service;
+    private final Progress progress;
+    private final TransferExecutor transfers;
+    private RemoteIndex remoteIndex;
+    private SyncState state;
+    private int batchSize = 1;
+    private ChecksumCache checksums;
+    private IgnoreRules ignoreRules;
+    private ChunkStore chunkStore;
+    private PackStore packStore;
+    private final MoveDetector moveDetector = new MoveDetector(this);
+
+    public SyncContext(DriveBackend service, Progress progress, TransferExecutor transfers) {
+        this.service = service;
+        this.progress = progress;
+        this.transfers = transfers;
+    }
+
+    public DriveBackend getService() {
+        return service;
+    }
+
+    public Progress getProgress() {
+        return progress;
+    }
+
+    public TransferExecutor getTransfers() {
+        return transfers;
+    }
+
+    public RemoteIndex getRemoteIndex() {
+        return remoteIndex;
+    }
+
+    public void setRemoteIndex(RemoteIndex remoteIndex) {
+        this.remoteIndex = remoteIndex;
+    }
+
+    public SyncState getState() {
+        return state;
+    }
+
+    public void setState(SyncState state) {
+        this.state = state;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public ChecksumCache getChecksums() {
+        return checksums;
+    }
+
+    public void setChecksums(ChecksumCache checksums) {
+        this.checksums = checksums;
+    }
+
+    /**
+     * @return the ignore rules of the root folder, or null if nothing is ignored but hidden files
+     */
+    public IgnoreRules getIgnoreRules() {
+        return ignoreRules;
+    }
+
+    public void setIgnoreRules(IgnoreRules ignoreRules) {
+        this.ignoreRules = ignoreRules;
+    }
+
+    /**
+     * @return the store for large files kept in chunks, or null if all files are uploaded as a whole
+     */
+    public ChunkStore getChunkStore() {
+        return chunkStore;
+    }
+
+    public void setChunkStore(ChunkStore chunkStore) {
+        this.chunkStore = chunkStore;
+    }
+
+    /**
+     * @return the store packing the small files of marked folders, or null if all files are uploaded one by one
+     */
+    public PackStore getPackStore() {
+        return packStore;
+    }
+
+    public void setPackStore(PackStore packStore) {
+        this.packStore = packStore;
+    }
+
+    public MoveDetector getMoveDetector() {
+        return moveDetector;
+    }
+
+    /**
+     * Lists a drive folder from the remote index when one was loaded, and from drive otherwise.
+     */
+    public RemoteListing listDriveFolder(File driveFolder) throws IOException {
+        if (remoteIndex != null) {
+            return remoteIndex.children(driveFolder);
+        }
+        return service.iterateDriveFolder(driveFolder);
+    }
+}
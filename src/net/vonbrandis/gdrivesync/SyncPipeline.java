@@ -0,0 +1,204 @@
+package net.vonbrandis.gdrivesync;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Synchronizes a folder tree in pipelined stages, each with its own threads:
+ * <ol>
+ * <li>scan: lists local folders whose sync state may stand in for their drive listing, all others are streamed
+ * from the directory into the diff</li>
+ * <li>list: lists the matching drive folders</li>
+ * <li>diff: diffs the folders, creates and deletes on drive and hands uploads to the transfer executor</li>
+ * </ol>
+ * The stages are joined by bounded queues, and the diff stage blocks while the transfer queue is full,
+ * so a slow stage holds back the ones before it instead of letting listings pile up in memory.
+ * Subfolders found by the diff stage go back to the scan stage through an unbounded queue, which
+ * keeps the cycle free of deadlocks; it only holds folders that have not been scanned yet.
+ * While running, the queue depths are reported every few seconds in debug mode, and the time
+ * each stage spent working and blocked is reported at the end, to show which stage is the bottleneck.
+ * The first failure of any stage, errors included, stops all stages, and is rethrown by {@link #run}.
+ */
+public class SyncPipeline {
+    private static final long REPORT_INTERVAL = 10000;
+
+    private interface Step {
+        void run(FolderSynchronizer folder) throws IOException;
+    }
+
+    private final Progress progress;
+    private final TransferExecutor transfers;
+    private final Stage scan;
+    private final Stage list;
+    private final Stage diff;
+    private final List<Stage> stages = new ArrayList<>();
+    private final AtomicInteger pendingFolders = new AtomicInteger();
+    private final CountDownLatch finished = new CountDownLatch(1);
+    private final Object lock = new Object();
+    private Throwable failure;
+
+    /**
+     * @param folderThreads the number of threads scanning and diffing folders
+     * @param listThreads   the number of threads listing drive folders, which is also the maximum number of list calls in flight
+     * @param queueCapacity the number of folders each stage can hold before the previous stage blocks
+     */
+    public SyncPipeline(Progress progress, TransferExecutor transfers, int folderThreads, int listThreads, int queueCapacity) {
+        this.progress = progress;
+        this.transfers = transfers;
+        this.diff = new Stage("diff", folderThreads, new ArrayBlockingQueue<>(queueCapacity), this::diff, null);
+        this.list = new Stage("list", listThreads, new ArrayBlockingQueue<>(queueCapacity), FolderSynchronizer::fetchDriveFolder, diff);
+        this.scan = new Stage("scan", folderThreads, new LinkedBlockingQueue<>(), FolderSynchronizer::scanLocalFolder, list);
+        stages.add(scan);
+        stages.add(list);
+        stages.add(diff);
+    }
+
+    /**
+     * Synchronizes the tree below the root folder, and returns once every folder is diffed.
+     * Uploads may still be running, use {@link TransferExecutor#await()} to wait for them.
+     */
+    public void run(FolderSynchronizer root) throws IOException {
+        stages.forEach(Stage::start);
+        try {
+            submit(root);
+            while (!finished.await(REPORT_INTERVAL, TimeUnit.MILLISECONDS)) {
+                reportQueueDepths();
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Interrupted while synchronizing", e);
+        } finally {
+            stages.forEach(Stage::stop);
+        }
+        Throwable e;
+        synchronized (lock) {
+            e = failure;
+        }
+        if (e instanceof IOException) throw (IOException) e;
+        if (e instanceof RuntimeException) throw (RuntimeException) e;
+        if (e instanceof Error) throw (Error) e;
+        if (e != null) throw new IOException("Synchronization failed", e);
+    }
+
+    private void submit(FolderSynchronizer folder) {
+        pendingFolders.incrementAndGet();
+        scan.queue.add(folder);
+        scan.maxDepth.accumulateAndGet(scan.queue.size(), Math::max);
+    }
+
+    private void diff(FolderSynchronizer folder) throws IOException {
+        //subfolders are counted before their parent is done, so the count only drops to zero at the end
+        for (FolderSynchronizer subfolder : folder.synchronize()) {
+            submit(subfolder);
+        }
+        if (pendingFolders.decrementAndGet() == 0) finished.countDown();
+    }
+
+    private void fail(Throwable e) {
+        synchronized (lock) {
+            if (failure == null) failure = e;
+        }
+        finished.countDown();
+        //no stage takes on more work, and none stays blocked on a queue the failed stage no longer drains
+        stages.forEach(Stage::stop);
+    }
+
+    private void reportQueueDepths() {
+        StringBuilder sb = new StringBuilder("Pipeline queues:");
+        for (Stage stage : stages) {
+            sb.append(String.format(" %s %d", stage.name, stage.queue.size()));
+        }
+        sb.append(String.format(" transfer %d/%d", transfers.getQueueDepth(), transfers.getQueueCapacity()));
+        progress.debug(sb.toString());
+    }
+
+    /**
+     * Reports the totals of all stages, including the transfers, which should be finished by then.
+     */
+    public void reportStages() {
+        for (Stage stage : stages) {
+            progress.stageSummary(stage.name, stage.processed.get(), stage.maxDepth.get(),
+                    TimeUnit.NANOSECONDS.toMillis(stage.busyNanos.get()), TimeUnit.NANOSECONDS.toMillis(stage.blockedNanos.get()));
+        }
+        progress.stageSummary("transfer", transfers.getCompleted(), transfers.getMaxQueueDepth(), -1, transfers.getBlockedMillis());
+    }
+
+    private class Stage {
+        private final String name;
+        private final int threads;
+        private final BlockingQueue<FolderSynchronizer> queue;
+        private final Step step;
+        private final Stage next;
+        private final AtomicLong processed = new AtomicLong();
+        private final AtomicInteger maxDepth = new AtomicInteger();
+        private final AtomicLong busyNanos = new AtomicLong();
+        private final AtomicLong blockedNanos = new AtomicLong();
+        private ExecutorService executor;
+
+        Stage(String name, int threads, BlockingQueue<FolderSynchronizer> queue, Step step, Stage next) {
+            this.name = name;
+            this.threads = threads;
+            this.queue = queue;
+            this.step = step;
+            this.next = next;
+        }
+
+        void start() {
+            AtomicInteger counter = new AtomicInteger();
+            executor = Executors.newFixedThreadPool(threads, r -> {
+                Thread t = new Thread(r, name + "-" + counter.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            });
+            for (int i = 0; i < threads; i++) {
+                executor.execute(this::work);
+            }
+        }
+
+        void stop() {
+            executor.shutdownNow();
+        }
+
+        private void work() {
+            try {
+                while (!Thread.currentThread().isInterrupted()) {
+                    FolderSynchronizer folder = queue.take();
+                    long start = System.nanoTime();
+                    try {
+                        if (progress.isCancelled()) {
+                            //drain the pipeline without doing any more work
+                            if (pendingFolders.decrementAndGet() == 0) finished.countDown();
+                            continue;
+                        }
+                        step.run(folder);
+                    } catch (Throwable e) {
+                        fail(e);
+                        return;
+                    }
+                    busyNanos.addAndGet(System.nanoTime() - start);
+                    processed.incrementAndGet();
+                    if (next != null) next.put(folder);
+                }
+            } catch (InterruptedException e) {
+                //stopped
+            }
+        }
+
+        private void put(FolderSynchronizer folder) throws InterruptedException {
+            long start = System.nanoTime();
+            queue.put(folder);
+            blockedNanos.addAndGet(System.nanoTime() - start);
+            maxDepth.accumulateAndGet(queue.size(), Math::max);
+        }
+    }
+}
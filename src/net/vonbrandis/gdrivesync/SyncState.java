@@ -0,0 +1,330 @@
+package net.vonbrandis.gdrivesync;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.File;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+
+/**
+ * Local record of what was synchronized in previous runs, keyed by path relative to the source folder.
+ * The state is kept in an append-only binary log, which is loaded into memory at startup and
+ * compacted on close once it has grown well beyond the number of live entries.
+ * Folder entries are only written after a run completed, so an interrupted run never marks a
+ * folder as synchronized. Entries also keep the file key (the inode on Unix), so a file or folder
+ * that was moved locally can be found at its old path.
+ */
+public class SyncState {
+    private static final int MAGIC = 0x47535933;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final java.io.File logFile;
+    private final java.nio.file.Path root;
+    private final Map<String, Entry> entries;
+    private final Map<String, Entry> pendingFolders = new LinkedHashMap<>();
+    private final Map<String, String> keysByFileKey = new HashMap<>();
+    private DataOutputStream log;
+    private int records;
+
+    public static class Entry {
+        private final String driveId;
+        private final long size;
+        private final long modified;
+        private final long remoteModified;
+        private final boolean folder;
+        private final String md5Checksum;
+        private final String fileKey;
+
+        public Entry(String driveId, long size, long modified, long remoteModified, boolean folder, String md5Checksum, String fileKey) {
+            this.driveId = driveId;
+            this.size = size;
+            this.modified = modified;
+            this.remoteModified = remoteModified;
+            this.folder = folder;
+            this.md5Checksum = md5Checksum;
+            this.fileKey = fileKey;
+        }
+
+        public String getDriveId() {
+            return driveId;
+        }
+
+        public long getSize() {
+            return size;
+        }
+
+        public long getModified() {
+            return modified;
+        }
+
+        public long getRemoteModified() {
+            return remoteModified;
+        }
+
+        public boolean isFolder() {
+            return folder;
+        }
+
+        public String getMd5Checksum() {
+            return md5Checksum;
+        }
+
+        /**
+         * @return the file key of the local file, or null if the file system has none
+         */
+        public String getFileKey() {
+            return fileKey;
+        }
+
+        /**
+         * Reconstructs the drive file as it was when this entry was recorded.
+         */
+        public File toDriveFile(String title) {
+            return new File()
+                    .setId(driveId)
+                    .setTitle(title)
+                    .setMimeType(folder ? GDrive.APPLICATION_VND_GOOGLE_APPS_FOLDER : GDrive.APPLICATION_OCTET_STREAM)
+                    .setFileSize(size)
+                    .setModifiedDate(new DateTime(remoteModified))
+                    .setMd5Checksum(md5Checksum);
+        }
+
+        private boolean sameAs(Entry other) {
+            return other != null && driveId.equals(other.driveId) && size == other.size && modified == other.modified
+                    && remoteModified == other.remoteModified && folder == other.folder
+                    && Objects.equals(md5Checksum, other.md5Checksum) && Objects.equals(fileKey, other.fileKey);
+        }
+    }
+
+    private SyncState(java.io.File logFile, java.io.File localRoot, Map<String, Entry> entries, int records) {
+        this.logFile = logFile;
+        this.root = localRoot.getAbsoluteFile().toPath();
+        this.entries = entries;
+        this.records = records;
+        entries.forEach(this::indexFileKey);
+    }
+
+    /**
+     * Loads the state log for the given source folder, creating it if it does not exist. A log that is cut off
+     * keeps the records before the cut, a corrupt one is started afresh.
+     */
+    public static SyncState open(java.io.File logFile, java.io.File localRoot, Progress progress) throws IOException {
+        Map<String, Entry> entries = new HashMap<>();
+        int records = 0;
+        boolean truncated = false;
+        if (logFile.exists()) {
+            try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(logFile), BUFFER_SIZE))) {
+                //a log written by another version is discarded, it only serves to save work
+                int type = in.readInt() == MAGIC ? in.read() : -1;
+                for (; type != -1; type = in.read()) {
+                    String path = in.readUTF();
+                    if (type == PUT) {
+                        String driveId = in.readUTF();
+                        long size = in.readLong();
+                        long modified = in.readLong();
+                        long remoteModified = in.readLong();
+                        boolean folder = in.readBoolean();
+                        String md5 = in.readUTF();
+                        String fileKey = in.readUTF();
+                        entries.put(path, new Entry(driveId, size, modified, remoteModified, folder, md5.isEmpty() ? null : md5, fileKey.isEmpty() ? null : fileKey));
+                    } else if (type == REMOVE) {
+                        entries.remove(path);
+                    } else {
+                        throw new IOException("Unknown record type " + type);
+                    }
+                    records++;
+                }
+            } catch (EOFException e) {
+                //the last record was only partially written, drop it by rewriting the log
+                progress.debug("Dropping a partial record at the end of the sync state file %s", logFile);
+                truncated = true;
+            } catch (IOException e) {
+                //no record read from a damaged log can be trusted, but dropping them all only costs a full comparison
+                progress.log("!!! Discarding the corrupt sync state file %s (%s)", logFile, e.getMessage());
+                entries.clear();
+                records = 0;
+            }
+        }
+        SyncState state = new SyncState(logFile, localRoot, entries, records);
+        if (records == 0 || truncated) {
+            state.rewrite();
+        }
+        state.openLog();
+        return state;
+    }
+
+    public synchronized Entry get(java.io.File localFile) {
+        return entries.get(key(localFile));
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * Looks up where the file or folder with the given file key was when it was last synchronized.
+     *
+     * @return the local path it had then, or null if it is not known
+     */
+    public synchronized java.io.File findByFileKey(Object fileKey) {
+        if (fileKey == null) return null;
+        String key = keysByFileKey.get(fileKey.toString());
+        return key != null ? root.resolve(key).toFile() : null;
+    }
+
+    /**
+     * Returns true if the folder has not been modified since it was last completely synchronized.
+     */
+    public synchronized boolean isFolderUnchanged(java.io.File localFolder, long modified) {
+        Entry entry = entries.get(key(localFolder));
+        return entry != null && entry.isFolder() && entry.getModified() == modified;
+    }
+
+    /**
+     * Returns true if the local file has the same size and modification time as when it was last synchronized.
+     */
+    public synchronized boolean isFileUnchanged(LocalEntry localFile) {
+        Entry entry = entries.get(key(localFile.getFile()));
+        if (entry == null) return false;
+        if (localFile.isDirectory()) return entry.isFolder();
+        return !entry.isFolder() && entry.getSize() == localFile.getSize() && entry.getModified() == localFile.getLastModified();
+    }
+
+    /**
+     * Records a file as synchronized, with the size and modification time it had when it was scanned.
+     */
+    public synchronized void fileSynced(LocalEntry localFile, File driveFile) throws IOException {
+        long remoteModified = driveFile.getModifiedDate() != null ? driveFile.getModifiedDate().getValue() : 0;
+        put(key(localFile.getFile()), new Entry(driveFile.getId(), localFile.getSize(), localFile.getLastModified(), remoteModified, false,
+                driveFile.getMd5Checksum(), fileKey(localFile.getFileKey())));
+    }
+
+    /**
+     * Records a folder as synchronized. The entry is held back until {@link #commit()}.
+     *
+     * @param modified the modification time of the local folder before it was synchronized
+     * @param fileKey   the file key of the local folder, or null
+     */
+    public synchronized void folderSynced(java.io.File localFolder, File driveFolder, long modified, Object fileKey) {
+        pendingFolders.put(key(localFolder), new Entry(driveFolder.getId(), 0, modified, 0, true, null, fileKey(fileKey)));
+    }
+
+    /**
+     * Forgets a removed file, or a removed folder including everything below it.
+     */
+    public synchronized void removed(java.io.File localFile) throws IOException {
+        String key = key(localFile);
+        Entry entry = entries.remove(key);
+        if (entry == null) return;
+        unindexFileKey(key, entry);
+        writeRemove(key);
+        if (entry.isFolder()) {
+            String prefix = key + "/";
+            Iterator<Map.Entry<String, Entry>> it = entries.entrySet().iterator();
+            while (it.hasNext()) {
+                Map.Entry<String, Entry> child = it.next();
+                if (child.getKey().startsWith(prefix)) {
+                    it.remove();
+                    unindexFileKey(child.getKey(), child.getValue());
+                    writeRemove(child.getKey());
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes the folders recorded during a completed run.
+     */
+    public synchronized void commit() throws IOException {
+        for (Map.Entry<String, Entry> e : pendingFolders.entrySet()) {
+            put(e.getKey(), e.getValue());
+        }
+        pendingFolders.clear();
+        log.flush();
+    }
+
+    public synchronized void close() throws IOException {
+        log.close();
+        if (records > 2 * entries.size() + 1000) {
+            rewrite();
+        }
+    }
+
+    private void put(String key, Entry entry) throws IOException {
+        Entry previous = entries.get(key);
+        if (entry.sameAs(previous)) return;
+        if (previous != null) unindexFileKey(key, previous);
+        entries.put(key, entry);
+        indexFileKey(key, entry);
+        write(log, key, entry);
+        records++;
+    }
+
+    private void writeRemove(String key) throws IOException {
+        log.writeByte(REMOVE);
+        log.writeUTF(key);
+        records++;
+    }
+
+    private static void write(DataOutputStream out, String key, Entry entry) throws IOException {
+        out.writeByte(PUT);
+        out.writeUTF(key);
+        out.writeUTF(entry.getDriveId());
+        out.writeLong(entry.getSize());
+        out.writeLong(entry.getModified());
+        out.writeLong(entry.getRemoteModified());
+        out.writeBoolean(entry.isFolder());
+        out.writeUTF(entry.getMd5Checksum() != null ? entry.getMd5Checksum() : "");
+        out.writeUTF(entry.getFileKey() != null ? entry.getFileKey() : "");
+    }
+
+    private void indexFileKey(String key, Entry entry) {
+        if (entry.getFileKey() != null) keysByFileKey.put(entry.getFileKey(), key);
+    }
+
+    private void unindexFileKey(String key, Entry entry) {
+        if (entry.getFileKey() != null) keysByFileKey.remove(entry.getFileKey(), key);
+    }
+
+    private static String fileKey(Object fileKey) {
+        return fileKey != null ? fileKey.toString() : null;
+    }
+
+    private void openLog() throws IOException {
+        log = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(logFile, true), BUFFER_SIZE));
+    }
+
+    /**
+     * Replaces the log with a compacted copy containing only the live entries.
+     */
+    private void rewrite() throws IOException {
+        java.io.File tmpFile = new java.io.File(logFile.getPath() + ".tmp");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmpFile), BUFFER_SIZE))) {
+            out.writeInt(MAGIC);
+            for (Map.Entry<String, Entry> e : entries.entrySet()) {
+                write(out, e.getKey(), e.getValue());
+            }
+        }
+        Files.move(tmpFile.toPath(), logFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        records = entries.size();
+    }
+
+    private String key(java.io.File localFile) {
+        return root.relativize(localFile.getAbsoluteFile().toPath()).toString().replace(java.io.File.separatorChar, '/');
+    }
+}
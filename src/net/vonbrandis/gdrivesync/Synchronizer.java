@@ -21,22 +21,63 @@ import gnu.getopt.Getopt;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
 import java.util.Properties;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class Synchronizer {
 
     public static final String APPLICATION_NAME = "GoogleDriveSync";
     private static final boolean DRY_RUN = false;
     private static final String PROPERTIES_FILE = ".GoogleDriveSync";
-    private GDrive service;
+    private static final java.io.File DATA_STORE_LOCATION = new java.io.File("/tmp/gsync");
+    private static final int DEFAULT_CHUNK_SIZE_MB = 8;
+    //every transfer thread holds a chunk of a resumable upload in memory
+    private static final int MAX_CHUNK_SIZE_MB = 1024;
+    private static final int MAX_THREADS = 1000;
+    private static final long MB = 1024 * 1024;
+    private static final int PIPELINE_QUEUE_CAPACITY = 64;
+    private static final long METRICS_INTERVAL = 10000;
+    private static final String JOB_SEPARATOR = "->";
+    //a stored access token is used as long as it is valid for at least this long, the client refreshes it after that
+    private static final long MIN_TOKEN_VALIDITY_SECONDS = 300;
+    private DriveBackend service;
     private String localRootFolder;
     private String driveRootFolder;
     private Progress progress;
+    private int transferThreads = 1;
+    private TransferExecutor.Policy transferPolicy = TransferExecutor.Policy.FIFO;
+    private long maxBytesInFlight = 0;
+    private TransferExecutor transferPool;
+    private int folderThreads = 1;
+    private int maxListCalls = 0;
+    private boolean bulkListing = false;
+    private java.io.File stateFile;
+    private java.io.File remoteIndexFile;
+    private int batchSize = 1;
+    private java.io.File checksumFile;
+    private java.io.File ignoreFile;
+    private java.io.File rootFolderFile;
+    private long chunkThreshold = -1;
+    private boolean sweepChunks;
+    private long packSegmentSize = -1;
+    private SyncState state;
+    private ChecksumCache checksums;
 
     public Synchronizer(Progress progress, Drive service, String localFolder, String driveFolder) {
+        this(progress, new GDrive(service, progress, DRY_RUN), localFolder, driveFolder);
+    }
+
+    public Synchronizer(Progress progress, DriveBackend service, String localFolder, String driveFolder) {
         this.progress = progress;
-        this.service = new GDrive(service, progress, DRY_RUN);
+        this.service = service;
         this.localRootFolder = localFolder;
         this.driveRootFolder = driveFolder;
     }
@@ -48,8 +89,7 @@ public class Synchronizer {
         return str;
     }
 
-    private static Drive setupGoogleDrive(java.io.File dataStoreLocation, Properties props, boolean interactive) throws IOException {
-        HttpTransport httpTransport = new NetHttpTransport();
+    private static Drive setupGoogleDrive(HttpTransport httpTransport, java.io.File dataStoreLocation, Properties props, boolean interactive) throws IOException {
         JsonFactory jsonFactory = new JacksonFactory();
 
         DataStoreFactory dataStoreFactory = new FileDataStoreFactory(dataStoreLocation);
@@ -88,7 +128,7 @@ public class Synchronizer {
                 .build();
 
         Credential credential = flow.loadCredential(accountID);
-        if (credential == null || !credential.refreshToken()) {
+        if (credential == null || !isTokenValid(credential) && !credential.refreshToken()) {
             if (!interactive) {
                 System.out.println("Application must be run interactively (using -i) to re-authenticate");
                 System.exit(1);
@@ -104,6 +144,19 @@ public class Synchronizer {
                 .build();
     }
 
+    /**
+     * Connects to drive with the account of the properties file in the home folder, as a sync does.
+     */
+    static Drive connect(boolean interactive) throws IOException {
+        java.io.File propFile = new java.io.File(System.getProperty("user.home"), PROPERTIES_FILE);
+        return setupGoogleDrive(new NetHttpTransport(), DATA_STORE_LOCATION, loadPropertiesFile(propFile), interactive);
+    }
+
+    private static boolean isTokenValid(Credential credential) {
+        Long expiresIn = credential.getExpiresInSeconds();
+        return credential.getAccessToken() != null && expiresIn != null && expiresIn >= MIN_TOKEN_VALIDITY_SECONDS;
+    }
+
     private static Properties loadPropertiesFile(java.io.File propFile) throws IOException {
         if (!propFile.exists()) {
             throw new IllegalArgumentException("Could not find " + propFile);
@@ -126,9 +179,31 @@ public class Synchronizer {
 
             String sourcePath = null;
             String destName = null;
+            java.io.File jobFile = null;
+            java.io.File ignoreFile = null;
             boolean interactive = false;
-
-            Getopt g = new Getopt("gdrivesync", args, "s:t:dfroi");
+            int transferThreads = 1;
+            int folderThreads = 1;
+            int maxListCalls = 0;
+            boolean bulkListing = false;
+            boolean incremental = false;
+            boolean changeFeed = false;
+            int batchSize = 1;
+            long resumableThreshold = -1;
+            int chunkSize = (int) (DEFAULT_CHUNK_SIZE_MB * MB);
+            boolean checksums = false;
+            double requestRate = 0;
+            TransferExecutor.Policy transferPolicy = TransferExecutor.Policy.FIFO;
+            long maxBytesInFlight = 0;
+            java.io.File metricsFile = null;
+            long reconcileInterval = -1;
+            int metricsPort = 0;
+            int maxConnections = 0;
+            long chunkThreshold = -1;
+            boolean sweepChunks = false;
+            long packSegmentSize = -1;
+
+            Getopt g = new Getopt("gdrivesync", args, "s:t:F:dfroij:p:l:bucB:U:C:mq:S:M:J:P:w:H:x:K:GA:");
             int c;
             while ((c = g.getopt()) != -1) {
                 switch (c) {
@@ -141,6 +216,9 @@ public class Synchronizer {
                     case 't':
                         destName = g.getOptarg();
                         break;
+                    case 'F':
+                        jobFile = new java.io.File(g.getOptarg());
+                        break;
                     case 'd':
                         progress.setDebug(true);
                         break;
@@ -153,42 +231,218 @@ public class Synchronizer {
                     case 'o':
                         progress.setTotalSummary(false);
                         break;
+                    case 'j':
+                        transferThreads = (int) number(g, "Number of transfer threads", 1, MAX_THREADS);
+                        break;
+                    case 'p':
+                        folderThreads = (int) number(g, "Number of folder threads", 1, MAX_THREADS);
+                        break;
+                    case 'l':
+                        maxListCalls = (int) number(g, "Number of concurrent list calls", 1, MAX_THREADS);
+                        break;
+                    case 'b':
+                        bulkListing = true;
+                        break;
+                    case 'u':
+                        incremental = true;
+                        break;
+                    case 'c':
+                        changeFeed = true;
+                        break;
+                    case 'B':
+                        batchSize = (int) number(g, "Batch size", 1, 100);
+                        break;
+                    case 'U':
+                        resumableThreshold = number(g, "Resumable upload threshold in MB", 0, Long.MAX_VALUE / MB) * MB;
+                        break;
+                    case 'C':
+                        chunkSize = (int) (number(g, "Chunk size in MB", 1, MAX_CHUNK_SIZE_MB) * MB);
+                        break;
+                    case 'm':
+                        checksums = true;
+                        break;
+                    case 'S':
+                        transferPolicy = transferPolicy(g.getOptarg());
+                        break;
+                    case 'M':
+                        maxBytesInFlight = number(g, "MB in flight", 1, Long.MAX_VALUE / MB) * MB;
+                        break;
+                    case 'J':
+                        metricsFile = new java.io.File(g.getOptarg());
+                        break;
+                    case 'P':
+                        metricsPort = (int) number(g, "Metrics port", 1, 65535);
+                        break;
+                    case 'w':
+                        reconcileInterval = number(g, "Reconciliation interval in minutes", 1, Long.MAX_VALUE / 60000) * 60 * 1000;
+                        break;
+                    case 'x':
+                        ignoreFile = new java.io.File(g.getOptarg());
+                        if (!ignoreFile.isFile())
+                            throw new IllegalArgumentException("Ignore file does not exist: " + ignoreFile);
+                        break;
+                    case 'H':
+                        maxConnections = (int) number(g, "Number of HTTP connections", 1, MAX_THREADS);
+                        break;
+                    case 'K':
+                        chunkThreshold = number(g, "Chunked storage threshold in MB", 1, Long.MAX_VALUE / MB) * MB;
+                        break;
+                    case 'G':
+                        sweepChunks = true;
+                        break;
+                    case 'A':
+                        packSegmentSize = number(g, "Segment size in MB", 1, PackStore.MAX_SEGMENT_SIZE / MB) * MB;
+                        break;
+                    case 'q':
+                        try {
+                            requestRate = Double.parseDouble(g.getOptarg());
+                        } catch (NumberFormatException e) {
+                            throw new IllegalArgumentException("Request rate is not a number: " + g.getOptarg());
+                        }
+                        if (!(requestRate > 0) || Double.isInfinite(requestRate))
+                            throw new IllegalArgumentException("Request rate must be positive");
+                        break;
                     default:
                         throw new IllegalArgumentException("getopt() returned " + c + "\n");
                 }
             }
 
+            if (sweepChunks && chunkThreshold < 0)
+                throw new IllegalArgumentException("Deleting unused chunks needs chunked storage, -K");
+
             java.io.File propFile = new java.io.File(home, PROPERTIES_FILE);
             progress.debug("Using properties file " + propFile);
 
-            java.io.File dataStoreLocation = new java.io.File("/tmp/gsync");
+            java.io.File dataStoreLocation = DATA_STORE_LOCATION;
             progress.debug("Using datastore " + dataStoreLocation);
 
-            if (sourcePath == null)
-                throw new IllegalArgumentException("Source not specified");
-            java.io.File sourceFolder = new java.io.File(sourcePath);
-            if (!sourceFolder.exists() || !sourceFolder.isDirectory())
-                throw new IllegalArgumentException("Source path does not exist!");
+            List<String[]> jobs;
+            if (jobFile != null) {
+                if (sourcePath != null)
+                    throw new IllegalArgumentException("Specify either a source or a job file");
+                jobs = readJobFile(jobFile);
+                checkJobsDisjoint(jobs);
+            } else {
+                if (sourcePath == null)
+                    throw new IllegalArgumentException("Source not specified");
+                jobs = Collections.singletonList(new String[]{sourcePath, destName});
+            }
+            for (String[] job : jobs) {
+                java.io.File sourceFolder = new java.io.File(job[0]);
+                if (!sourceFolder.exists() || !sourceFolder.isDirectory())
+                    throw new IllegalArgumentException("Source path does not exist: " + sourceFolder);
+            }
 
-            //setup GDrive service
+            //setup GDrive service, all jobs share the client, its connections and the rate limiter
             Properties props = loadPropertiesFile(propFile);
-            Drive service = setupGoogleDrive(dataStoreLocation, props, interactive);
-
-            //start sync
-
-            progress.log("Synchronizing folder %s to %s", sourceFolder, destName);
-            new Synchronizer(progress, service, sourcePath, destName).sync();
+            ConnectionPool connectionPool = maxConnections > 0 ? new ConnectionPool(maxConnections) : null;
+            HttpTransport httpTransport = connectionPool != null ? connectionPool.getTransport() : new NetHttpTransport();
+            Drive service = setupGoogleDrive(httpTransport, dataStoreLocation, props, interactive);
+
+            GDrive gdrive = new GDrive(service, progress, DRY_RUN);
+            gdrive.setRateLimiter(new RateLimiter(progress, requestRate));
+            if (resumableThreshold >= 0) {
+                java.io.File sessionDir = new java.io.File(dataStoreLocation, "uploads");
+                if (!sessionDir.isDirectory() && !sessionDir.mkdirs())
+                    throw new IOException("Could not create " + sessionDir);
+                gdrive.enableResumableUploads(sessionDir, resumableThreshold, chunkSize);
+            }
+            //with several jobs, the transfer threads are a budget shared by all of them
+            boolean multipleJobs = jobs.size() > 1;
+            TransferExecutor transferPool = multipleJobs ? TransferExecutor.pool(progress, transferThreads, transferPolicy, maxBytesInFlight) : null;
+            List<Synchronizer> synchronizers = new ArrayList<>();
+            for (String[] job : jobs) {
+                java.io.File sourceFolder = new java.io.File(job[0]);
+                Synchronizer synchronizer = new Synchronizer(progress, gdrive, job[0], job[1]);
+                synchronizer.setTransferThreads(transferThreads);
+                synchronizer.setTransferPolicy(transferPolicy);
+                synchronizer.setMaxBytesInFlight(maxBytesInFlight);
+                synchronizer.setTransferPool(transferPool);
+                synchronizer.setFolderThreads(folderThreads);
+                synchronizer.setMaxListCalls(maxListCalls);
+                synchronizer.setBulkListing(bulkListing);
+                synchronizer.setBatchSize(batchSize);
+                synchronizer.setIgnoreFile(ignoreFile);
+                synchronizer.setChunkThreshold(chunkThreshold);
+                synchronizer.setSweepChunks(sweepChunks);
+                synchronizer.setPackSegmentSize(packSegmentSize);
+                synchronizer.setRootFolderFile(new java.io.File(dataStoreLocation, String.format("rootfolder-%08x", job[1].hashCode())));
+                //caches that are written back are kept per job, so concurrent jobs do not overwrite each other's
+                if (checksums) {
+                    synchronizer.setChecksumFile(multipleJobs ? jobFile(dataStoreLocation, "checksums", sourceFolder, job[1])
+                            : new java.io.File(dataStoreLocation, "checksums"));
+                }
+                if (incremental) {
+                    synchronizer.setStateFile(jobFile(dataStoreLocation, "syncstate", sourceFolder, job[1]));
+                }
+                if (changeFeed) {
+                    synchronizer.setRemoteIndexFile(multipleJobs ? jobFile(dataStoreLocation, "remoteindex", sourceFolder, job[1])
+                            : new java.io.File(dataStoreLocation, "remoteindex"));
+                }
+                synchronizers.add(synchronizer);
+            }
+            MetricsExporter metrics = new MetricsExporter(progress);
+            if (connectionPool != null) {
+                metrics.addGauge("http_connections_leased", () -> connectionPool.getStats().getLeased());
+                metrics.addGauge("http_connections_available", () -> connectionPool.getStats().getAvailable());
+                metrics.addGauge("http_connections_max", () -> connectionPool.getStats().getMax());
+                metrics.addGauge("http_connection_requests_pending", () -> connectionPool.getStats().getPending());
+            }
+            if (metricsFile != null) {
+                metrics.writeJsonLines(metricsFile, METRICS_INTERVAL);
+            }
+            if (metricsPort > 0) {
+                metrics.serveHttp(metricsPort);
+            }
+            try {
+                if (multipleJobs) {
+                    runJobs(synchronizers, reconcileInterval);
+                } else {
+                    synchronizers.get(0).run(reconcileInterval);
+                }
+            } finally {
+                metrics.close();
+                if (transferPool != null) transferPool.shutdown();
+                if (connectionPool != null) {
+                    progress.debug("HTTP connection pool: %s", connectionPool.getStats());
+                    connectionPool.close();
+                }
+            }
 
         } catch (IllegalArgumentException e) {
             System.out.println(e.getMessage());
             System.out.println();
-            System.out.println(String.format("Usage: java %s -s <sourcefolder> -t [destinationname] [-d] [-f] [-r] [-o] [-i]", Synchronizer.class.getName()));
+            System.out.println(String.format("Usage: java %s (-s <sourcefolder> -t [destinationname] | -F <jobfile>) [-d] [-f] [-r] [-o] [-i] [-j threads] [-p threads] [-l calls] [-b] [-u] [-c] [-B size] [-U MB] [-C MB] [-m] [-q rate] [-S policy] [-M MB] [-J file] [-P port] [-w minutes] [-H connections] [-x file] [-K MB] [-G] [-A MB]", Synchronizer.class.getName()));
             System.out.println();
+            System.out.println("     -F    Run the jobs in this file, one '<sourcefolder> " + JOB_SEPARATOR + " <destinationname>' per line, side by side;");
+            System.out.println("           the source folders and destinations of the jobs must not overlap");
             System.out.println("     -d    Enable debugging");
             System.out.println("     -f    Enable folder summaries");
             System.out.println("     -r    Enable transaction details");
             System.out.println("     -o    Disable total summary");
             System.out.println("     -i    Set when using interactively, to allow Oauth reauthentication");
+            System.out.println("     -j    Number of concurrent file transfers (default 1), shared by all jobs");
+            System.out.println("     -p    Number of threads scanning and diffing folders per job (default 1)");
+            System.out.println("     -l    Number of threads listing drive folders per job (default same as -p)");
+            System.out.println("     -b    List the whole drive in one pass instead of once per folder");
+            System.out.println("     -u    Skip listing folders that are unchanged since the last sync, and move renamed files and folders on drive");
+            System.out.println("     -c    Keep a cached drive listing, updated from the drive change feed");
+            System.out.println("     -B    Send folder creations and deletions in batches of this size (default 1, max 100)");
+            System.out.println("     -U    Upload files of at least this many MB in resumable chunks, 0 for all files");
+            System.out.println("     -C    Chunk size in MB for resumable uploads (default " + DEFAULT_CHUNK_SIZE_MB + ", max " + MAX_CHUNK_SIZE_MB + ")");
+            System.out.println("     -m    Compare MD5 checksums of files that are newer locally but have the same size, and of moved files");
+            System.out.println("           (renamed folders are only moved with -u, otherwise their files are uploaded again)");
+            System.out.println("     -q    Maximum number of drive requests per second (default adapts to the quota)");
+            System.out.println("     -S    Upload order: fifo (default), smallest, newest, or lanes for separate large and small file workers");
+            System.out.println("     -M    Maximum number of MB uploading at the same time");
+            System.out.println("     -J    Append metrics as a JSON line to this file every " + METRICS_INTERVAL / 1000 + " seconds");
+            System.out.println("     -P    Serve Prometheus metrics on http://localhost:port/metrics");
+            System.out.println("     -w    Keep running and sync changes as they happen, comparing the whole tree every this many minutes");
+            System.out.println("     -x    Leave out what matches the rules in this file, in addition to " + IgnoreRules.FILE_NAME + " files in the folders");
+            System.out.println("     -H    Send requests over a pool of up to this many keep-alive connections, about the number of transfers plus a few");
+            System.out.println("     -K    Store files of at least this many MB as " + ChunkStore.DEFAULT_CHUNK_SIZE / (1024 * 1024) + " MB chunks and a manifest, uploading only new chunks");
+            System.out.println("     -G    After a complete sync, delete the chunks no manifest refers to and that are older than a day");
+            System.out.println("     -A    Pack the small files of folders with a " + PackStore.MARKER + " file into compressed segments of up to this many MB (max " + PackStore.MAX_SEGMENT_SIZE / MB + ")");
             System.exit(1);
         } catch (Exception e) {
             e.printStackTrace();
@@ -196,22 +450,255 @@ public class Synchronizer {
         }
     }
 
+    /**
+     * Parses the argument of the current option as a whole number.
+     *
+     * @throws IllegalArgumentException if it is not a number or out of range, so the usage is shown
+     */
+    private static long number(Getopt g, String name, long min, long max) {
+        long value;
+        try {
+            value = Long.parseLong(g.getOptarg().trim());
+        } catch (NumberFormatException e) {
+            throw new IllegalArgumentException(name + " is not a number: " + g.getOptarg());
+        }
+        if (value < min || value > max)
+            throw new IllegalArgumentException(String.format("%s must be between %d and %d", name, min, max));
+        return value;
+    }
+
+    /**
+     * Reads a job file. Empty lines and lines starting with # are skipped.
+     *
+     * @return the source folder and destination name of each job
+     */
+    private static List<String[]> readJobFile(java.io.File jobFile) throws IOException {
+        if (!jobFile.exists()) {
+            throw new IllegalArgumentException("Could not find " + jobFile);
+        }
+        List<String[]> jobs = new ArrayList<>();
+        for (String line : Files.readAllLines(jobFile.toPath(), StandardCharsets.UTF_8)) {
+            line = line.trim();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+            int separator = line.lastIndexOf(JOB_SEPARATOR);
+            if (separator < 0) {
+                throw new IllegalArgumentException("Job must read <sourcefolder> " + JOB_SEPARATOR + " <destinationname>: " + line);
+            }
+            jobs.add(new String[]{line.substring(0, separator).trim(), line.substring(separator + JOB_SEPARATOR.length()).trim()});
+        }
+        if (jobs.isEmpty()) {
+            throw new IllegalArgumentException("No jobs in " + jobFile);
+        }
+        return jobs;
+    }
+
+    /**
+     * Rejects jobs that would sync into each other: two jobs with the same or nested source folders,
+     * or with the same or nested destinations, would upload the same files twice, or delete each other's.
+     */
+    private static void checkJobsDisjoint(List<String[]> jobs) throws IOException {
+        List<java.nio.file.Path> sources = new ArrayList<>();
+        List<String> destinations = new ArrayList<>();
+        for (String[] job : jobs) {
+            java.nio.file.Path source = new java.io.File(job[0]).getCanonicalFile().toPath();
+            String destination = normalizeDrivePath(job[1]);
+            for (int i = 0; i < sources.size(); i++) {
+                if (source.startsWith(sources.get(i)) || sources.get(i).startsWith(source)) {
+                    throw new IllegalArgumentException(String.format("Jobs %s and %s overlap", jobs.get(i)[0], job[0]));
+                }
+                String other = destinations.get(i);
+                if (destination.equals(other) || destination.startsWith(other + "/") || other.startsWith(destination + "/")) {
+                    throw new IllegalArgumentException(String.format("Jobs %s and %s sync into the same drive folder", jobs.get(i)[0], job[0]));
+                }
+            }
+            sources.add(source);
+            destinations.add(destination);
+        }
+    }
+
+    private static String normalizeDrivePath(String path) {
+        List<String> names = new ArrayList<>();
+        for (String name : path.split("/")) {
+            if (!name.trim().isEmpty()) names.add(name.trim());
+        }
+        return String.join("/", names);
+    }
+
+    /**
+     * Runs each job on its own thread, and waits until all are done.
+     */
+    private static void runJobs(List<Synchronizer> jobs, long reconcileInterval) throws IOException, InterruptedException {
+        AtomicInteger failed = new AtomicInteger();
+        List<Thread> threads = new ArrayList<>();
+        for (Synchronizer job : jobs) {
+            Thread t = new Thread(() -> {
+                try {
+                    job.run(reconcileInterval);
+                } catch (IOException | RuntimeException e) {
+                    failed.incrementAndGet();
+                    job.progress.log("Sync of %s to %s failed: %s", job.localRootFolder, job.driveRootFolder, e);
+                }
+            }, "job-" + (threads.size() + 1));
+            t.start();
+            threads.add(t);
+        }
+        for (Thread t : threads) {
+            t.join();
+        }
+        if (failed.get() > 0) {
+            throw new IOException(failed.get() + " of " + jobs.size() + " jobs failed");
+        }
+    }
+
+    /**
+     * Synchronizes once, or keeps watching if a reconciliation interval is given.
+     */
+    private void run(long reconcileInterval) throws IOException {
+        progress.log("Synchronizing folder %s to %s", localRootFolder, driveRootFolder);
+        if (reconcileInterval > 0) {
+            watch(reconcileInterval);
+        } else {
+            sync();
+        }
+    }
+
     public void sync() throws IOException {
         progress.debug("Starting sync");
+        File driveFolder = fetchRootFolder();
+        java.io.File localFolder = new java.io.File(this.localRootFolder);
+        openState(localFolder);
+        try {
+            syncFolderWithDrive(localFolder, driveFolder);
+        } finally {
+            closeState();
+        }
+    }
+
+    /**
+     * Synchronizes the folder, then keeps watching it until cancelled. Folders that change are synchronized
+     * on their own once their events settle. The whole tree is compared with drive again every
+     * reconcileInterval, and right away when file system events were lost or a folder could not be synchronized.
+     */
+    public void watch(long reconcileInterval) throws IOException {
+        progress.debug("Starting watch");
+        File driveFolder = fetchRootFolder();
+        java.io.File localFolder = new java.io.File(this.localRootFolder);
+        openState(localFolder);
+        try (FolderWatcher watcher = new FolderWatcher(localFolder, progress)) {
+            long nextReconcile = 0;
+            while (!progress.isCancelled()) {
+                long now = System.currentTimeMillis();
+                if (now >= nextReconcile) {
+                    nextReconcile = now + reconcileInterval;
+                    try {
+                        //folders are watched before they are scanned, so no change during the scan is missed
+                        watcher.registerAll(IgnoreRules.load(localFolder, ignoreFile));
+                        syncFolderWithDrive(localFolder, driveFolder);
+                    } catch (IOException e) {
+                        progress.log("Sync of %s failed, retrying at the next reconciliation: %s", localFolder, e.getMessage());
+                    }
+                    continue;
+                }
+                Set<java.io.File> changed = watcher.awaitChanges(nextReconcile - now);
+                if (changed == null) {
+                    progress.log("Missed file system events, comparing %s again", localFolder);
+                    nextReconcile = 0;
+                } else if (!changed.isEmpty()) {
+                    try {
+                        syncChangedFolders(localFolder, driveFolder, changed);
+                    } catch (IOException e) {
+                        progress.log("Sync of changed folders failed, comparing %s again: %s", localFolder, e.getMessage());
+                        nextReconcile = 0;
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            closeState();
+        }
+    }
 
-        //fetch root folder
+    private File fetchRootFolder() throws IOException {
+        String[] path = this.driveRootFolder.split("/");
+        File cached = fetchCachedRootFolder(path);
+        if (cached != null) {
+            progress.debug("Fetched %s by its cached id", cached.getTitle());
+            return cached;
+        }
         String parentFolderID = null;
         File driveFolder = null;
-        for (String elem : this.driveRootFolder.split("/")) {
+        List<String> ids = new ArrayList<>();
+        for (String elem : path) {
             progress.debug("<<< Fetching drive folder %s", elem);
             driveFolder = service.fetchFolderByID(parentFolderID, elem);
             parentFolderID = driveFolder.getId();
+            ids.add(parentFolderID);
         }
         assert driveFolder != null;
         progress.debug("Fetched %s", driveFolder.getTitle());
+        if (rootFolderFile != null) {
+            Files.write(rootFolderFile.toPath(), (driveRootFolder + "\n" + String.join("/", ids) + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        return driveFolder;
+    }
 
-        java.io.File localFolder = new java.io.File(this.localRootFolder);
-        syncFolderWithDrive(localFolder, driveFolder);
+    /**
+     * Looks up the drive folder by the folder ids resolved in an earlier run, with a single call.
+     * The folder must still have the same title and parent, and not be trashed; a rename further up the path
+     * is not noticed.
+     *
+     * @return the folder, or null if the path has to be resolved again
+     */
+    private File fetchCachedRootFolder(String[] path) throws IOException {
+        if (rootFolderFile == null || !rootFolderFile.isFile()) return null;
+        List<String> lines = Files.readAllLines(rootFolderFile.toPath(), StandardCharsets.UTF_8);
+        if (lines.size() < 2 || !lines.get(0).equals(driveRootFolder)) return null;
+        String[] ids = lines.get(1).split("/");
+        if (ids.length != path.length) return null;
+        progress.debug("<<< Fetching drive folder %s by its cached id", path[path.length - 1]);
+        File driveFolder = service.fetchFileByID(ids[ids.length - 1]);
+        if (driveFolder == null || !GDrive.APPLICATION_VND_GOOGLE_APPS_FOLDER.equals(driveFolder.getMimeType())
+                || !path[path.length - 1].equals(driveFolder.getTitle())) return null;
+        if (driveFolder.getLabels() != null && Boolean.TRUE.equals(driveFolder.getLabels().getTrashed())) return null;
+        if (ids.length > 1 && (driveFolder.getParents() == null
+                || driveFolder.getParents().stream().noneMatch(p -> ids[ids.length - 2].equals(p.getId())))) return null;
+        return driveFolder;
+    }
+
+    private void openState(java.io.File localFolder) throws IOException {
+        if (checksumFile != null) {
+            checksums = new ChecksumCache(checksumFile);
+        }
+        if (stateFile != null && !DRY_RUN) {
+            state = SyncState.open(stateFile, localFolder, progress);
+            progress.debug("Loaded %d sync state entries from %s", state.size(), stateFile);
+        }
+    }
+
+    private void closeState() throws IOException {
+        try {
+            if (state != null) state.close();
+        } finally {
+            if (checksums != null) checksums.close();
+            state = null;
+            checksums = null;
+        }
+    }
+
+    private SyncContext newContext(File driveRoot, TransferExecutor transfers, IgnoreRules ignoreRules) {
+        SyncContext context = new SyncContext(service, progress, transfers);
+        context.setIgnoreRules(ignoreRules);
+        if (chunkThreshold >= 0) {
+            context.setChunkStore(new ChunkStore(service, progress, driveRoot, chunkThreshold, ChunkStore.DEFAULT_CHUNK_SIZE));
+        }
+        if (packSegmentSize > 0) {
+            context.setPackStore(new PackStore(service, progress, packSegmentSize));
+        }
+        context.setBatchSize(batchSize);
+        context.setChecksums(checksums);
+        context.setState(state);
+        return context;
     }
 
     private void syncFolderWithDrive(java.io.File localFolder, File driveFolder) throws IOException {
@@ -221,6 +708,194 @@ public class Synchronizer {
             throw new RuntimeException("Cannot sync with folder, does not exist: " + localFolder);
         }
 
-        new FolderSynchronizer(service, progress, localFolder, driveFolder).sync();
+        //rule files are read again on every run, so edits are picked up while watching
+        IgnoreRules ignoreRules = IgnoreRules.load(localFolder, ignoreFile);
+        TransferExecutor transfers = newTransferExecutor();
+        SyncPipeline pipeline = new SyncPipeline(progress, transfers, folderThreads, maxListCalls > 0 ? maxListCalls : folderThreads, PIPELINE_QUEUE_CAPACITY);
+        SyncContext context = newContext(driveFolder, transfers, ignoreRules);
+        RemoteIndex remoteIndex = null;
+        if (remoteIndexFile != null && !DRY_RUN) {
+            remoteIndex = RemoteIndex.loadIncremental(remoteIndexFile, service, service, progress);
+            context.setRemoteIndex(remoteIndex);
+        } else if (bulkListing) {
+            context.setRemoteIndex(RemoteIndex.load(service, progress));
+        }
+        try {
+            pipeline.run(new FolderSynchronizer(context, localFolder, driveFolder));
+            transfers.await();
+            context.getMoveDetector().deleteRemoved();
+            //only after a complete sync, all manifests are written then
+            if (sweepChunks && context.getChunkStore() != null && !progress.isCancelled()) context.getChunkStore().sweep();
+            pipeline.reportStages();
+            if (state != null && !progress.isCancelled()) state.commit();
+            if (remoteIndex != null && !progress.isCancelled()) remoteIndex.save(remoteIndexFile);
+        } finally {
+            transfers.shutdown();
+        }
+    }
+
+    /**
+     * Synchronizes only the given folders, parents before their children, and the folders that had to be
+     * created on drive for them. Drive is listed directly, as a remote index would not know the changes
+     * made since it was loaded.
+     */
+    private void syncChangedFolders(java.io.File localRoot, File driveRoot, Set<java.io.File> changed) throws IOException {
+        List<java.io.File> folders = new ArrayList<>(changed);
+        Collections.sort(folders);
+        progress.debug("Syncing %d changed folders", folders.size());
+        IgnoreRules ignoreRules = IgnoreRules.load(localRoot, ignoreFile);
+        TransferExecutor transfers = newTransferExecutor();
+        SyncContext context = newContext(driveRoot, transfers, ignoreRules);
+        try {
+            for (java.io.File folder : folders) {
+                //a removed folder is deleted from drive by the sync of its parent
+                if (progress.isCancelled() || !folder.isDirectory()) continue;
+                //changes below ignored folders are of no interest
+                if (ignoreRules.isIgnoredFolder(folder)) continue;
+                File driveFolder = findDriveFolder(context, localRoot, driveRoot, folder);
+                if (driveFolder == null) {
+                    throw new IOException("No drive folder for " + folder);
+                }
+                Deque<FolderSynchronizer> pending = new ArrayDeque<>();
+                pending.push(new FolderSynchronizer(context, folder, driveFolder));
+                while (!pending.isEmpty()) {
+                    for (FolderSynchronizer subfolder : pending.pop().sync()) {
+                        //unchanged subfolders are left alone, new ones have to be uploaded completely
+                        if (subfolder.isNewFolder()) pending.push(subfolder);
+                    }
+                }
+            }
+            transfers.await();
+            context.getMoveDetector().deleteRemoved();
+            if (state != null && !progress.isCancelled()) state.commit();
+        } finally {
+            transfers.shutdown();
+        }
+    }
+
+    /**
+     * Looks up the drive folder of a local folder, from the sync state if possible, by listing its parents otherwise.
+     */
+    private File findDriveFolder(SyncContext context, java.io.File localRoot, File driveRoot, java.io.File folder) throws IOException {
+        if (folder == null) return null;
+        if (folder.toPath().equals(localRoot.toPath())) return driveRoot;
+        if (state != null) {
+            SyncState.Entry entry = state.get(folder);
+            if (entry != null && entry.isFolder()) return entry.toDriveFile(folder.getName());
+        }
+        File parent = findDriveFolder(context, localRoot, driveRoot, folder.getParentFile());
+        if (parent == null) return null;
+        RemoteListing listing = context.listDriveFolder(parent);
+        int i = listing.indexOf(folder.getName());
+        return i >= 0 && listing.isFolder(i) ? listing.toDriveFile(i) : null;
+    }
+
+    private static TransferExecutor.Policy transferPolicy(String name) {
+        switch (name) {
+            case "fifo":
+                return TransferExecutor.Policy.FIFO;
+            case "smallest":
+                return TransferExecutor.Policy.SMALLEST_FIRST;
+            case "newest":
+                return TransferExecutor.Policy.NEWEST_FIRST;
+            case "lanes":
+                return TransferExecutor.Policy.LANES;
+            default:
+                throw new IllegalArgumentException("Unknown upload order: " + name);
+        }
+    }
+
+    private TransferExecutor newTransferExecutor() {
+        if (transferPool != null) {
+            return new TransferExecutor(transferPool);
+        }
+        return new TransferExecutor(progress, transferThreads, transferPolicy, maxBytesInFlight);
+    }
+
+    private static java.io.File jobFile(java.io.File dataStoreLocation, String prefix, java.io.File sourceFolder, String destName) {
+        String job = sourceFolder.getAbsolutePath() + " -> " + destName;
+        return new java.io.File(dataStoreLocation, String.format("%s-%08x", prefix, job.hashCode()));
+    }
+
+    public void setTransferThreads(int transferThreads) {
+        this.transferThreads = transferThreads;
+    }
+
+    public void setTransferPolicy(TransferExecutor.Policy transferPolicy) {
+        this.transferPolicy = transferPolicy;
+    }
+
+    public void setMaxBytesInFlight(long maxBytesInFlight) {
+        this.maxBytesInFlight = maxBytesInFlight;
+    }
+
+    /**
+     * Runs the transfers on the workers of a pool shared with other synchronizers, instead of on own ones.
+     */
+    public void setTransferPool(TransferExecutor transferPool) {
+        this.transferPool = transferPool;
+    }
+
+    public void setFolderThreads(int folderThreads) {
+        this.folderThreads = folderThreads;
+    }
+
+    public void setMaxListCalls(int maxListCalls) {
+        this.maxListCalls = maxListCalls;
+    }
+
+    public void setBulkListing(boolean bulkListing) {
+        this.bulkListing = bulkListing;
+    }
+
+    public void setStateFile(java.io.File stateFile) {
+        this.stateFile = stateFile;
+    }
+
+    public void setRemoteIndexFile(java.io.File remoteIndexFile) {
+        this.remoteIndexFile = remoteIndexFile;
+    }
+
+    public void setBatchSize(int batchSize) {
+        this.batchSize = batchSize;
+    }
+
+    public void setChecksumFile(java.io.File checksumFile) {
+        this.checksumFile = checksumFile;
+    }
+
+    /**
+     * @param ignoreFile a file with ignore rules for the whole tree, in addition to the .gdriveignore files in the folders
+     */
+    public void setIgnoreFile(java.io.File ignoreFile) {
+        this.ignoreFile = ignoreFile;
+    }
+
+    /**
+     * @param rootFolderFile a file to keep the ids of the drive path in, so later runs look up the drive folder with a single call
+     */
+    public void setRootFolderFile(java.io.File rootFolderFile) {
+        this.rootFolderFile = rootFolderFile;
+    }
+
+    /**
+     * @param chunkThreshold the size from which files are stored as chunks and a manifest, or -1 to upload all files as a whole
+     */
+    public void setChunkThreshold(long chunkThreshold) {
+        this.chunkThreshold = chunkThreshold;
+    }
+
+    /**
+     * @param sweepChunks true to delete the chunks that no manifest refers to after every complete sync
+     */
+    public void setSweepChunks(boolean sweepChunks) {
+        this.sweepChunks = sweepChunks;
+    }
+
+    /**
+     * @param packSegmentSize the largest segment the small files of packed folders are put into, or -1 to upload them one by one
+     */
+    public void setPackSegmentSize(long packSegmentSize) {
+        this.packSegmentSize = packSegmentSize;
     }
 }
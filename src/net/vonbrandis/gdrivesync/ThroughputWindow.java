@@ -0,0 +1,40 @@
+package net.vonbrandis.gdrivesync;
+
+/**
+ * Bytes per second over a sliding window, kept in one slot per second.
+ */
+public class ThroughputWindow {
+    private final long[] bytes;
+    private final long[] seconds;
+
+    public ThroughputWindow(int windowSeconds) {
+        this.bytes = new long[windowSeconds];
+        this.seconds = new long[windowSeconds];
+    }
+
+    public synchronized void add(long count) {
+        long second = System.currentTimeMillis() / 1000;
+        int slot = (int) (second % bytes.length);
+        if (seconds[slot] != second) {
+            seconds[slot] = second;
+            bytes[slot] = 0;
+        }
+        bytes[slot] += count;
+    }
+
+    /**
+     * @return the average number of bytes per second over the window, excluding the current second
+     */
+    public synchronized double getRate() {
+        long now = System.currentTimeMillis() / 1000;
+        long total = 0;
+        for (int i = 0; i < bytes.length; i++) {
+            if (seconds[i] < now && seconds[i] >= now - bytes.length) total += bytes[i];
+        }
+        return (double) total / bytes.length;
+    }
+
+    public int getWindowSeconds() {
+        return bytes.length;
+    }
+}
@@ -0,0 +1,334 @@
+package net.vonbrandis.gdrivesync;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs uploads on a bounded pool of worker threads, the last stage of the sync pipeline.
+ * With a single thread and the default policy, transfers run inline on the calling thread, as before.
+ * When the work queue is full the submitting thread blocks until a transfer starts,
+ * which keeps the folder scan from running arbitrarily far ahead of the uploads.
+ * <p>
+ * Waiting transfers are started in the order of the {@link Policy}. The number of bytes in flight
+ * can be capped, so a few huge files do not hold all workers: a file that does not fit in the
+ * remaining budget waits, and smaller files may go ahead of it a limited number of times.
+ * A file larger than the whole budget is transferred on its own.
+ * <p>
+ * Several sync jobs can share the workers of one {@link #pool pool}, each through its own executor,
+ * which queues, waits for and reports only the transfers of its job. A free worker takes a transfer of
+ * the job with the fewest transfers running, so the workers are spread evenly over the busy jobs.
+ */
+public class TransferExecutor {
+    public static final long LARGE_FILE_THRESHOLD = 64L * 1024 * 1024;
+    private static final int ORDERED_QUEUE_CAPACITY = 1000;
+    private static final int MAX_SKIPS = 16;
+
+    public interface Transfer {
+        void run() throws IOException;
+    }
+
+    public enum Policy {
+        /**
+         * In the order the files were found.
+         */
+        FIFO,
+        /**
+         * Smallest files first, so many small files are done before a large one.
+         */
+        SMALLEST_FIRST,
+        /**
+         * Most recently modified files first.
+         */
+        NEWEST_FIRST,
+        /**
+         * A quarter of the workers take files of at least LARGE_FILE_THRESHOLD, and only pick up
+         * small files when no large ones wait; the other workers only take small files.
+         * A single worker is a shared lane, which takes all files in order.
+         */
+        LANES
+    }
+
+    private final TransferExecutor pool;
+    private final Progress progress;
+    private final Policy policy;
+    //true if small files are kept from the workers of the large lane
+    private final boolean lanes;
+    private final Comparator<Task> order;
+    private final Comparator<Task> largeLaneOrder;
+    private final long maxBytesInFlight;
+    private final List<Thread> workers = new ArrayList<>();
+    private final List<Task> queue = new ArrayList<>();
+    private final int capacity;
+    private final AtomicInteger maxDepth = new AtomicInteger();
+    private final AtomicLong completed = new AtomicLong();
+    private final AtomicLong blockedNanos = new AtomicLong();
+    private final Object lock;
+    //guarded by the lock of the pool, the first two only used in the pool itself
+    private long submitted;
+    private long bytesInFlight;
+    private int queued;
+    private int running;
+    private int pending;
+    private Throwable failure;
+
+    public TransferExecutor(Progress progress, int threads) {
+        this(progress, threads, Policy.FIFO, 0);
+    }
+
+    /**
+     * @param maxBytesInFlight the maximum number of bytes being transferred at the same time, 0 for no limit
+     */
+    public TransferExecutor(Progress progress, int threads, Policy policy, long maxBytesInFlight) {
+        this(progress, threads, policy, maxBytesInFlight, threads <= 1 && policy == Policy.FIFO && maxBytesInFlight <= 0);
+    }
+
+    /**
+     * Creates an executor for one of several jobs, which runs its transfers on the workers of the pool.
+     */
+    public TransferExecutor(TransferExecutor pool) {
+        this.pool = pool;
+        this.progress = pool.progress;
+        this.policy = pool.policy;
+        this.lanes = pool.lanes;
+        this.maxBytesInFlight = pool.maxBytesInFlight;
+        this.order = pool.order;
+        this.largeLaneOrder = pool.largeLaneOrder;
+        this.capacity = pool.capacity;
+        this.lock = pool.lock;
+    }
+
+    private TransferExecutor(Progress progress, int threads, Policy policy, long maxBytesInFlight, boolean inline) {
+        this.pool = this;
+        this.progress = progress;
+        this.policy = policy;
+        this.lanes = policy == Policy.LANES && threads > 1;
+        this.maxBytesInFlight = maxBytesInFlight;
+        this.lock = new Object();
+        //among the waiting transfers, those of the job with the fewest running go first
+        Comparator<Task> fair = Comparator.comparingInt(t -> t.owner.running);
+        this.order = fair.thenComparing(order(false));
+        this.largeLaneOrder = fair.thenComparing(order(true));
+        if (inline) {
+            this.capacity = 0;
+            return;
+        }
+        //reordering needs more waiting transfers to choose from than the four per worker that keep workers busy
+        this.capacity = policy == Policy.FIFO ? threads * 4 : Math.max(threads * 4, ORDERED_QUEUE_CAPACITY);
+        //the lanes split the threads, with at least one worker in each
+        int largeLane = lanes ? Math.max(1, threads / 4) : 0;
+        int smallLane = Math.max(1, threads - largeLane);
+        for (int i = 0; i < largeLane + smallLane; i++) {
+            boolean large = i < largeLane;
+            Thread t = new Thread(() -> work(large), (large ? "transfer-large-" : "transfer-") + (i + 1));
+            t.setDaemon(true);
+            t.start();
+            workers.add(t);
+        }
+    }
+
+    /**
+     * Creates the workers for several jobs, which each submit through their own {@link #TransferExecutor(TransferExecutor) executor}.
+     * The pool always has worker threads, so the number of threads limits the transfers of all jobs together.
+     */
+    public static TransferExecutor pool(Progress progress, int threads, Policy policy, long maxBytesInFlight) {
+        return new TransferExecutor(progress, threads, policy, maxBytesInFlight, false);
+    }
+
+    /**
+     * Queues a transfer of the given local file.
+     */
+    public void submit(LocalEntry file, Transfer transfer) throws IOException {
+        submit(file.getSize(), file.getLastModified(), transfer);
+    }
+
+    /**
+     * Queues a transfer of content that is not a single local file, ordered by the given size and modification time.
+     */
+    public void submit(long size, long modified, Transfer transfer) throws IOException {
+        if (pool.workers.isEmpty()) {
+            if (!progress.isCancelled()) transfer.run();
+            return;
+        }
+        rethrowFailure();
+        long start = System.nanoTime();
+        synchronized (lock) {
+            try {
+                while (queued >= capacity) {
+                    lock.wait();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while waiting for a transfer slot", e);
+            }
+            pool.queue.add(new Task(this, size, modified, transfer, pool.submitted++));
+            queued++;
+            pending++;
+            maxDepth.accumulateAndGet(queued, Math::max);
+            lock.notifyAll();
+        }
+        blockedNanos.addAndGet(System.nanoTime() - start);
+    }
+
+    private void work(boolean largeLane) {
+        try {
+            while (true) {
+                Task task;
+                synchronized (lock) {
+                    while ((task = next(largeLane)) == null) {
+                        lock.wait();
+                    }
+                    queue.remove(task);
+                    task.owner.queued--;
+                    task.owner.running++;
+                    bytesInFlight += task.bytes;
+                    lock.notifyAll();
+                }
+                try {
+                    if (!progress.isCancelled()) task.transfer.run();
+                } catch (Throwable e) {
+                    //errors as well, the worker goes on and await() rethrows it to the job
+                    synchronized (lock) {
+                        if (task.owner.failure == null) task.owner.failure = e;
+                    }
+                } finally {
+                    task.owner.completed.incrementAndGet();
+                    synchronized (lock) {
+                        bytesInFlight -= task.bytes;
+                        task.owner.running--;
+                        task.owner.pending--;
+                        lock.notifyAll();
+                    }
+                }
+            }
+        } catch (InterruptedException e) {
+            //shut down
+        }
+    }
+
+    /**
+     * Picks the next task for a worker of the given lane, or null if it has to wait.
+     */
+    private Task next(boolean largeLane) {
+        Comparator<Task> order = largeLane ? largeLaneOrder : this.order;
+        Task best = null;
+        Task bestFitting = null;
+        for (Task task : queue) {
+            if (lanes && !largeLane && task.large) continue;
+            if (best == null || order.compare(task, best) < 0) best = task;
+            if (fits(task) && (bestFitting == null || order.compare(task, bestFitting) < 0)) bestFitting = task;
+        }
+        if (best == null || best == bestFitting) return best;
+        //the best task waits for bytes in flight to drop, others may only pass it a limited number of times
+        if (bestFitting == null || best.skipped >= MAX_SKIPS) return null;
+        best.skipped++;
+        return bestFitting;
+    }
+
+    private boolean fits(Task task) {
+        return maxBytesInFlight <= 0 || bytesInFlight == 0 || bytesInFlight + task.bytes <= maxBytesInFlight;
+    }
+
+    private Comparator<Task> order(boolean largeLane) {
+        Comparator<Task> fifo = Comparator.comparingLong(t -> t.sequence);
+        switch (policy) {
+            case SMALLEST_FIRST:
+                return Comparator.<Task>comparingLong(t -> t.size).thenComparing(fifo);
+            case NEWEST_FIRST:
+                return Comparator.<Task>comparingLong(t -> -t.modified).thenComparing(fifo);
+            case LANES:
+                return largeLane ? Comparator.<Task, Boolean>comparing(t -> !t.large).thenComparing(fifo) : fifo;
+            default:
+                return fifo;
+        }
+    }
+
+    /**
+     * @return the number of transfers waiting for a worker thread
+     */
+    public int getQueueDepth() {
+        synchronized (lock) {
+            return queued;
+        }
+    }
+
+    public int getQueueCapacity() {
+        return capacity;
+    }
+
+    public int getMaxQueueDepth() {
+        return maxDepth.get();
+    }
+
+    public long getCompleted() {
+        return completed.get();
+    }
+
+    /**
+     * @return the time submitters spent waiting for the queue to drain, in milliseconds
+     */
+    public long getBlockedMillis() {
+        return TimeUnit.NANOSECONDS.toMillis(blockedNanos.get());
+    }
+
+    /**
+     * Waits for all submitted transfers to finish, and rethrows the first failure, if any.
+     */
+    public void await() throws IOException {
+        synchronized (lock) {
+            while (pending > 0) {
+                try {
+                    lock.wait();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Interrupted while waiting for transfers", e);
+                }
+            }
+        }
+        rethrowFailure();
+    }
+
+    /**
+     * Stops the worker threads. The executor of a job leaves the workers of its pool running.
+     */
+    public void shutdown() {
+        workers.forEach(Thread::interrupt);
+    }
+
+    private void rethrowFailure() throws IOException {
+        Throwable e;
+        synchronized (lock) {
+            e = failure;
+        }
+        if (e instanceof IOException) throw (IOException) e;
+        if (e instanceof RuntimeException) throw (RuntimeException) e;
+        if (e instanceof Error) throw (Error) e;
+        if (e != null) throw new IOException("Transfer failed", e);
+    }
+
+    private class Task {
+        private final TransferExecutor owner;
+        private final Transfer transfer;
+        private final long size;
+        private final long modified;
+        private final boolean large;
+        private final long bytes;
+        private final long sequence;
+        private int skipped;
+
+        Task(TransferExecutor owner, long size, long modified, Transfer transfer, long sequence) {
+            this.owner = owner;
+            this.transfer = transfer;
+            this.size = size;
+            this.modified = modified;
+            this.large = size >= LARGE_FILE_THRESHOLD;
+            //a file larger than the budget counts as the whole budget, so it can run on its own
+            this.bytes = maxBytesInFlight > 0 ? Math.min(size, maxBytesInFlight) : size;
+            this.sequence = sequence;
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package net.vonbrandis.gdrivesync;
+
+import com.google.api.services.drive.model.File;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class ChunkStoreTest {
+    private static final int CHUNK_SIZE = 16;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final SimulatedDrive drive = new SimulatedDrive();
+    private final File root = drive.createRootFolder("Backup");
+    private final Progress progress = new Progress();
+    private ChunkStore store;
+
+    @Before
+    public void setUp() {
+        progress.setTotalSummary(false);
+        store = new ChunkStore(drive, progress, root, 0, CHUNK_SIZE);
+    }
+
+    @Test
+    public void manifestRecordsTheSizeAndTimeOfTheFile() throws Exception {
+        java.io.File file = write("big.bin", 40, 'a');
+        File manifest = store.store(root, "big.bin", null, file);
+        assertTrue(store.isCurrent(manifest, entry(file)));
+
+        //same size, and older than the manifest, which its date does not show
+        write("big.bin", 40, 'b').setLastModified(file.lastModified() - 3600000);
+        assertFalse(store.isCurrent(manifest, entry(file)));
+
+        manifest = store.store(root, "big.bin", manifest, file);
+        assertTrue(store.isCurrent(manifest, entry(file)));
+        ChunkStore.Manifest read = ChunkStore.Manifest.read(new ByteArrayInputStream(drive.downloadDriveFile(manifest)));
+        assertEquals(40, read.getSize());
+        assertEquals(file.lastModified(), read.getModified());
+        assertEquals(3, read.getChunks().size());
+    }
+
+    @Test
+    public void uploadsOnlyTheChunksAfterTheEndOfAGrownFile() throws Exception {
+        //two full chunks and half a chunk, all different
+        java.io.File file = new java.io.File(tmp.getRoot(), "log.txt");
+        Files.write(file.toPath(), "0123456789abcdefghijklmnopqrstuvwxyzABCD".getBytes(StandardCharsets.UTF_8));
+        File manifest = store.store(root, "log.txt", null, file);
+        long chunks = progress.getCounters().get("uploaded_chunks");
+        long uploaded = drive.getUploadedBytes();
+
+        //less than a chunk appended, which fills the last chunk and starts another
+        Files.write(file.toPath(), "EFGHIJKLMNOP".getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        manifest = store.store(root, "log.txt", manifest, file);
+        assertEquals(chunks + 2, (long) progress.getCounters().get("uploaded_chunks"));
+        //the new last chunk of 16 bytes and the partial one of 4, then the manifest
+        assertEquals(uploaded + 16 + 4 + drive.downloadDriveFile(manifest).length, drive.getUploadedBytes());
+    }
+
+    @Test
+    public void writesManifestsOnlyOnceTheirChunksAreStored() throws Exception {
+        //a chunk takes far longer to upload than a manifest
+        int chunkSize = 64 * 1024;
+        store = new ChunkStore(drive, progress, root, 0, chunkSize);
+        drive.setBandwidth(1024 * 1024);
+        List<java.io.File> files = new ArrayList<>();
+        for (int i = 0; i < 4; i++) {
+            files.add(write("same" + i + ".bin", 2 * chunkSize, 'x'));
+        }
+        ExecutorService threads = Executors.newFixedThreadPool(files.size());
+        try {
+            List<Future<Boolean>> results = new ArrayList<>();
+            for (java.io.File file : files) {
+                results.add(threads.submit((Callable<Boolean>) () -> {
+                    File manifest = store.store(root, file.getName(), null, file);
+                    //every chunk the manifest lists is on drive by the time it is written
+                    ChunkStore.Manifest read = ChunkStore.Manifest.read(new ByteArrayInputStream(drive.downloadDriveFile(manifest)));
+                    RemoteListing chunks = drive.iterateDriveFolder(chunkFolder());
+                    return read.getChunks().stream().allMatch(chunk -> chunks.contains(chunk.getHash()));
+                }));
+            }
+            for (Future<Boolean> result : results) {
+                assertTrue(result.get());
+            }
+        } finally {
+            threads.shutdown();
+        }
+        //all chunks have the same content
+        assertEquals(1, drive.iterateDriveFolder(chunkFolder()).size());
+    }
+
+    @Test
+    public void sweepDeletesOnlyUnreferencedChunks() throws Exception {
+        java.io.File file = write("big.bin", 2 * CHUNK_SIZE, 'a');
+        File manifest = store.store(root, "big.bin", null, file);
+        write("big.bin", 2 * CHUNK_SIZE, 'b');
+        //the chunk with a's is left behind
+        manifest = store.store(root, "big.bin", manifest, file);
+        store.store(root, "other.bin", null, write("other.bin", CHUNK_SIZE, 'c'));
+        assertEquals(3, drive.iterateDriveFolder(chunkFolder()).size());
+
+        //young chunks are kept
+        assertEquals(0, store.sweep());
+        store.setSweepGracePeriod(-1000);
+        assertEquals(1, store.sweep());
+        RemoteListing chunks = drive.iterateDriveFolder(chunkFolder());
+        assertEquals(2, chunks.size());
+        assertEquals(0, store.sweep());
+
+        //the file can still be put back together from what is left
+        java.io.File chunkCopy = tmp.newFolder("chunks");
+        for (int c = 0; c < chunks.size(); c++) {
+            Files.write(chunkCopy.toPath().resolve(chunks.getTitle(c)), drive.downloadDriveFile(chunks.toDriveFile(c)));
+        }
+        java.io.File manifestCopy = tmp.newFile("manifest");
+        Files.write(manifestCopy.toPath(), drive.downloadDriveFile(manifest));
+        java.io.File restored = new java.io.File(tmp.getRoot(), "restored.bin");
+        assertEquals(2 * CHUNK_SIZE, ChunkRestore.restore(manifestCopy, chunkCopy, restored));
+        assertArrayEquals(Files.readAllBytes(file.toPath()), Files.readAllBytes(restored.toPath()));
+    }
+
+    @Test
+    public void sweepKeepsTheChunksOfTrashedManifests() throws Exception {
+        File manifest = store.store(root, "big.bin", null, write("big.bin", 2 * CHUNK_SIZE, 'a'));
+        store.store(root, "other.bin", null, write("other.bin", CHUNK_SIZE, 'c'));
+        drive.trashDriveFile(manifest);
+        assertFalse(drive.iterateDriveFolder(root).contains("big.bin"));
+
+        //the file may still be restored from the trash
+        store.setSweepGracePeriod(-1000);
+        assertEquals(0, store.sweep());
+        assertEquals(2, drive.iterateDriveFolder(chunkFolder()).size());
+    }
+
+    @Test
+    public void restoresAFileFromDrive() throws Exception {
+        //three different chunks and a partial one
+        java.io.File file = new java.io.File(tmp.getRoot(), "big.bin");
+        Files.write(file.toPath(), "0123456789abcdefghijklmnopqrstuvwxyzABCDEFGHIJKLMNO".getBytes(StandardCharsets.UTF_8));
+        File folder = drive.createDriveFolder(root, "folder");
+        store.store(folder, "big.bin", null, file);
+
+        java.io.File restored = new java.io.File(tmp.getRoot(), "restored.bin");
+        assertEquals(file.length(), ChunkRestore.restore(drive, "Backup", "folder/big.bin", restored));
+        assertArrayEquals(Files.readAllBytes(file.toPath()), Files.readAllBytes(restored.toPath()));
+    }
+
+    @Test
+    public void leavesNothingBehindWhenAChunkIsCorrupt() throws Exception {
+        java.io.File file = write("big.bin", 2 * CHUNK_SIZE, 'a');
+        File manifest = store.store(root, "big.bin", null, file);
+        java.io.File chunkCopy = tmp.newFolder("chunks");
+        for (ChunkStore.Chunk chunk : ChunkStore.Manifest.read(new ByteArrayInputStream(drive.downloadDriveFile(manifest))).getChunks()) {
+            Files.write(chunkCopy.toPath().resolve(chunk.getHash()), new byte[chunk.getLength()]);
+        }
+        java.io.File manifestCopy = tmp.newFile("manifest");
+        Files.write(manifestCopy.toPath(), drive.downloadDriveFile(manifest));
+
+        java.io.File restored = new java.io.File(tmp.getRoot(), "restored.bin");
+        try {
+            ChunkRestore.restore(manifestCopy, chunkCopy, restored);
+            fail();
+        } catch (IOException expected) {
+        }
+        assertFalse(restored.exists());
+        assertFalse(new java.io.File(restored.getPath() + ".tmp").exists());
+    }
+
+    private File chunkFolder() throws Exception {
+        return drive.iterateDriveFolder(root).get(ChunkStore.FOLDER_NAME);
+    }
+
+    private java.io.File write(String name, int size, char content) throws Exception {
+        java.io.File file = new java.io.File(tmp.getRoot(), name);
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < size; i++) {
+            sb.append(content);
+        }
+        Files.write(file.toPath(), sb.toString().getBytes(StandardCharsets.UTF_8));
+        return file;
+    }
+
+    private static LocalEntry entry(java.io.File file) throws Exception {
+        return new LocalEntry(file.toPath(), Files.readAttributes(file.toPath(), BasicFileAttributes.class));
+    }
+}
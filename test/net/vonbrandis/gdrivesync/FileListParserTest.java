@@ -0,0 +1,102 @@
+package net.vonbrandis.gdrivesync;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.gson.GsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.Data;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.FileList;
+import com.google.api.services.drive.model.ParentReference;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Compares the streaming parser with a FileList parsed by Gson, which is how the client library reads a listing.
+ */
+public class FileListParserTest {
+    private static final String[] PAGES = {
+            //escaped strings and unicode, as escapes and as UTF-8
+            "{\"kind\": \"drive#fileList\", \"nextPageToken\": \"token/1=\", \"items\": [" +
+                    "{\"id\": \"0B1\", \"title\": \"quote \\\" backslash \\\\ slash \\/ tab \\t newline \\n\"," +
+                    " \"mimeType\": \"text/plain\", \"fileSize\": \"12\", \"modifiedDate\": \"2022-08-15T10:11:12.345Z\"," +
+                    " \"md5Checksum\": \"0123456789abcdef0123456789abcdef\", \"parents\": [{\"id\": \"root\"}]}," +
+                    "{\"id\": \"0B2\", \"title\": \"caf\\u00e9 \\ud83d\\ude00 \u00fcber \u65e5\u672c\"," +
+                    " \"mimeType\": \"application/octet-stream\", \"fileSize\": \"0\", \"parents\": [{\"id\": \"root\"}]}]}",
+            //nested objects before, between and after the fields that are read, several parents
+            "{\"items\": [{\"kind\": \"drive#file\", \"labels\": {\"starred\": false, \"trashed\": false, \"restricted\": false}," +
+                    " \"owners\": [{\"displayName\": \"x\", \"picture\": {\"url\": \"http://x\"}}], \"id\": \"0B3\"," +
+                    " \"parents\": [{\"kind\": \"drive#parentReference\", \"id\": \"p1\", \"selfLink\": \"http://p1\", \"isRoot\": false}," +
+                    " {\"id\": \"p2\", \"isRoot\": true}], \"title\": \"a.jpg\"," +
+                    " \"imageMediaMetadata\": {\"width\": 10, \"location\": {\"latitude\": 1.5, \"longitude\": -2.5}}," +
+                    " \"exportLinks\": {\"application/pdf\": \"http://pdf\"}, \"mimeType\": \"image/jpeg\", \"fileSize\": \"9007199254740993\"," +
+                    " \"modifiedDate\": \"2001-01-01T00:00:00.000+02:00\", \"properties\": [], \"md5Checksum\": \"ffffffffffffffffffffffffffffffff\"}]," +
+                    " \"nextPageToken\": \"after the items\"}",
+            //missing and null fields, a folder, no parents, no next page
+            "{\"items\": [{\"id\": \"0B4\", \"title\": \"folder\", \"mimeType\": \"application/vnd.google-apps.folder\", \"parents\": []}," +
+                    "{\"id\": \"0B5\"}," +
+                    "{\"id\": \"0B6\", \"title\": null, \"mimeType\": \"text/plain\", \"fileSize\": null, \"md5Checksum\": null}]}",
+            //an empty page, with an empty token on the last page
+            "{\"kind\": \"drive#fileList\", \"etag\": \"\\\"e\\\"\", \"items\": [], \"nextPageToken\": \"\"}",
+            "{}",
+    };
+
+    @Test
+    public void readsTheSameAsTheClientLibrary() throws Exception {
+        for (JsonFactory factory : new JsonFactory[]{new JacksonFactory(), GsonFactory.getDefaultInstance()}) {
+            for (String page : PAGES) {
+                FileList expected = GsonFactory.getDefaultInstance().fromInputStream(stream(page), FileList.class);
+                List<File> parsed = new ArrayList<>();
+                String nextPageToken = FileListParser.parse(factory, stream(page), item -> parsed.add(item.toDriveFile()));
+
+                String expectedToken = expected.getNextPageToken();
+                assertEquals(page, expectedToken == null || expectedToken.isEmpty() ? null : expectedToken, nextPageToken);
+                List<File> items = expected.getItems() != null ? expected.getItems() : Collections.emptyList();
+                assertEquals(page, items.size(), parsed.size());
+                for (int i = 0; i < items.size(); i++) {
+                    assertSameFields(items.get(i), parsed.get(i));
+                }
+            }
+        }
+    }
+
+    private static void assertSameFields(File expected, File actual) {
+        String file = expected.getId();
+        assertEquals(file, expected.getId(), actual.getId());
+        assertEquals(file, orNull(expected.getTitle()), actual.getTitle());
+        assertEquals(file, orNull(expected.getMimeType()), actual.getMimeType());
+        assertEquals(file, orNull(expected.getFileSize()), actual.getFileSize());
+        assertEquals(file, expected.getModifiedDate() != null ? expected.getModifiedDate().getValue() : null,
+                actual.getModifiedDate() != null ? actual.getModifiedDate().getValue() : null);
+        assertEquals(file, orNull(expected.getMd5Checksum()), actual.getMd5Checksum());
+        assertEquals(file, parentIds(expected), parentIds(actual));
+    }
+
+    /**
+     * @return null for the value the client library keeps for a JSON null
+     */
+    private static <T> T orNull(T value) {
+        return Data.isNull(value) ? null : value;
+    }
+
+    private static List<String> parentIds(File file) {
+        List<String> ids = new ArrayList<>();
+        if (file.getParents() != null) {
+            for (ParentReference parent : file.getParents()) {
+                ids.add(parent.getId());
+            }
+        }
+        return ids;
+    }
+
+    private static ByteArrayInputStream stream(String json) throws IOException {
+        return new ByteArrayInputStream(json.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,181 @@
+package net.vonbrandis.gdrivesync;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class FolderWatcherTest {
+    private static final long QUIET_PERIOD = 300;
+    private static final long MAX_DELAY = 1000;
+    private static final long TIMEOUT = 5000;
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private File root;
+    private File sub;
+    private FolderWatcher watcher;
+
+    @Before
+    public void setUp() throws Exception {
+        root = tmp.newFolder("root");
+        sub = new File(root, "sub");
+        assertTrue(sub.mkdir());
+        Progress progress = new Progress();
+        progress.setTotalSummary(false);
+        watcher = new FolderWatcher(root, progress, QUIET_PERIOD, MAX_DELAY);
+        watcher.registerAll(IgnoreRules.load(root, null));
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        watcher.close();
+    }
+
+    @Test
+    public void reportsABurstOfChangesOnce() throws Exception {
+        Thread writer = writer(() -> {
+            write(new File(root, "a"));
+            Thread.sleep(QUIET_PERIOD / 3);
+            write(new File(sub, "b"));
+            Thread.sleep(QUIET_PERIOD / 3);
+            write(new File(root, "c"));
+        });
+        long start = System.currentTimeMillis();
+        Set<File> changed = watcher.awaitChanges(TIMEOUT);
+        long elapsed = System.currentTimeMillis() - start;
+        writer.join();
+
+        assertEquals(new HashSet<>(Arrays.asList(root, sub)), changed);
+        //the last event restarted the quiet period
+        assertTrue(elapsed >= 2 * QUIET_PERIOD / 3 + QUIET_PERIOD);
+        assertTrue(watcher.awaitChanges(QUIET_PERIOD).isEmpty());
+    }
+
+    @Test
+    public void reportsContinuousChangesAfterTheMaximumDelay() throws Exception {
+        Thread writer = writer(() -> {
+            for (int i = 0; i < 4 * MAX_DELAY / (QUIET_PERIOD / 3); i++) {
+                write(new File(root, "f" + i));
+                Thread.sleep(QUIET_PERIOD / 3);
+            }
+        });
+        long start = System.currentTimeMillis();
+        Set<File> changed = watcher.awaitChanges(TIMEOUT);
+        long elapsed = System.currentTimeMillis() - start;
+        writer.interrupt();
+        writer.join();
+
+        assertEquals(new HashSet<>(Arrays.asList(root)), changed);
+        assertTrue(elapsed >= MAX_DELAY);
+        assertTrue(elapsed < 3 * MAX_DELAY);
+    }
+
+    @Test
+    public void fallsBackToAFullCompareWhenEventsAreLost() throws Exception {
+        //more events than a watch key holds
+        for (int i = 0; i < 1000; i++) {
+            write(new File(root, "f" + i));
+        }
+        Thread.sleep(QUIET_PERIOD);
+        assertNull(watcher.awaitChanges(TIMEOUT));
+    }
+
+    @Test
+    public void watchesFoldersCreatedAfterTheStart() throws Exception {
+        File deep = new File(root, "new/deep");
+        assertTrue(deep.mkdirs());
+        assertEquals(new HashSet<>(Arrays.asList(root)), watcher.awaitChanges(TIMEOUT));
+
+        write(new File(deep, "file"));
+        assertEquals(new HashSet<>(Arrays.asList(deep)), watcher.awaitChanges(TIMEOUT));
+    }
+
+    @Test
+    public void ignoresHiddenFiles() throws Exception {
+        write(new File(root, ".hidden"));
+        assertTrue(watcher.awaitChanges(2 * QUIET_PERIOD).isEmpty());
+    }
+
+    @Test
+    public void doesNotWatchIgnoredFolders() throws Exception {
+        watcher.close();
+        File build = new File(sub, "build/classes");
+        assertTrue(build.mkdirs());
+        Files.write(new File(root, IgnoreRules.FILE_NAME).toPath(), "build/\n*.tmp".getBytes());
+        Progress progress = new Progress();
+        progress.setTotalSummary(false);
+        watcher = new FolderWatcher(root, progress, QUIET_PERIOD, MAX_DELAY);
+        watcher.registerAll(IgnoreRules.load(root, null));
+
+        write(new File(build, "A.class"));
+        write(new File(sub, "x.tmp"));
+        assertTrue(new File(root, "new/build").mkdirs());
+        assertEquals(new HashSet<>(Arrays.asList(root)), watcher.awaitChanges(TIMEOUT));
+
+        //the ignored folder below the new folder is not watched either
+        write(new File(root, "new/build/file"));
+        assertTrue(watcher.awaitChanges(2 * QUIET_PERIOD).isEmpty());
+    }
+
+    @Test
+    public void readsTheRulesAgainWhenARuleFileChanges() throws Exception {
+        File build = new File(sub, "build");
+        assertTrue(build.mkdir());
+        Files.write(new File(sub, IgnoreRules.FILE_NAME).toPath(), "*.log".getBytes());
+        assertEquals(new HashSet<>(Arrays.asList(sub)), watcher.awaitChanges(TIMEOUT));
+        write(new File(sub, "x.log"));
+        assertTrue(watcher.awaitChanges(2 * QUIET_PERIOD).isEmpty());
+
+        Files.write(new File(sub, IgnoreRules.FILE_NAME).toPath(), "build/".getBytes());
+        assertEquals(new HashSet<>(Arrays.asList(sub)), watcher.awaitChanges(TIMEOUT));
+        write(new File(sub, "x.log"));
+        assertEquals(new HashSet<>(Arrays.asList(sub)), watcher.awaitChanges(TIMEOUT));
+
+        //a folder no longer ignored is watched again
+        Files.delete(new File(sub, IgnoreRules.FILE_NAME).toPath());
+        assertEquals(new HashSet<>(Arrays.asList(sub)), watcher.awaitChanges(TIMEOUT));
+        write(new File(build, "A.class"));
+        assertEquals(new HashSet<>(Arrays.asList(build)), watcher.awaitChanges(TIMEOUT));
+    }
+
+    @Test
+    public void comparesEverythingAgainWhenTheRootRulesChange() throws Exception {
+        Files.write(new File(root, IgnoreRules.FILE_NAME).toPath(), "*.log".getBytes());
+        assertNull(watcher.awaitChanges(TIMEOUT));
+    }
+
+    private interface Writes {
+        void run() throws Exception;
+    }
+
+    private static Thread writer(Writes writes) {
+        Thread t = new Thread(() -> {
+            try {
+                writes.run();
+            } catch (InterruptedException e) {
+                //stopped
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        t.start();
+        return t;
+    }
+
+    private static void write(File file) throws Exception {
+        Files.write(file.toPath(), new byte[1]);
+    }
+}
@@ -0,0 +1,142 @@
+package net.vonbrandis.gdrivesync;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class IgnoreRulesTest {
+    private static final boolean DIR = true;
+    private static final boolean FILE = false;
+
+    //rules of the root folder, path below it, directory or file, size, expected
+    private static final Object[][] CASES = {
+            //a pattern without a slash matches the name at any depth
+            {"build/", "build", DIR, 0L, true},
+            {"build/", "src/build", DIR, 0L, true},
+            {"build/", "build", FILE, 0L, false},
+            {"*.log", "a/b/c.log", FILE, 0L, true},
+            //a pattern with a slash is anchored to the folder of the rule file
+            {"/build", "build", FILE, 0L, true},
+            {"/build", "src/build", FILE, 0L, false},
+            {"doc/*.txt", "doc/a.txt", FILE, 0L, true},
+            {"doc/*.txt", "doc/sub/a.txt", FILE, 0L, false},
+            {"doc/*.txt", "src/doc/a.txt", FILE, 0L, false},
+            //everything below an ignored folder is ignored
+            {"doc/", "doc/sub/a.txt", FILE, 0L, true},
+            //the last matching rule decides, ! re-includes
+            {"*.log\n!keep.log", "a.log", FILE, 0L, true},
+            {"*.log\n!keep.log", "keep.log", FILE, 0L, false},
+            {"*.log\n!keep.log", "sub/keep.log", FILE, 0L, false},
+            {"!keep.log\n*.log", "keep.log", FILE, 0L, true},
+            //** matches any number of folders, none included
+            {"**/cache", "cache", DIR, 0L, true},
+            {"**/cache", "a/b/cache", DIR, 0L, true},
+            {"a/**/b", "a/b", FILE, 0L, true},
+            {"a/**/b", "a/x/y/b", FILE, 0L, true},
+            {"a/**/b", "c/a/b", FILE, 0L, false},
+            {"logs/**", "logs/x/y.txt", FILE, 0L, true},
+            //single character wildcards, sets and escapes
+            {"foo?.txt", "foo1.txt", FILE, 0L, true},
+            {"foo?.txt", "foo10.txt", FILE, 0L, false},
+            {"[ab].c", "a.c", FILE, 0L, true},
+            {"[!ab].c", "a.c", FILE, 0L, false},
+            {"\\!important", "!important", FILE, 0L, true},
+            {"# comment", "# comment", FILE, 0L, false},
+            //size predicates only match files
+            {"*.iso size>1K", "big.iso", FILE, 2048L, true},
+            {"*.iso size>1K", "small.iso", FILE, 10L, false},
+            {"size>1K", "any.bin", FILE, 2048L, true},
+            {"size>1K", "folder", DIR, 2048L, false},
+    };
+
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    @Test
+    public void matchesLikeGitignore() throws Exception {
+        for (Object[] c : CASES) {
+            File root = tmp.newFolder();
+            write(new File(root, IgnoreRules.FILE_NAME), (String) c[0]);
+            IgnoreRules rules = IgnoreRules.load(root, null);
+            assertEquals(c[0] + " on " + c[1], c[4], isIgnored(rules, (String) c[1], (Boolean) c[2], (Long) c[3]));
+        }
+    }
+
+    @Test
+    public void subfoldersInheritAndOverrideRules() throws Exception {
+        File root = tmp.newFolder();
+        write(new File(root, IgnoreRules.FILE_NAME), "*.tmp\n/top.txt");
+        write(new File(root, "sub/" + IgnoreRules.FILE_NAME), "!keep.tmp\n/x");
+        IgnoreRules rules = IgnoreRules.load(root, null);
+
+        assertEquals(true, isIgnored(rules, "keep.tmp", FILE, 0));
+        assertEquals(false, isIgnored(rules, "sub/keep.tmp", FILE, 0));
+        assertEquals(false, isIgnored(rules, "sub/deeper/keep.tmp", FILE, 0));
+        assertEquals(true, isIgnored(rules, "sub/other.tmp", FILE, 0));
+        assertEquals(true, isIgnored(rules, "sub/x", FILE, 0));
+        assertEquals(false, isIgnored(rules, "x", FILE, 0));
+        assertEquals(false, isIgnored(rules, "sub/y/x", FILE, 0));
+        //anchored rules are relative to the folder of their file
+        assertEquals(false, isIgnored(rules, "sub/top.txt", FILE, 0));
+        //the same rules when a folder is looked up directly
+        assertEquals(false, rules.forFolder(new File(root, "sub/deeper")).isIgnored("keep.tmp", FILE, 0, 0));
+    }
+
+    @Test
+    public void folderRulesTakePrecedenceOverGlobalRules() throws Exception {
+        File root = tmp.newFolder();
+        File global = tmp.newFile();
+        write(global, "*.bak\nbuild/");
+        write(new File(root, IgnoreRules.FILE_NAME), "!important.bak");
+        IgnoreRules rules = IgnoreRules.load(root, global);
+
+        assertEquals(true, isIgnored(rules, "old.bak", FILE, 0));
+        assertEquals(false, isIgnored(rules, "important.bak", FILE, 0));
+        assertEquals(true, isIgnored(rules, "a/build", DIR, 0));
+        assertEquals(true, rules.isIgnoredFolder(new File(root, "a/build/classes")));
+        assertEquals(false, rules.isIgnoredFolder(new File(root, "a/src")));
+    }
+
+    @Test
+    public void namesTheFileAndLineOfABrokenRule() throws Exception {
+        String[] broken = {"*.iso size>1X", "*.iso size>9999999999999999999", "*.iso size>99999999T", "age>9999999999999999w"};
+        for (String rule : broken) {
+            File root = tmp.newFolder();
+            write(new File(root, "sub/" + IgnoreRules.FILE_NAME), "# big files\n" + rule);
+            IgnoreRules rules = IgnoreRules.load(root, null);
+            try {
+                rules.forSubfolder(new File(root, "sub"));
+                fail(rule);
+            } catch (IOException e) {
+                assertTrue(e.getMessage(), e.getMessage().startsWith(new File(root, "sub/" + IgnoreRules.FILE_NAME) + ", line 2: "));
+            }
+        }
+    }
+
+    /**
+     * Looks the path up the way the scanner does, folder by folder, stopping at an ignored folder.
+     */
+    private static boolean isIgnored(IgnoreRules rules, String path, boolean directory, long size) throws IOException {
+        String[] names = path.split("/");
+        IgnoreRules current = rules;
+        for (int i = 0; i < names.length - 1; i++) {
+            if (current.isIgnored(names[i], true, 0, 0)) return true;
+            current = current.forSubfolder(new File(names[i]));
+        }
+        return current.isIgnored(names[names.length - 1], directory, size, System.currentTimeMillis());
+    }
+
+    private static void write(File file, String content) throws IOException {
+        Files.createDirectories(file.getParentFile().toPath());
+        Files.write(file.toPath(), content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,64 @@
+package net.vonbrandis.gdrivesync;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class MetricsExporterTest {
+    private static final Pattern BUCKET = Pattern.compile(
+            "gdrivesync_drive_call_duration_seconds_bucket\\{operation=\"list\",le=\"([^\"]+)\"} (\\d+)");
+
+    private final Progress progress = new Progress();
+    private final MetricsExporter exporter = new MetricsExporter(progress);
+
+    @Before
+    public void setUp() {
+        progress.setTotalSummary(false);
+        progress.apiCall("list", 3, false);
+        progress.apiCall("list", 7, false);
+        progress.apiCall("list", 120000, true);
+        progress.apiCall("insert", 20, false);
+    }
+
+    @Test
+    public void exportsCumulativeBuckets() {
+        String text = exporter.prometheus();
+        List<String> bounds = new ArrayList<>();
+        List<Long> counts = new ArrayList<>();
+        Matcher m = BUCKET.matcher(text);
+        while (m.find()) {
+            bounds.add(m.group(1));
+            counts.add(Long.parseLong(m.group(2)));
+        }
+        assertEquals(LatencyHistogram.getBounds().length + 1, counts.size());
+        assertEquals("0.005", bounds.get(0));
+        assertEquals(1L, (long) counts.get(0));
+        assertEquals(2L, (long) counts.get(1));
+        for (int i = 1; i < counts.size(); i++) {
+            assertTrue(counts.get(i) >= counts.get(i - 1));
+        }
+        //the call of two minutes is only in the last bucket, which holds all calls
+        assertEquals(2L, (long) counts.get(counts.size() - 2));
+        assertEquals("+Inf", bounds.get(bounds.size() - 1));
+        assertEquals(3L, (long) counts.get(counts.size() - 1));
+        assertTrue(text.contains("gdrivesync_drive_call_duration_seconds_count{operation=\"list\"} 3\n"));
+        assertTrue(text.contains("gdrivesync_drive_call_duration_seconds_sum{operation=\"list\"} 120.010\n"));
+        assertTrue(text.contains("gdrivesync_drive_call_failures_total{operation=\"list\"} 1\n"));
+        assertTrue(text.contains("gdrivesync_drive_call_failures_total{operation=\"insert\"} 0\n"));
+    }
+
+    @Test
+    public void exportsQuantilesAboveTheLastBoundAsNull() {
+        String json = exporter.json();
+        assertTrue(json, json.contains("\"list\":{\"count\":3,\"failed\":1,\"avg_ms\":40003,\"p50_ms\":10,\"p99_ms\":null}"));
+        assertTrue(json, json.contains("\"insert\":{\"count\":1,\"failed\":0,\"avg_ms\":20,\"p50_ms\":25,\"p99_ms\":25}"));
+        assertTrue(json, json.endsWith("}}"));
+    }
+}
@@ -0,0 +1,106 @@
+package net.vonbrandis.gdrivesync;
+
+import com.google.api.services.drive.model.File;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Moves renamed and moved local files and folders on a SimulatedDrive.
+ */
+public class MoveDetectorTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final SimulatedDrive drive = new SimulatedDrive();
+    private final File root = drive.createRootFolder("Backup");
+    private final Progress progress = new Progress();
+    private Path local;
+
+    @Before
+    public void setUp() throws Exception {
+        progress.setTotalSummary(false);
+        local = tmp.newFolder("local").toPath();
+        write("a.txt", "a");
+        write("folder/b.txt", "bb");
+        write("folder/sub/c.txt", "ccc");
+    }
+
+    @Test
+    public void movesARenamedFolderWithTheSyncState() throws Exception {
+        sync(true, false);
+        File folder = drive.iterateDriveFolder(root).get("folder");
+        long uploaded = drive.getUploadedBytes();
+        Map<String, Long> before = drive.getStatistics();
+
+        Files.move(local.resolve("folder"), local.resolve("renamed"));
+        sync(true, false);
+        Map<String, Long> after = drive.getStatistics();
+        assertEquals(uploaded, drive.getUploadedBytes());
+        assertEquals(before.get("insert"), after.get("insert"));
+        assertEquals(before.getOrDefault("delete", 0L), after.getOrDefault("delete", 0L));
+        RemoteListing rootListing = drive.iterateDriveFolder(root);
+        assertFalse(rootListing.contains("folder"));
+        //the same drive folder, with its contents
+        assertEquals(folder.getId(), rootListing.get("renamed").getId());
+        assertTrue(drive.iterateDriveFolder(rootListing.get("renamed")).contains("b.txt"));
+        assertEquals(6, drive.size());
+    }
+
+    @Test
+    public void movesAFileByItsChecksum() throws Exception {
+        sync(false, true);
+        File a = drive.iterateDriveFolder(root).get("a.txt");
+        long uploaded = drive.getUploadedBytes();
+
+        //the folder it was removed from is compared before the folder it was moved to
+        Files.move(local.resolve("a.txt"), local.resolve("folder/moved.txt"));
+        sync(false, true);
+        assertEquals(uploaded, drive.getUploadedBytes());
+        assertFalse(drive.iterateDriveFolder(root).contains("a.txt"));
+        File moved = drive.iterateDriveFolder(drive.iterateDriveFolder(root).get("folder")).get("moved.txt");
+        assertNotNull(moved);
+        assertEquals(a.getId(), moved.getId());
+        assertEquals(6, drive.size());
+    }
+
+    @Test
+    public void uploadsAgainWhenTheSourceIsGoneFromDrive() throws Exception {
+        sync(true, false);
+        long uploaded = drive.getUploadedBytes();
+
+        Files.move(local.resolve("folder"), local.resolve("renamed"));
+        //removed on drive behind the back of the sync
+        drive.deleteDriveFile(drive.iterateDriveFolder(root).get("folder"));
+        sync(true, false);
+        assertEquals(uploaded + 5, drive.getUploadedBytes());
+        File renamed = drive.iterateDriveFolder(root).get("renamed");
+        assertTrue(drive.iterateDriveFolder(renamed).contains("b.txt"));
+        assertTrue(drive.iterateDriveFolder(drive.iterateDriveFolder(renamed).get("sub")).contains("c.txt"));
+        assertEquals(6, drive.size());
+    }
+
+    private void sync(boolean withState, boolean withChecksums) throws Exception {
+        Synchronizer synchronizer = new Synchronizer(progress, drive, local.toString(), "Backup");
+        if (withState) synchronizer.setStateFile(new java.io.File(tmp.getRoot(), "syncstate"));
+        if (withChecksums) synchronizer.setChecksumFile(new java.io.File(tmp.getRoot(), "checksums"));
+        synchronizer.sync();
+    }
+
+    private void write(String path, String content) throws Exception {
+        Path file = local.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+}
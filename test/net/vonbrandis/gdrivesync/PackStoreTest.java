@@ -0,0 +1,160 @@
+package net.vonbrandis.gdrivesync;
+
+import com.google.api.services.drive.model.File;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class PackStoreTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final SimulatedDrive drive = new SimulatedDrive();
+    private final File root = drive.createRootFolder("Backup");
+    private final Progress progress = new Progress();
+    private List<LocalEntry> files;
+
+    @Before
+    public void setUp() throws Exception {
+        progress.setTotalSummary(false);
+        files = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            files.add(file("f" + i, 100));
+        }
+    }
+
+    @Test
+    public void uploadsTheSegmentsAndThenTheIndex() throws Exception {
+        PackStore store = new PackStore(drive, progress, 300);
+        PackStore.Plan plan = store.plan(files);
+        assertTrue(plan.getSegments().size() >= 4);
+        TransferExecutor transfers = new TransferExecutor(progress, 4);
+        try {
+            store.upload(root, tmp.getRoot(), plan, name -> false, transfers);
+            transfers.await();
+        } finally {
+            transfers.shutdown();
+        }
+        RemoteListing listing = drive.iterateDriveFolder(root);
+        assertEquals(plan.getNames().size(), listing.size());
+        assertTrue(listing.contains(plan.getIndexName()));
+    }
+
+    @Test
+    public void addingAFileChangesOnlyItsOwnSegment() throws Exception {
+        List<LocalEntry> many = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            many.add(file("many/" + i + ".txt", 10));
+        }
+        //large enough for the boundaries alone to cut the segments
+        PackStore store = new PackStore(drive, progress, PackStore.MAX_SEGMENT_SIZE);
+        Set<String> before = segmentNames(store.plan(many));
+        assertTrue(before.size() > 2);
+
+        many.add(file("many/1000a.txt", 10));
+        Set<String> after = segmentNames(store.plan(many));
+        Set<String> removed = new HashSet<>(before);
+        removed.removeAll(after);
+        Set<String> added = new HashSet<>(after);
+        added.removeAll(before);
+        assertEquals(1, removed.size());
+        //two if the new file is a boundary itself
+        assertTrue(added.size() == 1 || added.size() == 2);
+    }
+
+    @Test
+    public void restoresThePackedFiles() throws Exception {
+        files.add(file("tab\tname", 50));
+        PackStore store = new PackStore(drive, progress, 300);
+        PackStore.Plan plan = store.plan(files);
+        store.upload(root, tmp.getRoot(), plan, name -> false, new TransferExecutor(progress, 1));
+
+        java.io.File segments = tmp.newFolder("segments");
+        RemoteListing listing = drive.iterateDriveFolder(root);
+        for (int i = 0; i < listing.size(); i++) {
+            Files.write(segments.toPath().resolve(listing.getTitle(i)), drive.downloadDriveFile(listing.toDriveFile(i)));
+        }
+        java.io.File restored = tmp.newFolder("restored");
+        java.io.File index = new java.io.File(segments, plan.getIndexName());
+        assertEquals(files.size(), PackRestore.restore(index, segments, restored, null));
+        for (LocalEntry f : files) {
+            java.io.File copy = new java.io.File(restored, f.getName());
+            assertArrayEquals(Files.readAllBytes(f.getFile().toPath()), Files.readAllBytes(copy.toPath()));
+            assertEquals(f.getLastModified(), copy.lastModified());
+        }
+
+        //only the requested files
+        java.io.File some = tmp.newFolder("some");
+        assertEquals(1, PackRestore.restore(index, segments, some, Collections.singleton("f3")));
+        assertArrayEquals(new String[]{"f3"}, some.list());
+    }
+
+    @Test
+    public void uploadsFilesWithLineBreaksInTheirNameAsUsual() throws Exception {
+        PackStore store = new PackStore(drive, progress, 300);
+        assertTrue(store.accepts(files.get(0)));
+        assertFalse(store.accepts(file("line\nbreak", 10)));
+        assertFalse(store.accepts(file("carriage\rreturn", 10)));
+    }
+
+    @Test(timeout = 60000)
+    public void handsBackItsPermitsWhenASegmentCannotBeQueued() throws Exception {
+        PackStore store = new PackStore(drive, progress, PackStore.MAX_SEGMENT_SIZE);
+        PackStore.Plan plan = store.plan(files);
+        TransferExecutor transfers = new TransferExecutor(progress, 2);
+        try {
+            transfers.submit(0, 0, () -> {
+                throw new IOException("failed");
+            });
+            try {
+                transfers.await();
+                fail();
+            } catch (IOException expected) {
+            }
+            //every further submit rethrows the failure, and would block for good once the permits run out
+            for (int i = 0; i < 4 * Runtime.getRuntime().availableProcessors() + 4; i++) {
+                try {
+                    store.upload(root, tmp.getRoot(), plan, name -> false, transfers);
+                    fail();
+                } catch (IOException expected) {
+                }
+            }
+        } finally {
+            transfers.shutdown();
+        }
+    }
+
+    private LocalEntry file(String name, int size) throws IOException {
+        Path file = tmp.getRoot().toPath().resolve(name);
+        Files.createDirectories(file.getParent());
+        byte[] content = new byte[size];
+        new Random(name.hashCode()).nextBytes(content);
+        Files.write(file, content);
+        file.toFile().setLastModified(1500000000000L + name.hashCode());
+        return new LocalEntry(file, Files.readAttributes(file, BasicFileAttributes.class));
+    }
+
+    private static Set<String> segmentNames(PackStore.Plan plan) {
+        Set<String> names = new HashSet<>();
+        plan.getSegments().forEach(s -> names.add(s.getName()));
+        return names;
+    }
+}
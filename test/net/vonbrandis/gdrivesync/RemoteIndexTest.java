@@ -0,0 +1,138 @@
+package net.vonbrandis.gdrivesync;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.File;
+import com.google.api.services.drive.model.ParentReference;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+public class RemoteIndexTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final InMemoryChangeFeed feed = new InMemoryChangeFeed(2);
+    private final File root = folder("root", "top", "Backup");
+
+    @Test
+    public void appliesAllPagesOfChanges() throws Exception {
+        feed.fileChanged(root);
+        feed.fileChanged(file("a", "root", "a.txt", 10));
+        feed.fileChanged(file("b", "root", "b.txt", 20));
+        feed.fileChanged(file("c", "root", "c.txt", 30));
+        feed.fileChanged(file("d", "root", "d.txt", 40));
+
+        RemoteIndex index = new RemoteIndex();
+        assertEquals(5, index.applyChanges(feed));
+        assertEquals(5, index.getChangeId());
+        RemoteListing listing = index.children(root);
+        assertEquals(4, listing.size());
+        assertEquals(30, listing.getSize(listing.indexOf("c.txt")));
+        //nothing new since
+        assertEquals(0, index.applyChanges(feed));
+    }
+
+    @Test
+    public void replaysChangesOnTheCachedIndex() throws Exception {
+        File sub = folder("sub", "root", "sub");
+        feed.fileChanged(root);
+        feed.fileChanged(sub);
+        feed.fileChanged(file("a", "root", "a.txt", 10));
+        feed.fileChanged(file("b", "root", "b.txt", 20));
+        feed.fileChanged(file("c", "root", "c.txt", 30));
+        feed.fileChanged(file("d", "root", "d.txt", 40));
+        RemoteIndex index = new RemoteIndex();
+        index.applyChanges(feed);
+        java.io.File cache = tmp.newFile("remoteindex");
+        index.save(cache);
+
+        //renamed, deleted, trashed and moved after the index was saved
+        feed.fileChanged(file("a", "root", "renamed.txt", 11));
+        feed.fileDeleted("b");
+        feed.fileChanged(file("c", "root", "c.txt", 30).setLabels(new File.Labels().setTrashed(true)));
+        feed.fileChanged(file("d", "sub", "d.txt", 40));
+
+        Progress progress = new Progress();
+        progress.setTotalSummary(false);
+        RemoteIndex loaded = RemoteIndex.loadIncremental(cache, new SimulatedDrive(), feed, progress);
+        assertEquals(10, loaded.getChangeId());
+        RemoteListing rootListing = loaded.children(root);
+        assertEquals(2, rootListing.size());
+        assertTrue(rootListing.contains("sub"));
+        assertTrue(rootListing.contains("renamed.txt"));
+        assertEquals(11, rootListing.getSize(rootListing.indexOf("renamed.txt")));
+        RemoteListing subListing = loaded.children(sub);
+        assertEquals(1, subListing.size());
+        assertTrue(subListing.contains("d.txt"));
+    }
+
+    @Test
+    public void savesFilesWithoutMimeTypeOrChecksum() throws Exception {
+        RemoteIndex index = new RemoteIndex();
+        index.add(root);
+        index.add(file("a", "root", "a.txt", 10).setMimeType(null));
+        index.add(file("b", "root", "b.txt", 20).setMd5Checksum("0123456789abcdef0123456789abcdef"));
+        java.io.File cache = tmp.newFile("remoteindex");
+        index.save(cache);
+
+        Progress progress = new Progress();
+        progress.setTotalSummary(false);
+        RemoteListing listing = RemoteIndex.loadIncremental(cache, new SimulatedDrive(), feed, progress).children(root);
+        assertEquals(2, listing.size());
+        assertEquals(null, listing.getMimeType(listing.indexOf("a.txt")));
+        assertEquals(null, listing.getMd5Checksum(listing.indexOf("a.txt")));
+        assertEquals("0123456789abcdef0123456789abcdef", listing.getMd5Checksum(listing.indexOf("b.txt")));
+    }
+
+    @Test
+    public void syncPicksUpDriveSideChangesFromTheFeed() throws Exception {
+        java.io.File local = tmp.newFolder("local");
+        Files.write(new java.io.File(local, "f1").toPath(), new byte[10]);
+        Files.write(new java.io.File(local, "f2").toPath(), new byte[20]);
+        java.io.File cache = new java.io.File(tmp.getRoot(), "remoteindex");
+        SimulatedDrive drive = new SimulatedDrive();
+        File driveRoot = drive.createRootFolder("Backup");
+        Progress progress = new Progress();
+        progress.setTotalSummary(false);
+
+        Synchronizer synchronizer = new Synchronizer(progress, drive, local.getPath(), "Backup");
+        synchronizer.setRemoteIndexFile(cache);
+        synchronizer.sync();
+        assertTrue(cache.isFile());
+
+        //removed on drive behind the back of the sync
+        drive.deleteDriveFile(drive.iterateDriveFolder(driveRoot).get("f1"));
+        Map<String, Long> before = drive.getStatistics();
+        synchronizer = new Synchronizer(progress, drive, local.getPath(), "Backup");
+        synchronizer.setRemoteIndexFile(cache);
+        synchronizer.sync();
+        Map<String, Long> after = drive.getStatistics();
+
+        //the deletion came from the change feed, not from listing drive again
+        assertEquals(before.get("list"), after.get("list"));
+        assertTrue(after.get("changes") > before.getOrDefault("changes", 0L));
+        RemoteListing listing = drive.iterateDriveFolder(driveRoot);
+        assertNotNull(listing.get("f1"));
+        assertNotNull(listing.get("f2"));
+        assertFalse(listing.contains("f3"));
+    }
+
+    private static File folder(String id, String parent, String title) {
+        return new File().setId(id).setTitle(title).setMimeType(GDrive.APPLICATION_VND_GOOGLE_APPS_FOLDER)
+                .setParents(Collections.singletonList(new ParentReference().setId(parent)));
+    }
+
+    private static File file(String id, String parent, String title, long size) {
+        return new File().setId(id).setTitle(title).setMimeType(GDrive.APPLICATION_OCTET_STREAM).setFileSize(size)
+                .setModifiedDate(new DateTime(1000000L)).setParents(Collections.singletonList(new ParentReference().setId(parent)));
+    }
+}
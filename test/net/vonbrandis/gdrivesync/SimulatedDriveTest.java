@@ -0,0 +1,107 @@
+package net.vonbrandis.gdrivesync;
+
+import com.google.api.services.drive.model.File;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SimulatedDriveTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final SimulatedDrive drive = new SimulatedDrive();
+    private final File root = drive.createRootFolder("Backup");
+
+    @Test
+    public void keepsFilesWithTheSameTitle() throws Exception {
+        File first = drive.createDriveFile(root, "a.txt", "text/plain", bytes("one"));
+        File second = drive.createDriveFile(root, "a.txt", "text/plain", bytes("two"));
+        assertFalse(first.getId().equals(second.getId()));
+        assertEquals(3, drive.size());
+        assertEquals(1, drive.iterateDriveFolder(root).size());
+
+        drive.deleteDriveFile(first);
+        assertEquals(second.getId(), drive.iterateDriveFolder(root).get("a.txt").getId());
+    }
+
+    @Test
+    public void deletesEverythingBelowAFolder() throws Exception {
+        File folder = drive.addFolder(root, "folder");
+        File sub = drive.addFolder(folder, "sub");
+        drive.addFile(sub, "deep.txt", 10, 1000);
+        drive.addFile(folder, "file.txt", 10, 1000);
+        drive.addFile(root, "kept.txt", 10, 1000);
+        long changeId = drive.currentChangeId();
+
+        drive.deleteDriveFile(folder);
+        assertEquals(2, drive.size());
+        assertEquals(1, drive.iterateDriveFolder(root).size());
+        assertEquals(0, drive.iterateDriveFolder(sub).size());
+        assertNull(drive.fetchFileByID(sub.getId()));
+
+        //every file below the folder is reported as deleted
+        List<String> deleted = new ArrayList<>();
+        for (ChangeFeed.Page page = drive.fetchChanges(changeId + 1, null); ; page = drive.fetchChanges(changeId + 1, page.getNextPageToken())) {
+            page.getChanges().forEach(c -> {
+                if (Boolean.TRUE.equals(c.getDeleted())) deleted.add(c.getFileId());
+            });
+            if (page.getNextPageToken() == null) break;
+        }
+        assertEquals(4, deleted.size());
+    }
+
+    @Test
+    public void returnsCopies() throws Exception {
+        File file = drive.addFile(root, "a.txt", 10, 1000);
+        file.setTitle("changed");
+        drive.fetchFileByID(file.getId()).setFileSize(20L);
+
+        File stored = drive.fetchFileByID(file.getId());
+        assertEquals("a.txt", stored.getTitle());
+        assertEquals(10L, (long) stored.getFileSize());
+        assertTrue(drive.iterateDriveFolder(root).contains("a.txt"));
+    }
+
+    @Test
+    public void computesChecksumsOfUploads() throws Exception {
+        java.io.File local = tmp.newFile("local.txt");
+        Files.write(local.toPath(), bytes("hello"));
+        File file = drive.createDriveFile(root, "local.txt", local);
+        assertEquals("5d41402abc4b2a76b9719d911017c592", file.getMd5Checksum());
+
+        file = drive.updateDriveFile(file, "text/plain", bytes(""));
+        assertEquals("d41d8cd98f00b204e9800998ecf8427e", drive.fetchFileByID(file.getId()).getMd5Checksum());
+        assertNull(drive.addFile(root, "empty", 0, 1000).getMd5Checksum());
+    }
+
+    @Test
+    public void renamesAndMovesByIdentity() throws Exception {
+        File folder = drive.addFolder(root, "folder");
+        File a = drive.addFile(root, "a.txt", 10, 1000);
+        File b = drive.addFile(root, "a.txt", 20, 1000);
+
+        drive.renameDriveFile(a, "b.txt");
+        drive.moveDriveFile(b, folder, "c.txt");
+        Set<String> titles = new HashSet<>();
+        drive.listAllFiles(f -> titles.add(f.getTitle()));
+        assertEquals(new HashSet<>(java.util.Arrays.asList("Backup", "folder", "b.txt", "c.txt")), titles);
+        assertEquals(a.getId(), drive.iterateDriveFolder(root).get("b.txt").getId());
+        assertEquals(20, drive.iterateDriveFolder(folder).getSize(0));
+    }
+
+    private static byte[] bytes(String s) {
+        return s.getBytes(StandardCharsets.UTF_8);
+    }
+}
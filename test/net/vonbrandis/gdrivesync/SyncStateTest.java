@@ -0,0 +1,139 @@
+package net.vonbrandis.gdrivesync;
+
+import com.google.api.client.util.DateTime;
+import com.google.api.services.drive.model.File;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class SyncStateTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final Progress progress = new Progress();
+    private java.io.File local;
+    private java.io.File logFile;
+
+    @Before
+    public void setUp() throws Exception {
+        progress.setTotalSummary(false);
+        local = tmp.newFolder("local");
+        logFile = new java.io.File(tmp.getRoot(), "syncstate");
+    }
+
+    @Test
+    public void keepsWhatWasSyncedAcrossRuns() throws Exception {
+        LocalEntry a = file("a.txt", "a");
+        LocalEntry b = file("folder/b.txt", "bb");
+        SyncState state = SyncState.open(logFile, local, progress);
+        state.fileSynced(a, driveFile("a"));
+        state.fileSynced(b, driveFile("b"));
+        state.folderSynced(local, driveFile("root"), 1000, null);
+        state.commit();
+        state.removed(a.getFile());
+        //an interrupted run records no folders
+        state.folderSynced(b.getFile().getParentFile(), driveFile("folder"), 2000, null);
+        state.close();
+
+        state = SyncState.open(logFile, local, progress);
+        assertEquals(2, state.size());
+        assertFalse(state.isFolderUnchanged(b.getFile().getParentFile(), 2000));
+        assertNull(state.get(a.getFile()));
+        assertEquals("b", state.get(b.getFile()).getDriveId());
+        assertTrue(state.isFileUnchanged(b));
+        assertTrue(state.isFolderUnchanged(local, 1000));
+        assertEquals(b.getFile().getAbsoluteFile(), state.findByFileKey(b.getFileKey()));
+        state.close();
+    }
+
+    @Test
+    public void dropsAPartialRecordAtTheEnd() throws Exception {
+        LocalEntry a = file("a.txt", "a");
+        LocalEntry b = file("b.txt", "b");
+        SyncState state = SyncState.open(logFile, local, progress);
+        state.fileSynced(a, driveFile("a"));
+        state.fileSynced(b, driveFile("b"));
+        state.close();
+        try (RandomAccessFile f = new RandomAccessFile(logFile, "rw")) {
+            f.setLength(f.length() - 5);
+        }
+
+        state = SyncState.open(logFile, local, progress);
+        assertEquals(1, state.size());
+        assertNotNull(state.get(a.getFile()));
+        //the log was rewritten, so records written from now on can be read
+        state.fileSynced(b, driveFile("b2"));
+        state.close();
+        state = SyncState.open(logFile, local, progress);
+        assertEquals("b2", state.get(b.getFile()).getDriveId());
+        state.close();
+    }
+
+    @Test
+    public void startsAfreshFromACorruptLog() throws Exception {
+        //an unknown record type, and a path that is not valid modified UTF-8
+        byte[][] corruptions = {{9, 0, 1, 'x'}, {1, 0, 2, (byte) 0xff, (byte) 0xff}};
+        for (byte[] corruption : corruptions) {
+            LocalEntry a = file("a.txt", "a");
+            SyncState state = SyncState.open(logFile, local, progress);
+            state.fileSynced(a, driveFile("a"));
+            state.close();
+            try (FileOutputStream out = new FileOutputStream(logFile, true)) {
+                out.write(corruption);
+            }
+
+            state = SyncState.open(logFile, local, progress);
+            assertEquals(0, state.size());
+            state.fileSynced(a, driveFile("a"));
+            state.close();
+            state = SyncState.open(logFile, local, progress);
+            assertEquals(1, state.size());
+            state.close();
+        }
+    }
+
+    @Test
+    public void compactsTheLogOnClose() throws Exception {
+        LocalEntry a = file("a.txt", "a");
+        SyncState state = SyncState.open(logFile, local, progress);
+        state.fileSynced(a, driveFile("id----"));
+        state.close();
+        long compacted = logFile.length();
+
+        state = SyncState.open(logFile, local, progress);
+        for (int i = 0; i < 2000; i++) {
+            state.fileSynced(a, driveFile(String.format("id%04d", i)));
+        }
+        state.close();
+        assertEquals(compacted, logFile.length());
+        state = SyncState.open(logFile, local, progress);
+        assertEquals(1, state.size());
+        assertEquals("id1999", state.get(a.getFile()).getDriveId());
+        assertFalse(state.isFolderUnchanged(local, 0));
+        state.close();
+    }
+
+    private LocalEntry file(String path, String content) throws Exception {
+        Path file = local.toPath().resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes());
+        return new LocalEntry(file, Files.readAttributes(file, BasicFileAttributes.class));
+    }
+
+    private static File driveFile(String id) {
+        return new File().setId(id).setModifiedDate(new DateTime(1000000L));
+    }
+}
@@ -0,0 +1,178 @@
+package net.vonbrandis.gdrivesync;
+
+import com.google.api.services.drive.model.File;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Synchronizes local trees into a SimulatedDrive.
+ */
+public class SynchronizerTest {
+    @Rule
+    public TemporaryFolder tmp = new TemporaryFolder();
+
+    private final SimulatedDrive drive = new SimulatedDrive();
+    private final File root = drive.createRootFolder("Backup");
+    private final Progress progress = new Progress();
+    private Path local;
+
+    @Before
+    public void setUp() throws Exception {
+        progress.setTotalSummary(false);
+        local = tmp.newFolder("local").toPath();
+        write("a.txt", "a");
+        write("folder/b.txt", "bb");
+        write("folder/sub/c.txt", "ccc");
+    }
+
+    @Test
+    public void uploadsTheTreeOnce() throws Exception {
+        sync();
+        assertEquals(6, drive.size());
+        RemoteListing folder = drive.iterateDriveFolder(drive.iterateDriveFolder(root).get("folder"));
+        assertTrue(folder.contains("b.txt"));
+        assertTrue(folder.isFolder(folder.indexOf("sub")));
+        long uploaded = drive.getUploadedBytes();
+
+        sync();
+        assertEquals(uploaded, drive.getUploadedBytes());
+        assertEquals(6, drive.size());
+    }
+
+    @Test
+    public void deletesLocallyRemovedFolders() throws Exception {
+        sync();
+        Files.delete(local.resolve("folder/sub/c.txt"));
+        Files.delete(local.resolve("folder/sub"));
+        Files.delete(local.resolve("folder/b.txt"));
+        Files.delete(local.resolve("folder"));
+
+        sync();
+        assertEquals(2, drive.size());
+        assertFalse(drive.iterateDriveFolder(root).contains("folder"));
+    }
+
+    @Test
+    public void keepsTheDriveCopyOfAnUnreadableFile() throws Exception {
+        sync();
+        //a.txt turns into a broken link
+        Files.delete(local.resolve("a.txt"));
+        Files.createSymbolicLink(local.resolve("a.txt"), local.resolve("missing.txt"));
+
+        sync();
+        assertEquals(6, drive.size());
+        assertTrue(drive.iterateDriveFolder(root).contains("a.txt"));
+    }
+
+    @Test
+    public void skipsTouchedFilesWithTheSameChecksum() throws Exception {
+        Synchronizer synchronizer = synchronizer();
+        synchronizer.setChecksumFile(tmp.newFile("checksums"));
+        synchronizer.sync();
+        long uploaded = drive.getUploadedBytes();
+
+        //newer, but with the same content
+        local.resolve("a.txt").toFile().setLastModified(System.currentTimeMillis() + 3600000);
+        synchronizer = synchronizer();
+        synchronizer.setChecksumFile(tmp.getRoot().toPath().resolve("checksums").toFile());
+        synchronizer.sync();
+        assertEquals(uploaded, drive.getUploadedBytes());
+
+        write("a.txt", "b");
+        local.resolve("a.txt").toFile().setLastModified(System.currentTimeMillis() + 7200000);
+        synchronizer.sync();
+        assertEquals(uploaded + 1, drive.getUploadedBytes());
+    }
+
+    @Test
+    public void storesChunkedFilesAgainWhenTheManifestIsOutdated() throws Exception {
+        Synchronizer synchronizer = synchronizer();
+        synchronizer.setChunkThreshold(2);
+        synchronizer.sync();
+        File folder = drive.iterateDriveFolder(root).get("folder");
+        assertTrue(ChunkStore.isManifest(drive.iterateDriveFolder(folder).get("b.txt").getMimeType()));
+        long uploaded = drive.getUploadedBytes();
+
+        synchronizer.sync();
+        assertEquals(uploaded, drive.getUploadedBytes());
+
+        //same size, and older than the manifest
+        write("folder/b.txt", "xy");
+        local.resolve("folder/b.txt").toFile().setLastModified(System.currentTimeMillis() - 3600000);
+        synchronizer.sync();
+        ChunkStore.Manifest manifest = ChunkStore.Manifest.read(new ByteArrayInputStream(
+                drive.downloadDriveFile(drive.iterateDriveFolder(folder).get("b.txt"))));
+        assertEquals(local.resolve("folder/b.txt").toFile().lastModified(), manifest.getModified());
+        assertTrue(drive.getUploadedBytes() > uploaded);
+    }
+
+    @Test(timeout = 30000)
+    public void stopsAllStagesWhenListingFails() throws Exception {
+        //more folders than the queues between the stages hold
+        for (int i = 0; i < 300; i++) {
+            write("many/" + i + "/f.txt", "f");
+        }
+        AtomicBoolean failing = new AtomicBoolean();
+        AtomicInteger listings = new AtomicInteger();
+        SimulatedDrive failingDrive = new SimulatedDrive() {
+            @Override
+            public RemoteListing iterateDriveFolder(File parentFolder) throws IOException {
+                if (failing.get() && listings.incrementAndGet() > 20) throw new IOException("listing failed");
+                return super.iterateDriveFolder(parentFolder);
+            }
+        };
+        failingDrive.createRootFolder("Backup");
+        Synchronizer synchronizer = new Synchronizer(progress, failingDrive, local.toString(), "Backup");
+        synchronizer.setFolderThreads(4);
+        synchronizer.setMaxListCalls(2);
+        synchronizer.sync();
+
+        failing.set(true);
+        try {
+            synchronizer.sync();
+            fail();
+        } catch (IOException e) {
+            assertEquals("listing failed", e.getMessage());
+        }
+        //the scan and diff threads were blocked on full queues, and are stopped as well
+        long deadline = System.currentTimeMillis() + 5000;
+        while (pipelineThreadsAlive() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(50);
+        }
+        assertFalse(pipelineThreadsAlive());
+    }
+
+    private static boolean pipelineThreadsAlive() {
+        return Thread.getAllStackTraces().keySet().stream()
+                .anyMatch(t -> t.getName().matches("(scan|list|diff)-\\d+"));
+    }
+
+    private void sync() throws Exception {
+        synchronizer().sync();
+    }
+
+    private Synchronizer synchronizer() {
+        return new Synchronizer(progress, drive, local.toString(), "Backup");
+    }
+
+    private void write(String path, String content) throws Exception {
+        Path file = local.resolve(path);
+        Files.createDirectories(file.getParent());
+        Files.write(file, content.getBytes(StandardCharsets.UTF_8));
+    }
+}
@@ -0,0 +1,219 @@
+package net.vonbrandis.gdrivesync;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TransferExecutorTest {
+    private static final long TIMEOUT = 5000;
+    //long enough for a worker to have started a transfer it was free to start
+    private static final long SETTLE = 300;
+
+    private final Progress progress = new Progress();
+    private final List<String> order = Collections.synchronizedList(new ArrayList<>());
+    private TransferExecutor transfers;
+
+    @Before
+    public void setUp() {
+        progress.setTotalSummary(false);
+    }
+
+    @After
+    public void tearDown() {
+        if (transfers != null) transfers.shutdown();
+    }
+
+    @Test(timeout = 10000)
+    public void startsTheSmallestFilesFirst() throws Exception {
+        transfers = new TransferExecutor(progress, 1, TransferExecutor.Policy.SMALLEST_FIRST, 0);
+        CountDownLatch gate = occupyWorkers(1);
+        transfers.submit(30, 0, record("30"));
+        transfers.submit(10, 0, record("10"));
+        transfers.submit(20, 0, record("20"));
+        transfers.submit(10, 0, record("10 again"));
+        gate.countDown();
+        transfers.await();
+        assertEquals(Arrays.asList("10", "10 again", "20", "30"), order);
+    }
+
+    @Test(timeout = 10000)
+    public void startsTheNewestFilesFirst() throws Exception {
+        transfers = new TransferExecutor(progress, 1, TransferExecutor.Policy.NEWEST_FIRST, 0);
+        CountDownLatch gate = occupyWorkers(1);
+        transfers.submit(0, 1000, record("old"));
+        transfers.submit(0, 3000, record("new"));
+        transfers.submit(0, 2000, record("middle"));
+        gate.countDown();
+        transfers.await();
+        assertEquals(Arrays.asList("new", "middle", "old"), order);
+    }
+
+    @Test(timeout = 10000)
+    public void keepsLargeFilesInTheirOwnLane() throws Exception {
+        //one worker in each lane
+        transfers = new TransferExecutor(progress, 2, TransferExecutor.Policy.LANES, 0);
+        CountDownLatch gate = occupyWorkers(2);
+        Map<String, List<String>> byThread = new ConcurrentHashMap<>();
+        long large = TransferExecutor.LARGE_FILE_THRESHOLD;
+        for (String name : new String[]{"small a", "large a", "small b", "large b"}) {
+            transfers.submit(name.startsWith("large") ? large : 1, 0, () ->
+                    byThread.computeIfAbsent(Thread.currentThread().getName(), t -> Collections.synchronizedList(new ArrayList<>())).add(name));
+        }
+        gate.countDown();
+        transfers.await();
+
+        //the large lane takes the large files first, in order, and the small lane never takes them
+        List<String> largeLane = byThread.get("transfer-large-1");
+        assertEquals(Arrays.asList("large a", "large b"), largeLane.subList(0, 2));
+        List<String> smallLane = byThread.getOrDefault("transfer-2", Collections.emptyList());
+        assertFalse(smallLane.contains("large a") || smallLane.contains("large b"));
+        List<String> small = new ArrayList<>(smallLane);
+        small.addAll(largeLane.subList(2, largeLane.size()));
+        Collections.sort(small);
+        assertEquals(Arrays.asList("small a", "small b"), small);
+    }
+
+    @Test(timeout = 10000)
+    public void holdsBackTransfersBeyondTheBytesInFlight() throws Exception {
+        transfers = new TransferExecutor(progress, 3, TransferExecutor.Policy.FIFO, 100);
+        CountDownLatch firstStarted = new CountDownLatch(1);
+        CountDownLatch release = new CountDownLatch(1);
+        transfers.submit(80, 0, () -> {
+            firstStarted.countDown();
+            await(release);
+        });
+        assertTrue(firstStarted.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        CountDownLatch tooLargeStarted = new CountDownLatch(1);
+        transfers.submit(80, 0, tooLargeStarted::countDown);
+        CountDownLatch fittingStarted = new CountDownLatch(1);
+        transfers.submit(20, 0, fittingStarted::countDown);
+
+        //workers are free, but only the file that fits in the remaining budget goes ahead
+        assertTrue(fittingStarted.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        assertFalse(tooLargeStarted.await(SETTLE, TimeUnit.MILLISECONDS));
+        release.countDown();
+        assertTrue(tooLargeStarted.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        transfers.await();
+
+        //a file larger than the whole budget runs on its own
+        transfers.submit(1000, 0, () -> {
+        });
+        transfers.await();
+    }
+
+    @Test(timeout = 10000)
+    public void blocksTheSubmitterWhenTheQueueIsFull() throws Exception {
+        transfers = new TransferExecutor(progress, 2);
+        CountDownLatch gate = occupyWorkers(2);
+        for (int i = 0; i < transfers.getQueueCapacity(); i++) {
+            transfers.submit(1, 0, record("queued"));
+        }
+        AtomicBoolean submitted = new AtomicBoolean();
+        Thread submitter = new Thread(() -> {
+            try {
+                transfers.submit(1, 0, record("blocked"));
+                submitted.set(true);
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+        });
+        submitter.start();
+        submitter.join(SETTLE);
+        assertFalse(submitted.get());
+
+        gate.countDown();
+        submitter.join(TIMEOUT);
+        assertTrue(submitted.get());
+        transfers.await();
+        assertEquals(transfers.getQueueCapacity() + 1, order.size());
+        assertEquals(transfers.getQueueCapacity(), transfers.getMaxQueueDepth());
+    }
+
+    @Test(timeout = 10000)
+    public void reportsAFailureFromAwaitAndTheNextSubmit() throws Exception {
+        transfers = new TransferExecutor(progress, 2);
+        CountDownLatch otherDone = new CountDownLatch(1);
+        transfers.submit(1, 0, () -> {
+            await(otherDone);
+            throw new IOException("upload failed");
+        });
+        transfers.submit(1, 0, () -> {
+            order.add("other");
+            otherDone.countDown();
+        });
+        try {
+            transfers.await();
+            fail();
+        } catch (IOException e) {
+            assertEquals("upload failed", e.getMessage());
+        }
+        //the other transfer ran as usual
+        assertEquals(Collections.singletonList("other"), order);
+        try {
+            transfers.submit(1, 0, record("after"));
+            fail();
+        } catch (IOException e) {
+            assertEquals("upload failed", e.getMessage());
+        }
+        assertFalse(order.contains("after"));
+    }
+
+    @Test(timeout = 10000)
+    public void rethrowsUncheckedErrorsOfATransfer() throws Exception {
+        transfers = new TransferExecutor(progress, 2);
+        transfers.submit(1, 0, () -> {
+            throw new IllegalStateException("bug");
+        });
+        try {
+            transfers.await();
+            fail();
+        } catch (IllegalStateException e) {
+            assertEquals("bug", e.getMessage());
+        }
+    }
+
+    /**
+     * Keeps the given number of workers busy until the returned gate opens, so the transfers submitted
+     * meanwhile are queued and started in the order of the policy.
+     */
+    private CountDownLatch occupyWorkers(int workers) throws Exception {
+        CountDownLatch started = new CountDownLatch(workers);
+        CountDownLatch gate = new CountDownLatch(1);
+        for (int i = 0; i < workers; i++) {
+            transfers.submit(0, 0, () -> {
+                started.countDown();
+                await(gate);
+            });
+        }
+        assertTrue(started.await(TIMEOUT, TimeUnit.MILLISECONDS));
+        return gate;
+    }
+
+    private TransferExecutor.Transfer record(String name) {
+        return () -> order.add(name);
+    }
+
+    private static void await(CountDownLatch latch) throws IOException {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            throw new IOException(e);
+        }
+    }
+}